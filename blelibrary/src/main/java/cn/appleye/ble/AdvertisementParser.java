@@ -0,0 +1,351 @@
+package cn.appleye.ble;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-22
+ * 广播数据解析器，解析时只记录每个AD结构的类型、偏移和长度，不拷贝数据。
+ * 同一个对象可以在每次扫描回调中重复使用，稳定状态下不分配内存。
+ * 非线程安全，每个线程使用自己的对象
+ */
+public class AdvertisementParser {
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_SERVICE_UUIDS_16_BIT_PARTIAL = 0x02;
+    public static final int TYPE_SERVICE_UUIDS_16_BIT_COMPLETE = 0x03;
+    public static final int TYPE_SERVICE_UUIDS_32_BIT_PARTIAL = 0x04;
+    public static final int TYPE_SERVICE_UUIDS_32_BIT_COMPLETE = 0x05;
+    public static final int TYPE_SERVICE_UUIDS_128_BIT_PARTIAL = 0x06;
+    public static final int TYPE_SERVICE_UUIDS_128_BIT_COMPLETE = 0x07;
+    public static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    public static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    /**
+     * 没有发射功率字段时的返回值
+     * */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    /**
+     * 蓝牙基础UUID，16位和32位UUID按它扩展成128位
+     * */
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 初始容量，普通广播最多31字节
+     * */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private byte[] mData;
+
+    /**
+     * AD结构的个数
+     * */
+    private int mCount;
+
+    /**
+     * 每个AD结构的类型
+     * */
+    private int[] mTypes = new int[DEFAULT_CAPACITY];
+
+    /**
+     * 每个AD结构数据部分的偏移，不包括长度和类型
+     * */
+    private int[] mOffsets = new int[DEFAULT_CAPACITY];
+
+    /**
+     * 每个AD结构数据部分的长度
+     * */
+    private int[] mLengths = new int[DEFAULT_CAPACITY];
+
+    /**
+     * 解析广播数据，之前的结果失效。遇到长度为0或者越界的结构就停止，之前的结构仍然有效
+     * @return this
+     * */
+    public AdvertisementParser parse(byte[] scanRecord) {
+        return parse(scanRecord, 0, scanRecord != null ? scanRecord.length : 0);
+    }
+
+    /**
+     * 解析广播数据中的一段
+     * @return this
+     * */
+    public AdvertisementParser parse(byte[] data, int offset, int length) {
+        mData = data;
+        mCount = 0;
+        if(data == null) {
+            return this;
+        }
+
+        int end = offset + length;
+        while(offset < end) {
+            int structureLength = data[offset] & 0xFF;
+            if(structureLength == 0 || offset + 1 + structureLength > end) {
+                break;
+            }
+
+            if(mCount == mTypes.length) {
+                grow();
+            }
+            mTypes[mCount] = data[offset + 1] & 0xFF;
+            mOffsets[mCount] = offset + 2;
+            mLengths[mCount] = structureLength - 1;
+            mCount++;
+
+            offset += 1 + structureLength;
+        }
+
+        return this;
+    }
+
+    private void grow() {
+        int capacity = mTypes.length * 2;
+        int[] types = new int[capacity];
+        int[] offsets = new int[capacity];
+        int[] lengths = new int[capacity];
+        System.arraycopy(mTypes, 0, types, 0, mCount);
+        System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+        System.arraycopy(mLengths, 0, lengths, 0, mCount);
+        mTypes = types;
+        mOffsets = offsets;
+        mLengths = lengths;
+    }
+
+    /**
+     * 正在解析的数据，偏移都是相对于这个数组
+     * */
+    public byte[] data() {
+        return mData;
+    }
+
+    /**
+     * AD结构的个数
+     * */
+    public int structureCount() {
+        return mCount;
+    }
+
+    public int type(int index) {
+        return mTypes[index];
+    }
+
+    public int dataOffset(int index) {
+        return mOffsets[index];
+    }
+
+    public int dataLength(int index) {
+        return mLengths[index];
+    }
+
+    /**
+     * 查找第一个指定类型的AD结构
+     * @return 下标，没有时返回-1
+     * */
+    public int indexOf(int type) {
+        for(int i = 0; i < mCount; i++) {
+            if(mTypes[i] == type) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * 设备名称所在的AD结构，优先完整名称
+     * @return 下标，没有时返回-1
+     * */
+    public int localNameIndex() {
+        int index = indexOf(TYPE_LOCAL_NAME_COMPLETE);
+        return index >= 0 ? index : indexOf(TYPE_LOCAL_NAME_SHORT);
+    }
+
+    /**
+     * 设备名称，会创建字符串，只比较名称时使用{@link #localNameEquals(byte[])}
+     * @return 没有时返回null
+     * */
+    public String getLocalName() {
+        int index = localNameIndex();
+        if(index < 0) {
+            return null;
+        }
+
+        return new String(mData, mOffsets[index], mLengths[index], UTF_8);
+    }
+
+    /**
+     * 设备名称是否等于name，不创建字符串
+     * @param name UTF-8编码的名称，可以提前转换好重复使用
+     * */
+    public boolean localNameEquals(byte[] name) {
+        int index = localNameIndex();
+        if(index < 0 || mLengths[index] != name.length) {
+            return false;
+        }
+
+        int offset = mOffsets[index];
+        for(int i = 0; i < name.length; i++) {
+            if(mData[offset + i] != name[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 发射功率，单位dBm
+     * @return 没有时返回{@link #TX_POWER_UNKNOWN}
+     * */
+    public int getTxPowerLevel() {
+        int index = indexOf(TYPE_TX_POWER_LEVEL);
+        if(index < 0 || mLengths[index] < 1) {
+            return TX_POWER_UNKNOWN;
+        }
+
+        return mData[mOffsets[index]];
+    }
+
+    /**
+     * 服务UUID的个数，包括16位、32位和128位
+     * */
+    public int serviceUuidCount() {
+        int count = 0;
+        for(int i = 0; i < mCount; i++) {
+            int size = uuidSize(mTypes[i]);
+            if(size > 0) {
+                count += mLengths[i] / size;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * 第index个服务UUID的高64位，已经按基础UUID扩展成128位
+     * */
+    public long serviceUuidMostSignificantBits(int index) {
+        return readUuid(index, true);
+    }
+
+    /**
+     * 第index个服务UUID的低64位
+     * */
+    public long serviceUuidLeastSignificantBits(int index) {
+        return readUuid(index, false);
+    }
+
+    /**
+     * 第index个服务UUID，会创建对象
+     * */
+    public UUID getServiceUuid(int index) {
+        return new UUID(readUuid(index, true), readUuid(index, false));
+    }
+
+    /**
+     * 是否包含服务UUID，不创建对象
+     * */
+    public boolean hasServiceUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for(int i = 0; i < mCount; i++) {
+            int size = uuidSize(mTypes[i]);
+            if(size == 0) {
+                continue;
+            }
+
+            int end = mOffsets[i] + mLengths[i];
+            for(int offset = mOffsets[i]; offset + size <= end; offset += size) {
+                if(uuidBits(offset, size, true) == msb && uuidBits(offset, size, false) == lsb) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private long readUuid(int index, boolean mostSignificant) {
+        for(int i = 0; i < mCount; i++) {
+            int size = uuidSize(mTypes[i]);
+            if(size == 0) {
+                continue;
+            }
+
+            int count = mLengths[i] / size;
+            if(index < count) {
+                return uuidBits(mOffsets[i] + index * size, size, mostSignificant);
+            }
+            index -= count;
+        }
+
+        throw new IndexOutOfBoundsException("service uuid index out of range");
+    }
+
+    /**
+     * 读取UUID的一半，广播数据是小端序
+     * */
+    private long uuidBits(int offset, int size, boolean mostSignificant) {
+        if(size == 16) {
+            return readLittleEndian(offset + (mostSignificant ? 8 : 0), 8);
+        }
+
+        if(mostSignificant) {
+            return (readLittleEndian(offset, size) << 32) | BASE_UUID_MSB;
+        }
+        return BASE_UUID_LSB;
+    }
+
+    private long readLittleEndian(int offset, int size) {
+        long value = 0;
+        for(int i = 0; i < size; i++) {
+            value |= (mData[offset + i] & 0xFFL) << (8 * i);
+        }
+        return value;
+    }
+
+    private static int uuidSize(int type) {
+        switch (type) {
+            case TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+            case TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                return 2;
+            case TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+            case TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                return 4;
+            case TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+            case TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 查找厂商数据
+     * @param manufacturerId 厂商ID
+     * @return AD结构的下标，没有时返回-1。厂商数据从{@link #dataOffset(int)}+2开始，长度是{@link #dataLength(int)}-2
+     * */
+    public int indexOfManufacturer(int manufacturerId) {
+        for(int i = 0; i < mCount; i++) {
+            if(mTypes[i] == TYPE_MANUFACTURER_SPECIFIC_DATA && mLengths[i] >= 2
+                    && manufacturerId(i) == manufacturerId) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * 厂商数据的厂商ID，index必须是厂商数据的AD结构
+     * */
+    public int manufacturerId(int index) {
+        int offset = mOffsets[index];
+        return (mData[offset] & 0xFF) | ((mData[offset + 1] & 0xFF) << 8);
+    }
+}
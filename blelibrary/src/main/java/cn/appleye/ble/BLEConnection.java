@@ -0,0 +1,1699 @@
+package cn.appleye.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-14
+ *
+ * 单个设备的连接，持有自己的GATT、拼包状态、重试状态和发送队列。
+ * 所有连接共用同一个发送线程，发送由写入回调驱动，一个设备慢不会阻塞其它设备
+ */
+public class BLEConnection {
+    /**
+     * 已断开，初始状态，disconnect完成或者重试次数用完之后回到这个状态
+     * */
+    public static final int STATE_DISCONNECTED = 0;
+
+    /**
+     * 正在连接，包括关闭旧gatt、等待重试和后台自动连接
+     * */
+    public static final int STATE_CONNECTING = 1;
+
+    /**
+     * 已连接，正在发现服务
+     * */
+    public static final int STATE_DISCOVERING = 2;
+
+    /**
+     * 已发现服务，正在打开通知
+     * */
+    public static final int STATE_SUBSCRIBING = 3;
+
+    /**
+     * 通知已打开，可以收发数据
+     * */
+    public static final int STATE_READY = 4;
+
+    /**
+     * 主动断开，正在关闭gatt
+     * */
+    public static final int STATE_CLOSING = 5;
+
+    /**
+     * 发送消息
+     * */
+    private static final int MESSAGE_SEND = 1000;
+
+    /**
+     * 重试连接
+     * */
+    private static final int MESSAGE_RETRY = 1001;
+
+    /**
+     * 连接错误消息
+     * */
+    private static final int MESSAGE_CONN_ERROR = 1002;
+
+    /**
+     * 连接失败消息
+     * */
+    private static final int MESSAGE_CONN_FAILED = 1003;
+
+    /**
+     * 服务准备好的消息
+     * */
+    private static final int MESSAGE_SERVICE_READY = 1005;
+
+    /**
+     * 写入结果，在发送线程中处理
+     * */
+    private static final int MESSAGE_WRITE_RESULT = 1007;
+
+    /**
+     * 清空发送队列
+     * */
+    private static final int MESSAGE_SEND_CLEAR = 1008;
+
+    /**
+     * 取消发送
+     * */
+    private static final int MESSAGE_SEND_CANCEL = 1009;
+
+    /**
+     * 正在关闭的gatt已断开
+     * */
+    private static final int MESSAGE_GATT_DISCONNECTED = 1010;
+
+    /**
+     * 关闭gatt超时
+     * */
+    private static final int MESSAGE_CLOSE_TIMEOUT = 1011;
+
+    /**
+     * 写出选择重传的状态包
+     * */
+    private static final int MESSAGE_SEND_STATUS = 1012;
+
+    /**
+     * 收到对端回复的选择重传状态包
+     * */
+    private static final int MESSAGE_RECEIVER_STATUS = 1013;
+
+    /**
+     * 等待MTU协商结果超时，按默认包大小就绪
+     * */
+    private static final int MESSAGE_MTU_TIMEOUT = 1014;
+
+    /**
+     * 等待断开回调的最长时间，超时直接关闭gatt
+     * */
+    private static final int CLOSE_TIMEOUT = 1000;
+
+    /**
+     * 等待onMtuChanged的最长时间，部分设备不回调
+     * */
+    private static final int MTU_TIMEOUT = 1000;
+
+    /**
+     * 自动调整优先级时，发送完成之后多久降回空闲优先级
+     * */
+    private static final int PRIORITY_IDLE_DELAY = 2000;
+
+    /**
+     * 自动调整优先级时，至少多少个包才提高优先级，少量数据不值得切换连接参数
+     * */
+    private static final int PRIORITY_HIGH_MIN_FRAMES = 8;
+
+    private final BLEManager mManager;
+
+    private final BluetoothDevice mDevice;
+
+    /**
+     * 当前尝试次数，连接成功之后清零
+     * */
+    private int mCurrentTimes = 0;
+
+    /**
+     * 回调线程，为空时使用BLEManager中设置的线程
+     * */
+    private volatile Executor mCallbackExecutor;
+
+    /**
+     * 连接参数回调，为空时使用BLEManager中设置的回调
+     * */
+    private volatile BLEManager.LinkCallback mLinkCallback;
+
+    /**
+     * 最近一次请求成功的连接优先级
+     * */
+    private volatile int mConnectionPriority = BLEManager.CONNECTION_PRIORITY_BALANCED;
+
+    private volatile int mTxPhy = BLEManager.PHY_LE_1M;
+
+    private volatile int mRxPhy = BLEManager.PHY_LE_1M;
+
+    /**
+     * 重连策略，为空时使用BLEManager中设置的策略
+     * */
+    private volatile ReconnectPolicy mReconnectPolicy;
+
+    /**
+     * 保存这个设备所有的gatt，避免异常情况下没有关闭
+     * */
+    private final HashSet<BluetoothGatt> mBluetoothGattSet = new HashSet<>();
+
+    /**
+     * 已经调用disconnect，等待断开回调之后再close的gatt，和mBluetoothGattSet使用同一把锁
+     * */
+    private final HashSet<BluetoothGatt> mClosingGattSet = new HashSet<>();
+
+    /**
+     * 等待所有gatt关闭的回调
+     * */
+    private final ArrayList<BLEManager.CloseCallback> mCloseCallbacks = new ArrayList<>();
+
+    /**
+     * 每次connect加一，关闭完成后只有最新的一次connect才真正发起连接
+     * */
+    private final AtomicInteger mConnectGeneration = new AtomicInteger();
+
+    /**
+     * 直接连接失败之后，是否已经转为后台自动连接，只在主线程访问
+     * */
+    private boolean mAutoConnecting = false;
+
+    private volatile BluetoothGatt mCurrentBluetoothGatt = null;
+
+    /**
+     * 发现服务之后找到的特征值，发送时直接使用，不再解析UUID和查找服务。
+     * 断开或者重新发现服务时失效
+     * */
+    private volatile BluetoothGattCharacteristic mCharacteristic = null;
+
+    /**
+     * 发现服务之后找到的所有数据特征值，第一个是mCharacteristic，带帧头的包按轮转写入
+     * */
+    private volatile BluetoothGattCharacteristic[] mCharacteristics = null;
+
+    /**
+     * 下一个带帧头的包写入的特征值，只在发送线程中访问
+     * */
+    private int mNextCharacteristic;
+
+    /**
+     * 连接结果回调，为空时使用BLEManager中设置的回调
+     * */
+    private volatile BLEManager.ConnectCallback mConnectCallback;
+
+    /**
+     * 二进制数据回调，为空时使用BLEManager中设置的回调
+     * */
+    private volatile BLEManager.BinaryReceiveCallback mBinaryReceiveCallback;
+
+    private volatile BLEManager.ChannelReceiveCallback mChannelReceiveCallback;
+
+    /**
+     * 连接状态，GATT回调线程、主线程、发送线程和调用者线程都会修改，只通过CAS切换，不加锁
+     * */
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine();
+
+    /**
+     * 拼包器，只在GATT回调线程中访问，连接和断开回调中重置
+     * */
+    private final FrameAssembler mFrameAssembler;
+
+    /**
+     * 发送使用的帧格式
+     * */
+    private volatile int mFrameFormat;
+
+    /**
+     * 消息压缩编码，为空表示不压缩
+     * */
+    private volatile PayloadCodec mPayloadCodec;
+
+    /**
+     * 选择重传格式的下一个消息ID，只在发送线程中访问
+     * */
+    private int mNextMessageId;
+
+    /**
+     * 协商的包大小，由onMtuChanged更新
+     * */
+    private volatile int mPacketSize = BLEDataUtil.DEFAULT_PACKET_SIZE;
+
+    /**
+     * 发送Handler，所有连接共用一个发送线程
+     * */
+    private final Handler mMessageHandler;
+
+    /**
+     * 分包发送器，只在发送线程中访问
+     * */
+    private final PacketSender mPacketSender;
+
+    /**
+     * 每个逻辑通道一个有界的发送队列，发送器空闲时才从这里取下一段，保证优先级和通道间的轮转生效
+     * */
+    private final ChannelSender mChannelSender;
+
+    /**
+     * 已投递的队列期限检查的执行时间，0表示没有投递，只在发送线程中访问
+     * */
+    private long mQueueExpireAt;
+
+    /**
+     * 所有消息共用的发送结果回调，在每个消息自己的结果之前调用
+     * */
+    private final PacketSender.SendCallback mSendCallback = new PacketSender.SendCallback() {
+        @Override
+        public void onSendComplete(int result) {
+            if(result != PacketSender.RESULT_SUCCESS && !isClosed()) {
+                logd("send failed, result = " + result);
+            }
+
+            if(mConnectionPriority == BLEManager.CONNECTION_PRIORITY_HIGH && mManager.isAutoConnectionPriority()) {
+                mMessageHandler.removeCallbacks(mIdlePriorityTask);
+                mMessageHandler.postDelayed(mIdlePriorityTask, PRIORITY_IDLE_DELAY);
+            }
+
+            //发送器空闲之后从队列中取下一个消息
+            scheduleSend();
+        }
+    };
+
+    /**
+     * 取消请求交给发送线程处理
+     * */
+    private final SendFuture.Canceller mCanceller = new SendFuture.Canceller() {
+        @Override
+        public void cancel(SendFuture future) {
+            if(mChannelSender.remove(future)) {//还在队列中，直接结束
+                future.setResult(SendFuture.RESULT_CANCELLED);
+                return;
+            }
+
+            Message message = Message.obtain();
+            message.what = MESSAGE_SEND_CANCEL;
+            message.obj = future;
+            mMessageHandler.sendMessage(message);
+        }
+    };
+
+    /**
+     * 队列中的消息超过期限时立即结束，不等前面的消息发送完，在发送线程中执行
+     * */
+    private final Runnable mQueueExpireTask = new Runnable() {
+        @Override
+        public void run() {
+            mQueueExpireAt = 0;
+            List<SendFuture> expired = mChannelSender.expire(SystemClock.uptimeMillis());
+            if(expired != null) {
+                for(int i = 0; i < expired.size(); i++) {
+                    expired.get(i).setResult(SendFuture.RESULT_TIMEOUT);
+                }
+            }
+            scheduleQueueExpire();
+        }
+    };
+
+    /**
+     * 空闲一段时间之后降低连接优先级，在发送线程中执行
+     * */
+    private final Runnable mIdlePriorityTask = new Runnable() {
+        @Override
+        public void run() {
+            if(mPacketSender.isBusy()) {//队列中的下一条消息已经开始发送
+                mMessageHandler.postDelayed(this, PRIORITY_IDLE_DELAY);
+                return;
+            }
+
+            if(mConnectionPriority == BLEManager.CONNECTION_PRIORITY_HIGH) {
+                requestConnectionPriority(mManager.getIdleConnectionPriority());
+            }
+        }
+    };
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MESSAGE_RETRY: {
+                    if(mStateMachine.getState() == STATE_CONNECTING) {
+                        realConnect();
+                    }
+                    break;
+                }
+                case MESSAGE_CONN_ERROR: {
+                    retryConnect((BluetoothGatt)msg.obj, msg.arg1);
+                    break;
+                }
+
+                case MESSAGE_CONN_FAILED:{
+                    mManager.onConnectionFailed(BLEConnection.this);
+                    getCallbackExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            BLEManager.ConnectCallback callback = getConnectCallback();
+                            if(callback != null) {
+                                callback.onConnectFailed();
+                            }
+                        }
+                    });
+                    break;
+                }
+
+                case MESSAGE_SERVICE_READY:{
+                    final boolean ready = (boolean)msg.obj;
+                    if(ready) {//连接成功，重新计算重连次数，下次断开先直接连接
+                        mCurrentTimes = 0;
+                        mAutoConnecting = false;
+                    }
+                    getCallbackExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            BLEManager.ConnectCallback callback = getConnectCallback();
+                            if(callback != null) {
+                                callback.onServiceSubscribed(ready);
+                            }
+                        }
+                    });
+                    break;
+                }
+
+                case MESSAGE_GATT_DISCONNECTED:{
+                    closeGatt((BluetoothGatt)msg.obj, false);
+                    break;
+                }
+
+                case MESSAGE_CLOSE_TIMEOUT:{
+                    closeGatt((BluetoothGatt)msg.obj, true);
+                    break;
+                }
+
+                case MESSAGE_MTU_TIMEOUT:{
+                    if(msg.obj == mCurrentBluetoothGatt) {
+                        logd("requestMtu timeout");
+                        onLinkReady();
+                    }
+                    break;
+                }
+            }
+        }
+    };
+
+    /**
+     * 连接回调
+     * */
+    private final BluetoothGattCallback mBluetoothGattCallback = new BluetoothGattCallback(){
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            super.onConnectionStateChange(gatt, status, newState);
+            logd("onConnectionStateChange status = " + status + ", newState = " + newState);
+            if(gatt == null) {
+                return;
+            }
+
+            synchronized (mBluetoothGattSet) {
+                if(mClosingGattSet.contains(gatt)) {//正在关闭的gatt，断开之后再close
+                    if(newState == BluetoothGatt.STATE_DISCONNECTED) {
+                        mFrameAssembler.reset();
+                        Message msg = Message.obtain();
+                        msg.what = MESSAGE_GATT_DISCONNECTED;
+                        msg.obj = gatt;
+                        mMainHandler.sendMessage(msg);
+                    }
+                    return;
+                }
+
+                mBluetoothGattSet.add(gatt);
+            }
+
+            if(status != BluetoothGatt.GATT_SUCCESS || newState == BluetoothGatt.STATE_DISCONNECTED) {
+                //链路已经断开，不管是否重连，缓存的特征值都失效，status为0的正常断开也一样
+                mCharacteristic = null;
+                mCharacteristics = null;
+                //收到一半的消息不能拼上新连接的包
+                mFrameAssembler.reset();
+            }
+
+            int action = mStateMachine.onConnectionStateChange(status, newState);
+            logd("[state] " + mStateMachine.getState() + ", action = " + action);
+            switch (action) {
+                case ConnectionStateMachine.ACTION_DISCOVER: {//连接成功
+                    //之前的gatt超时关闭时没有断开回调，这里再丢弃一次旧连接的数据
+                    mFrameAssembler.reset();
+                    mPacketSize = BLEDataUtil.DEFAULT_PACKET_SIZE;
+                    mCharacteristic = null;
+                    mCharacteristics = null;
+                    mConnectionPriority = BLEManager.CONNECTION_PRIORITY_BALANCED;
+                    mTxPhy = BLEManager.PHY_LE_1M;
+                    mRxPhy = BLEManager.PHY_LE_1M;
+                    mCurrentBluetoothGatt = gatt;
+                    gatt.discoverServices();
+                    logd("连接成功");
+                    getCallbackExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            BLEManager.ConnectCallback callback = getConnectCallback();
+                            if(callback != null) {
+                                callback.onConnectSuccess(mDevice);
+                            }
+                        }
+                    });
+                    break;
+                }
+
+                case ConnectionStateMachine.ACTION_CLOSE: {//disconnect之后才连上的gatt
+                    stopConnection(null);
+                    break;
+                }
+
+                case ConnectionStateMachine.ACTION_RETRY: {//断开或者出错，不是用户手动断开的，就继续重试
+                    logd("connect error, status = " + status + ", newState = " + newState);
+                    postConnectionError(gatt, status);
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            super.onServicesDiscovered(gatt, status);
+            logd("onServicesDiscovered");
+            if(gatt == null || gatt != mCurrentBluetoothGatt) {//已经关闭或者正在关闭的gatt
+                return;
+            }
+
+            //服务变化之后协议栈会重新发现服务，这里重新查找，旧的特征值失效
+            mCharacteristic = null;
+            mCharacteristics = null;
+            int action = mStateMachine.onServicesDiscovered(status);
+            logd("[state] " + mStateMachine.getState() + ", action = " + action);
+            if(action == ConnectionStateMachine.ACTION_RETRY) {//发现服务失败，断开重连
+                postConnectionError(null, status);
+                return;
+            }
+            if(action != ConnectionStateMachine.ACTION_SUBSCRIBE) {
+                return;
+            }
+
+            BluetoothGattCharacteristic[] characteristics = BLEManager.findCharacteristics(gatt);
+            mCharacteristics = characteristics;
+            mCharacteristic = characteristics != null ? characteristics[0] : null;
+            if(!mManager.enableNotificationOfCharacteristics(gatt, characteristics, true)) {
+                action = mStateMachine.onSubscribed(false);
+                logd("[state] " + mStateMachine.getState() + ", action = " + action);
+                if(action == ConnectionStateMachine.ACTION_RETRY) {//没有找到特征值或者订阅失败，断开重连
+                    postServiceReady(false);
+                    postConnectionError(null, BluetoothGatt.GATT_FAILURE);
+                }
+                return;
+            }
+
+            //协商完MTU之后再报告就绪，之后发送的消息按协商后的包大小分包，也不会和MTU请求抢占GATT
+            if(requestMtu(gatt)) {
+                Message msg = Message.obtain();
+                msg.what = MESSAGE_MTU_TIMEOUT;
+                msg.obj = gatt;
+                mMainHandler.sendMessageDelayed(msg, MTU_TIMEOUT);
+            } else {
+                onLinkReady();
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+            logd("onMtuChanged mtu = " + mtu + ", status = " + status);
+            if(status == BluetoothGatt.GATT_SUCCESS) {
+                mPacketSize = BLEDataUtil.packetSizeForMtu(mtu);
+            }
+            if(gatt == mCurrentBluetoothGatt) {
+                onLinkReady();
+            }
+        }
+
+        /**
+         * Android 8.0新增的回调，编译版本中没有，不能加@Override
+         * */
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            onPhyChanged(txPhy, rxPhy, status);
+        }
+
+        /**
+         * Android 8.0新增的回调，readPhy的结果
+         * */
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            onPhyChanged(txPhy, rxPhy, status);
+        }
+
+        private void onPhyChanged(final int txPhy, final int rxPhy, final int status) {
+            logd("onPhyUpdate txPhy = " + txPhy + ", rxPhy = " + rxPhy + ", status = " + status);
+            if(status == BluetoothGatt.GATT_SUCCESS) {
+                mTxPhy = txPhy;
+                mRxPhy = rxPhy;
+            }
+
+            getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    BLEManager.LinkCallback callback = getLinkCallback();
+                    if(callback != null) {
+                        callback.onPhyUpdate(mTxPhy, mRxPhy, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            //不打印日志时不生成字符串，避免每个包都分配内存
+            if(BLEManager.isDebugEnabled()) {
+                if(status == BluetoothGatt.GATT_SUCCESS) {
+                    logd("success : onCharacteristicWrite: "+ Arrays.toString(characteristic.getValue()));
+                } else {
+                    logd("failed : onCharacteristicWrite: "+ Arrays.toString(characteristic.getValue()));
+                }
+            }
+
+            Message msg = Message.obtain();
+            msg.what = MESSAGE_WRITE_RESULT;
+            msg.arg1 = status;
+            mMessageHandler.sendMessage(msg);
+            super.onCharacteristicWrite(gatt, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            byte[] value = characteristic.getValue();
+            //和写入回调一样，不打印日志时不生成字符串
+            if(BLEManager.isDebugEnabled()) {
+                logd("onCharacteristicChanged: "+ Arrays.toString(value));
+            }
+
+            if(BLEDataUtil.isStatusFrame(value)) {//对端对我们发送的消息的确认
+                Message msg = Message.obtain();
+                msg.what = MESSAGE_RECEIVER_STATUS;
+                msg.obj = BLEDataUtil.stripChannel(value);
+                mMessageHandler.sendMessage(msg);
+                super.onCharacteristicChanged(gatt, characteristic);
+                return;
+            }
+
+            boolean complete = mFrameAssembler.onFrame(value);
+            byte[] status = mFrameAssembler.takeStatus();
+            if(status != null) {
+                Message msg = Message.obtain();
+                msg.what = MESSAGE_SEND_STATUS;
+                msg.obj = status;
+                mMessageHandler.sendMessage(msg);
+            }
+
+            if(complete) {
+                final int channel = mFrameAssembler.messageChannel();
+                final ReassemblyBuffer buffer = mFrameAssembler.takeMessage();
+                if(BLEManager.isDebugEnabled()) {
+                    logd("result bytes : " + buffer.length() + ", channel = " + channel);
+                }
+                Executor executor = getCallbackExecutor();
+                if(executor == CallbackExecutors.direct()) {//直接回调，不创建任务
+                    deliverReceived(channel, buffer);
+                } else {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliverReceived(channel, buffer);
+                        }
+                    });
+                }
+            }
+
+            super.onCharacteristicChanged(gatt, characteristic);
+        }
+    };
+
+    BLEConnection(BLEManager manager, BluetoothDevice device, Looper sendLooper) {
+        mManager = manager;
+        mDevice = device;
+        mFrameFormat = manager.getFrameFormat();
+        mPayloadCodec = manager.getPayloadCodec();
+
+        mMessageHandler = new Handler(sendLooper) {
+            @Override
+            public void handleMessage(Message message) {
+                switch (message.what) {
+                    case MESSAGE_SEND: {
+                        mChannelSender.sendNext();
+                        scheduleQueueExpire();
+                        break;
+                    }
+
+                    case MESSAGE_SEND_CANCEL: {
+                        mChannelSender.cancel((SendFuture) message.obj);
+                        break;
+                    }
+
+                    case MESSAGE_SEND_STATUS: {
+                        mPacketSender.sendControl((byte[]) message.obj);
+                        break;
+                    }
+
+                    case MESSAGE_RECEIVER_STATUS: {
+                        mPacketSender.onReceiverStatus((byte[]) message.obj);
+                        break;
+                    }
+
+                    case MESSAGE_WRITE_RESULT: {
+                        mPacketSender.onPacketWritten(message.arg1 == BluetoothGatt.GATT_SUCCESS);
+                        break;
+                    }
+
+                    case MESSAGE_SEND_CLEAR: {
+                        mPacketSender.clear();
+                        List<SendFuture> dropped = mChannelSender.clear();
+                        for(int i = 0; i < dropped.size(); i++) {
+                            dropped.get(i).mSendCallback.onSendComplete(PacketSender.RESULT_FAILED);
+                        }
+                        break;
+                    }
+                }
+            }
+        };
+
+        HandlerScheduler scheduler = new HandlerScheduler(mMessageHandler);
+        mFrameAssembler = new FrameAssembler(scheduler);
+        mFrameAssembler.setMaxMessageSize(manager.getMaxMessageSize());
+        mFrameAssembler.setReassemblyTimeout(manager.getReassemblyTimeout());
+        mPacketSender = new PacketSender(scheduler, new PacketSender.PacketWriter() {
+            @Override
+            public boolean writePacket(byte[] packet, boolean withResponse) {
+                return writeCharacteristic(packet, withResponse);
+            }
+        });
+        mChannelSender = new ChannelSender(scheduler, mPacketSender, new ChannelSender.Encoder() {
+            @Override
+            public FrameEncoder encode(SendFuture future) {
+                return encodeFrames(future);
+            }
+        });
+        mChannelSender.setSendQueue(manager.getSendQueueCapacity(), manager.getSendQueueOverflowPolicy());
+        setSendWindow(manager.getSendWindow());
+        setWriteTimeout(manager.getWriteTimeout());
+        setStreamCredits(manager.getStreamCredits());
+        setStreamInterval(manager.getStreamInterval());
+    }
+
+    /**
+     * 连接的设备
+     * */
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * 设备地址
+     * */
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    /**
+     * 是否已连接并订阅了特征值
+     * */
+    public boolean isConnected() {
+        return mStateMachine.getState() == STATE_READY;
+    }
+
+    /**
+     * 当前连接状态
+     * @return {@link #STATE_DISCONNECTED}, {@link #STATE_CONNECTING}, {@link #STATE_DISCOVERING},
+     * {@link #STATE_SUBSCRIBING}, {@link #STATE_READY}, {@link #STATE_CLOSING}
+     * */
+    public int getState() {
+        return mStateMachine.getState();
+    }
+
+    /**
+     * 是否已经主动断开或者放弃重连
+     * */
+    private boolean isClosed() {
+        return mStateMachine.isClosed();
+    }
+
+    /**
+     * 从from切换到to，状态已经被其它线程改变时失败
+     * */
+    private boolean transition(int from, int to) {
+        if(mStateMachine.transition(from, to)) {
+            logd("[state] " + from + " -> " + to);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 设置这个连接的回调，为空时使用{@link BLEManager#setConnectCallback}设置的回调
+     * */
+    public void setConnectCallback(BLEManager.ConnectCallback connectCallback) {
+        mConnectCallback = connectCallback;
+    }
+
+    /**
+     * 设置这个连接的二进制数据回调，为空时使用{@link BLEManager#setBinaryReceiveCallback}设置的回调
+     * */
+    public void setBinaryReceiveCallback(BLEManager.BinaryReceiveCallback callback) {
+        mBinaryReceiveCallback = callback;
+    }
+
+    /**
+     * 设置这个连接的逻辑通道数据回调，为空时使用{@link BLEManager#setChannelReceiveCallback}设置的回调
+     * */
+    public void setChannelReceiveCallback(BLEManager.ChannelReceiveCallback callback) {
+        mChannelReceiveCallback = callback;
+    }
+
+    /**
+     * 设置这个连接的连接参数回调，为空时使用{@link BLEManager#setLinkCallback}设置的回调
+     * */
+    public void setLinkCallback(BLEManager.LinkCallback linkCallback) {
+        mLinkCallback = linkCallback;
+    }
+
+    private BLEManager.LinkCallback getLinkCallback() {
+        BLEManager.LinkCallback callback = mLinkCallback;
+        return callback != null ? callback : mManager.getLinkCallback();
+    }
+
+    /**
+     * 请求连接优先级，Android 5.0以上支持，结果通过{@link BLEManager.LinkCallback}回调
+     * @param priority {@link BLEManager#CONNECTION_PRIORITY_BALANCED}, {@link BLEManager#CONNECTION_PRIORITY_HIGH},
+     *                 {@link BLEManager#CONNECTION_PRIORITY_LOW_POWER}
+     * @return true 请求已提交
+     * */
+    public boolean requestConnectionPriority(final int priority) {
+        BluetoothGatt gatt = mCurrentBluetoothGatt;
+        if(gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        boolean success = gatt.requestConnectionPriority(priority);
+        logd("[requestConnectionPriority] priority = " + priority + ", success = " + success);
+        if(success) {
+            mConnectionPriority = priority;
+        }
+
+        final boolean result = success;
+        getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                BLEManager.LinkCallback callback = getLinkCallback();
+                if(callback != null) {
+                    callback.onConnectionPriorityRequested(priority, result);
+                }
+            }
+        });
+        return success;
+    }
+
+    /**
+     * 最近一次请求成功的连接优先级
+     * */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * 设置希望使用的PHY，Android 8.0以上并且手机支持时生效，结果通过{@link BLEManager.LinkCallback#onPhyUpdate}回调
+     * @param txPhy 发送PHY，{@link BLEManager#PHY_LE_1M_MASK}等，可以组合
+     * @param rxPhy 接收PHY
+     * @param phyOptions Coded PHY的编码方式，0表示不指定
+     * @return true 请求已提交
+     * */
+    public boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+        BluetoothGatt gatt = mCurrentBluetoothGatt;
+        if(gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return false;
+        }
+
+        try {
+            Method method = BluetoothGatt.class.getMethod("setPreferredPhy", int.class, int.class, int.class);
+            method.invoke(gatt, txPhy, rxPhy, phyOptions);
+            logd("[setPreferredPhy] txPhy = " + txPhy + ", rxPhy = " + rxPhy);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 读取当前的PHY，Android 8.0以上支持，结果通过{@link BLEManager.LinkCallback#onPhyUpdate}回调
+     * */
+    public boolean readPhy() {
+        BluetoothGatt gatt = mCurrentBluetoothGatt;
+        if(gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return false;
+        }
+
+        try {
+            Method method = BluetoothGatt.class.getMethod("readPhy");
+            method.invoke(gatt);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 当前发送PHY，{@link BLEManager#PHY_LE_1M}等
+     * */
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    /**
+     * 当前接收PHY
+     * */
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * 开始发送一条消息，数据量大时提高连接优先级，在发送线程中调用
+     * */
+    private void onTransferStart(int frameCount, boolean streaming) {
+        if(!mManager.isAutoConnectionPriority()) {
+            return;
+        }
+
+        mMessageHandler.removeCallbacks(mIdlePriorityTask);
+        if((streaming || frameCount >= PRIORITY_HIGH_MIN_FRAMES)
+                && mConnectionPriority != BLEManager.CONNECTION_PRIORITY_HIGH) {
+            requestConnectionPriority(BLEManager.CONNECTION_PRIORITY_HIGH);
+        }
+    }
+
+    /**
+     * 设置这个连接的重连策略，为空时使用{@link BLEManager#setReconnectPolicy}设置的策略
+     * */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        mReconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * 重新计算重连次数，在主线程调用
+     * */
+    public void resetRetryBudget() {
+        mCurrentTimes = 0;
+    }
+
+    private ReconnectPolicy getReconnectPolicy() {
+        ReconnectPolicy policy = mReconnectPolicy;
+        return policy != null ? policy : mManager.getReconnectPolicy();
+    }
+
+    /**
+     * 设置这个连接的回调线程，为空时使用{@link BLEManager#setCallbackExecutor}设置的线程
+     * @see CallbackExecutors
+     * */
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor;
+    }
+
+    private Executor getCallbackExecutor() {
+        Executor executor = mCallbackExecutor;
+        return executor != null ? executor : mManager.getCallbackExecutor();
+    }
+
+    /**
+     * 把收到的消息交给回调，之后回收缓冲区，在回调线程中执行
+     * */
+    private void deliverReceived(int channel, ReassemblyBuffer buffer) {
+        try {
+            CompressionStage.decode(mPayloadCodec, buffer);
+        } catch (IOException e) {
+            logd("drop message : " + e.getMessage());
+            buffer.recycle();
+            return;
+        }
+
+        BLEManager.ChannelReceiveCallback channelCallback = getChannelReceiveCallback();
+        BLEManager.BinaryReceiveCallback binaryCallback = getBinaryReceiveCallback();
+        if(channelCallback != null) {
+            channelCallback.onReceiveBytes(channel, buffer.view());
+        } else if(binaryCallback != null) {//直接把缓冲区交给回调，不做字符转换
+            binaryCallback.onReceiveBytes(buffer.view());
+        } else {
+            BLEManager.ConnectCallback callback = getConnectCallback();
+            if(callback != null) {
+                String result = new String(buffer.array(), 0, buffer.length());
+                if(BLEManager.isDebugEnabled()) {
+                    logd("result : " + result);
+                }
+                callback.onReceive(result);
+            }
+        }
+        buffer.recycle();
+    }
+
+    private BLEManager.ConnectCallback getConnectCallback() {
+        BLEManager.ConnectCallback callback = mConnectCallback;
+        return callback != null ? callback : mManager.getConnectCallback();
+    }
+
+    private BLEManager.ChannelReceiveCallback getChannelReceiveCallback() {
+        BLEManager.ChannelReceiveCallback callback = mChannelReceiveCallback;
+        return callback != null ? callback : mManager.getChannelReceiveCallback();
+    }
+
+    private BLEManager.BinaryReceiveCallback getBinaryReceiveCallback() {
+        BLEManager.BinaryReceiveCallback callback = mBinaryReceiveCallback;
+        return callback != null ? callback : mManager.getBinaryReceiveCallback();
+    }
+
+    /**
+     * 设置发送使用的帧格式
+     * @see BLEManager#setFrameFormat(int)
+     * */
+    public void setFrameFormat(int format) {
+        mFrameFormat = format;
+    }
+
+    /**
+     * 设置这个连接的压缩编码，两端协商一致之后设置，收发都经过压缩环节
+     * @param codec 为空表示不压缩
+     * @see BLEManager#setPayloadCodec(PayloadCodec)
+     * */
+    public void setPayloadCodec(PayloadCodec codec) {
+        mPayloadCodec = codec;
+    }
+
+    /**
+     * @see BLEManager#setMaxMessageSize(int)
+     * */
+    public void setMaxMessageSize(int maxMessageSize) {
+        mFrameAssembler.setMaxMessageSize(maxMessageSize);
+    }
+
+    /**
+     * @see BLEManager#setReassemblyTimeout(long)
+     * */
+    public void setReassemblyTimeout(long timeout) {
+        mFrameAssembler.setReassemblyTimeout(timeout);
+    }
+
+    /**
+     * 收到的消息中因为丢包、重复、超长等出错丢弃的数量，用于判断链路质量
+     * */
+    public int getDroppedMessageCount() {
+        return mFrameAssembler.getDroppedCount();
+    }
+
+    /**
+     * 收到一半因为超过拼包期限或者未完成的消息太多而丢弃的消息数
+     * */
+    public int getPartialMessageCount() {
+        return mFrameAssembler.getPartialCount();
+    }
+
+    /**
+     * 当前连接每个包的字节数，包含标志位
+     * */
+    public int getPacketSize() {
+        return mPacketSize;
+    }
+
+    /**
+     * @see BLEManager#setSendWindow(int)
+     * */
+    public void setSendWindow(final int window) {
+        mMessageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPacketSender.setWindow(window);
+            }
+        });
+    }
+
+    /**
+     * @see BLEManager#setWriteTimeout(long)
+     * */
+    public void setWriteTimeout(final long timeout) {
+        mMessageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPacketSender.setWriteTimeout(timeout);
+            }
+        });
+    }
+
+    /**
+     * @see BLEManager#setStreamCredits(int)
+     * */
+    public void setStreamCredits(final int credits) {
+        mMessageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPacketSender.setStreamCredits(credits);
+            }
+        });
+    }
+
+    /**
+     * 设置这个连接的发送队列，{@link SendQueue#OVERFLOW_BLOCK}只阻塞工作线程，主线程中按拒绝处理
+     * @see BLEManager#setSendQueue(int, int)
+     * */
+    public void setSendQueue(int capacity, int overflowPolicy) {
+        mChannelSender.setSendQueue(capacity, overflowPolicy);
+    }
+
+    /**
+     * @see BLEManager#setStreamInterval(long)
+     * */
+    public void setStreamInterval(final long interval) {
+        mMessageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPacketSender.setStreamInterval(interval);
+            }
+        });
+    }
+
+    /**
+     * 连接设备，会先关闭这个设备之前的gatt
+     * */
+    void connect() {
+        logd("[connect] connect to device : " + mDevice.getAddress());
+        logd("[state] " + mStateMachine.set(STATE_CONNECTING) + " -> " + STATE_CONNECTING);
+        final int generation = mConnectGeneration.incrementAndGet();
+        mMainHandler.removeMessages(MESSAGE_RETRY);
+        mMainHandler.removeMessages(MESSAGE_CONN_ERROR);
+
+        //之前的gatt都关闭之后再连接，不需要固定等待。重试状态在主线程中重置
+        stopConnection(new BLEManager.CloseCallback() {
+            @Override
+            public void onClosed() {
+                if(isCurrentAttempt(generation)) {
+                    mCurrentTimes = 0;
+                    mAutoConnecting = false;
+                    realConnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * 关闭旧gatt的过程中没有再次connect或者disconnect
+     * */
+    private boolean isCurrentAttempt(int generation) {
+        return generation == mConnectGeneration.get() && mStateMachine.getState() == STATE_CONNECTING;
+    }
+
+    /**
+     * 状态已经回到连接中，交给主线程按重连策略重试
+     * @param disconnectedGatt 已经断开的gatt，可以直接关闭；还连着的gatt为null，重试前先断开
+     * */
+    private void postConnectionError(BluetoothGatt disconnectedGatt, int status) {
+        Message msg = Message.obtain();
+        msg.what = MESSAGE_CONN_ERROR;
+        msg.arg1 = status;
+        msg.obj = disconnectedGatt;
+        mMainHandler.sendMessage(msg);
+    }
+
+    /**
+     * 重试连接
+     * */
+    private void retryConnect(BluetoothGatt disconnectedGatt, int errorCode) {
+        if(mStateMachine.getState() != STATE_CONNECTING) {//主动断开连接，不再重试
+            return;
+        }
+
+        logd("[retryConnect] reconnect device : " + mDevice.getAddress() + ", errorCode = " + errorCode);
+        //已经断开的gatt直接关闭，不需要等待断开回调
+        if(disconnectedGatt != null) {
+            synchronized (mBluetoothGattSet) {
+                if(mBluetoothGattSet.remove(disconnectedGatt)) {
+                    mClosingGattSet.add(disconnectedGatt);
+                }
+            }
+            closeGatt(disconnectedGatt, false);
+        }
+        final int generation = mConnectGeneration.get();
+        if(!mAutoConnecting && mCurrentTimes > 0 && mManager.getConnectMode() == BLEManager.CONNECT_MODE_AUTO_FALLBACK) {
+            //直接连接重试一次仍然失败，转为后台自动连接，设备回到范围内时由协议栈连接，不占用重连次数
+            logd("[retryConnect] fall back to auto connect");
+            mAutoConnecting = true;
+            mMainHandler.removeMessages(MESSAGE_RETRY);
+            stopConnection(new BLEManager.CloseCallback() {
+                @Override
+                public void onClosed() {
+                    if(isCurrentAttempt(generation)) {
+                        realConnect();
+                    }
+                }
+            });
+            return;
+        }
+
+        final long delay = getReconnectPolicy().getRetryDelay(++mCurrentTimes, errorCode);
+        if(delay >= 0) {
+            logd("[retryConnect] try time = " + mCurrentTimes + ", delay = " + delay);
+            mMainHandler.removeMessages(MESSAGE_RETRY);
+            stopConnection(new BLEManager.CloseCallback() {
+                @Override
+                public void onClosed() {
+                    if(isCurrentAttempt(generation)) {
+                        mMainHandler.sendEmptyMessageDelayed(MESSAGE_RETRY, delay);
+                    }
+                }
+            });
+        } else {
+            if(!transition(STATE_CONNECTING, STATE_DISCONNECTED)) {//同时调用了disconnect
+                return;
+            }
+            stopConnection(null);
+            logd("connect failed with try out");
+            mMainHandler.removeMessages(MESSAGE_CONN_FAILED);
+            mMainHandler.sendEmptyMessage(MESSAGE_CONN_FAILED);
+        }
+    }
+
+    /**
+     * 真正的连接设备调用
+     * */
+    private void realConnect() {
+        boolean autoConnect = mAutoConnecting;
+        int transport = mManager.getTransport();
+        int phy = mManager.getConnectPhy();
+        logd("[realConnect] autoConnect = " + autoConnect + ", transport = " + transport + ", phy = " + phy);
+
+        BluetoothGatt gatt = null;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && phy != BLEManager.PHY_LE_1M_MASK) {
+            gatt = connectGattWithPhy(autoConnect, transport, phy);
+        }
+        if(gatt == null) {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                gatt = mDevice.connectGatt(BLEManager.getContext(), autoConnect, mBluetoothGattCallback, transport);
+            } else {
+                gatt = mDevice.connectGatt(BLEManager.getContext(), autoConnect, mBluetoothGattCallback);
+            }
+        }
+
+        if(gatt != null) {//连接还没有结果时也能关闭
+            synchronized (mBluetoothGattSet) {
+                mBluetoothGattSet.add(gatt);
+            }
+
+            if(mStateMachine.getState() != STATE_CONNECTING) {//发起连接的同时其它线程调用了disconnect，这个gatt也要关闭
+                stopConnection(null);
+            }
+        }
+    }
+
+    /**
+     * Android 8.0的connectGatt可以指定PHY，编译版本没有这个接口，通过反射调用
+     * @return 调用失败返回null
+     * */
+    private BluetoothGatt connectGattWithPhy(boolean autoConnect, int transport, int phy) {
+        try {
+            Method method = BluetoothDevice.class.getMethod("connectGatt", Context.class, boolean.class,
+                    BluetoothGattCallback.class, int.class, int.class);
+            return (BluetoothGatt) method.invoke(mDevice, BLEManager.getContext(), autoConnect,
+                    mBluetoothGattCallback, transport, phy);
+        } catch (Exception e) {
+            e.printStackTrace();
+            logd("[connectGattWithPhy] failed, phy = " + phy);
+            return null;
+        }
+    }
+
+    /**
+     * 请求更大的MTU，Android 5.0以上才支持，结果在onMtuChanged中返回
+     * */
+    private boolean requestMtu(BluetoothGatt gatt) {
+        int preferredMtu = mManager.getPreferredMtu();
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && preferredMtu > BLEDataUtil.DEFAULT_PACKET_SIZE + BLEDataUtil.ATT_HEADER_SIZE) {
+            boolean success = gatt.requestMtu(preferredMtu);
+            logd("[requestMtu] mtu = " + preferredMtu + ", success = " + success);
+            return success;
+        }
+        return false;
+    }
+
+    /**
+     * 订阅和MTU协商都完成(或者MTU协商失败、超时)，切换到就绪并通知回调。
+     * 在GATT回调线程或者主线程中调用，只有第一次调用生效
+     * */
+    private void onLinkReady() {
+        int action = mStateMachine.onSubscribed(true);
+        logd("[state] " + mStateMachine.getState() + ", action = " + action);
+        if(action != ConnectionStateMachine.ACTION_READY) {//已经就绪或者已经断开
+            return;
+        }
+
+        mMainHandler.removeMessages(MESSAGE_MTU_TIMEOUT);
+        postServiceReady(true);
+
+        if(mManager.isPrefer2MPhy()) {
+            setPreferredPhy(BLEManager.PHY_LE_2M_MASK, BLEManager.PHY_LE_2M_MASK, 0);
+        }
+    }
+
+    private void postServiceReady(boolean ready) {
+        Message msg = Message.obtain();
+        msg.what = MESSAGE_SERVICE_READY;
+        msg.obj = ready;
+        mMainHandler.sendMessage(msg);
+    }
+
+    /**
+     * 发送数据
+     * @param data 数据
+     * @return 发送结果，所有包都确认之后送达
+     * */
+    public SendFuture sendData(final String data) {
+        return sendData(data, false);
+    }
+
+    /**
+     * 发送数据
+     * @param data 数据
+     * @param streaming true 流模式，用于固件、日志等大量数据：除最后一个包外都使用无应答写入，
+     *                  最后一个包有应答，确认之后才算送达
+     * */
+    public SendFuture sendData(final String data, boolean streaming) {
+        return sendData(data, streaming, 0);
+    }
+
+    /**
+     * 发送数据
+     * @param timeout 期限，从调用时开始计算，包括排队时间，单位毫秒，0表示不限制
+     * */
+    public SendFuture sendData(final String data, boolean streaming, long timeout) {
+        return sendData(data, streaming, timeout, SendQueue.PRIORITY_NORMAL, null);
+    }
+
+    /**
+     * 发送数据
+     * @param priority 优先级{@link SendQueue#PRIORITY_HIGH}, {@link SendQueue#PRIORITY_NORMAL}, {@link SendQueue#PRIORITY_LOW}
+     * @param coalesceKey 合并key，替换队列中还未开始发送的同key消息，为空不合并
+     * */
+    public SendFuture sendData(final String data, boolean streaming, long timeout, int priority, Object coalesceKey) {
+        return postSend(data, 0, streaming, timeout, priority, coalesceKey);
+    }
+
+    /**
+     * 发送二进制数据，不做字符转换。旧格式会去掉结尾的0x00，
+     * 二进制数据应该配合{@link BLEDataUtil#FORMAT_LENGTH_PREFIXED}使用
+     * @param data 数据，发送完成之前不能修改
+     * */
+    public SendFuture sendData(final byte[] data) {
+        return sendData(data, false);
+    }
+
+    /**
+     * 发送二进制数据
+     * @param data 数据，发送完成之前不能修改
+     * @param streaming true 流模式
+     * */
+    public SendFuture sendData(final byte[] data, boolean streaming) {
+        return sendData(data, streaming, 0);
+    }
+
+    /**
+     * 发送二进制数据
+     * @param timeout 期限，从调用时开始计算，包括排队时间，单位毫秒，0表示不限制
+     * */
+    public SendFuture sendData(final byte[] data, boolean streaming, long timeout) {
+        return sendData(data, streaming, timeout, SendQueue.PRIORITY_NORMAL, null);
+    }
+
+    /**
+     * 发送二进制数据
+     * @param priority 优先级{@link SendQueue#PRIORITY_HIGH}, {@link SendQueue#PRIORITY_NORMAL}, {@link SendQueue#PRIORITY_LOW}
+     * @param coalesceKey 合并key，替换队列中还未开始发送的同key消息，为空不合并
+     * */
+    public SendFuture sendData(final byte[] data, boolean streaming, long timeout, int priority, Object coalesceKey) {
+        return postSend(data, 0, streaming, timeout, priority, coalesceKey);
+    }
+
+    /**
+     * 在逻辑通道上发送二进制数据，每个通道有自己的发送队列，对端按通道分别拼包。
+     * 用到多个通道之后长消息分段发送，段之间轮到其它通道。需要长度前缀格式或者选择重传格式，旧格式按通道0发送
+     * @param channel 通道号，0~{@link BLEDataUtil#MAX_CHANNEL}，0和不带通道的发送相同
+     * */
+    public SendFuture sendData(int channel, final byte[] data, boolean streaming, long timeout, int priority, Object coalesceKey) {
+        if(channel < 0 || channel > BLEDataUtil.MAX_CHANNEL) {
+            return SendFuture.completed(SendFuture.RESULT_FAILED);
+        }
+        if(mFrameFormat == BLEDataUtil.FORMAT_LEGACY) {//旧格式的包不带通道号，和通道0共用一个队列，按顺序整个发送
+            channel = 0;
+        }
+        return postSend(data, channel, streaming, timeout, priority, coalesceKey);
+    }
+
+    /**
+     * 发送ByteBuffer中剩余的数据，不改变ByteBuffer的position
+     * */
+    public SendFuture sendData(final ByteBuffer data) {
+        return sendData(data, false);
+    }
+
+    /**
+     * 发送ByteBuffer中剩余的数据，不改变ByteBuffer的position
+     * @param streaming true 流模式
+     * */
+    public SendFuture sendData(final ByteBuffer data, boolean streaming) {
+        return sendData(data, streaming, 0);
+    }
+
+    /**
+     * 发送ByteBuffer中剩余的数据，不改变ByteBuffer的position
+     * @param timeout 期限，从调用时开始计算，包括排队时间，单位毫秒，0表示不限制
+     * */
+    public SendFuture sendData(final ByteBuffer data, boolean streaming, long timeout) {
+        if(data == null) {
+            return SendFuture.completed(SendFuture.RESULT_FAILED);
+        }
+
+        byte[] bytes;
+        if(data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+                && data.remaining() == data.array().length) {
+            bytes = data.array();
+        } else {
+            bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+        }
+        return postSend(bytes, 0, streaming, timeout, SendQueue.PRIORITY_NORMAL, null);
+    }
+
+    /**
+     * 把数据交给发送线程
+     * @param data String或者byte[]
+     * */
+    private SendFuture postSend(Object data, int channel, boolean streaming, long timeout, int priority, Object coalesceKey) {
+        long deadline = timeout > 0 ? SystemClock.uptimeMillis() + timeout : 0;
+        SendFuture future = new SendFuture(data, streaming, deadline, priority, coalesceKey, channel,
+                getCallbackExecutor(), mSendCallback);
+        future.setCanceller(mCanceller);
+
+        //在发送线程中阻塞会导致队列永远不会变空，在主线程中阻塞可能ANR，都按拒绝处理
+        Looper looper = Looper.myLooper();
+        boolean mayBlock = looper != mMessageHandler.getLooper() && looper != Looper.getMainLooper();
+        if(mChannelSender.offer(future, mayBlock)) {
+            scheduleSend();
+        }
+        return future;
+    }
+
+    /**
+     * 通知发送线程从队列中取消息，已经有通知还没处理时不重复投递
+     * */
+    private void scheduleSend() {
+        if(!mMessageHandler.hasMessages(MESSAGE_SEND)) {
+            mMessageHandler.sendEmptyMessage(MESSAGE_SEND);
+        }
+    }
+
+    /**
+     * 编码从队列中取出的消息，连接不可用时直接失败，在发送线程中调用
+     * @return 编码好的包，由{@link ChannelSender}分段交给发送器
+     * */
+    private FrameEncoder encodeFrames(SendFuture future) {
+        if(future.isCancelRequested()) {
+            future.mSendCallback.onSendComplete(PacketSender.RESULT_CANCELLED);
+            return null;
+        }
+        if(mStateMachine.getState() != STATE_READY) {
+            future.mSendCallback.onSendComplete(PacketSender.RESULT_FAILED);
+            return null;
+        }
+
+        byte[] bytes = null;
+        if(future.mData instanceof byte[]) {
+            bytes = (byte[]) future.mData;
+            if(BLEManager.isDebugEnabled()) {
+                logd("send bytes : " + bytes.length);
+            }
+        } else if(!TextUtils.isEmpty((String) future.mData)) {
+            if(BLEManager.isDebugEnabled()) {
+                logd("send message : " + future.mData);
+            }
+            try {
+                bytes = ((String) future.mData).getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+            }
+        }
+        future.mData = null;
+
+        if(bytes == null || bytes.length == 0) {
+            future.mSendCallback.onSendComplete(PacketSender.RESULT_FAILED);
+            return null;
+        }
+
+        int format = mFrameFormat;
+        bytes = CompressionStage.encode(mPayloadCodec, bytes, format);
+        FrameEncoder frames = FrameEncoder.obtain(bytes, format, mPacketSize, future.mChannel);
+        if(format == BLEDataUtil.FORMAT_SELECTIVE_REPEAT) {
+            if(frames.frameCount() > BLEDataUtil.MAX_SELECTIVE_FRAMES) {//2字节的序号放不下
+                logd("message too large for selective repeat : " + bytes.length);
+                frames.release();
+                future.mSendCallback.onSendComplete(PacketSender.RESULT_FAILED);
+                return null;
+            }
+            frames.setMessageId(mNextMessageId++);
+        }
+        onTransferStart(frames.frameCount(), future.mStreaming);
+        return frames;
+    }
+
+    /**
+     * 在队列中最早的期限到达时检查，只在最早的期限变化时重新投递，在发送线程中调用
+     * */
+    private void scheduleQueueExpire() {
+        long earliest = mChannelSender.earliestDeadline();
+        if(earliest == mQueueExpireAt) {
+            return;
+        }
+
+        mMessageHandler.removeCallbacks(mQueueExpireTask);
+        mQueueExpireAt = earliest;
+        if(earliest != 0) {
+            mMessageHandler.postDelayed(mQueueExpireTask, Math.max(0, earliest - SystemClock.uptimeMillis()));
+        }
+    }
+
+    /**
+     * 写入一个包，在发送线程中调用
+     * @param withResponse true 有应答写入 false 无应答写入，特征值不支持时退回有应答写入
+     * @return true 已提交给协议栈
+     * */
+    private boolean writeCharacteristic(byte[] packet, boolean withResponse) {
+        BluetoothGatt gatt = mCurrentBluetoothGatt;
+        if(gatt == null || isClosed()) {
+            return false;
+        }
+
+        BluetoothGattCharacteristic characteristic = selectCharacteristic(packet);
+        if(characteristic == null) {
+            return false;
+        }
+
+        if(!withResponse && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        } else {
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        }
+        //writeCharacteristic会同步拷贝数据，packet返回之后可以复用
+        characteristic.setValue(packet);
+        if(gatt.writeCharacteristic(characteristic)) {
+            if(BLEManager.isDebugEnabled()) {
+                logd("Write Success, DATA: " + Arrays.toString(packet));
+            }
+            return true;
+        }
+
+        if(BLEManager.isDebugEnabled()) {
+            logd("Write failed, DATA: " + Arrays.toString(packet));
+        }
+        return false;
+    }
+
+    /**
+     * 选择写入的特征值，见{@link BLEDataUtil#stripeIndex}。
+     * 写入仍然按发送窗口逐个提交给协议栈，轮转不会提高吞吐量
+     * */
+    private BluetoothGattCharacteristic selectCharacteristic(byte[] packet) {
+        BluetoothGattCharacteristic[] characteristics = mCharacteristics;
+        int index = BLEDataUtil.stripeIndex(packet, mNextCharacteristic,
+                characteristics != null ? characteristics.length : 0);
+        if(index < 0) {
+            return mCharacteristic;
+        }
+
+        mNextCharacteristic = index + 1;
+        return characteristics[index];
+    }
+
+    /**
+     * 主动断开连接，不再重试
+     * */
+    public void disconnect() {
+        disconnect(null);
+    }
+
+    /**
+     * 主动断开连接，不再重试
+     * @param callback 所有gatt关闭之后在主线程回调，可以为空
+     * */
+    public void disconnect(final BLEManager.CloseCallback callback) {
+        logd("[disconnect]");
+        logd("[state] " + mStateMachine.set(STATE_CLOSING) + " -> " + STATE_CLOSING);
+        //让等待关闭旧gatt的connect失效
+        mConnectGeneration.incrementAndGet();
+
+        /*移除连接相关的消息，关闭gatt的消息需要保留*/
+        mMainHandler.removeMessages(MESSAGE_RETRY);
+        mMainHandler.removeMessages(MESSAGE_CONN_ERROR);
+        mMainHandler.removeMessages(MESSAGE_CONN_FAILED);
+        mMainHandler.removeMessages(MESSAGE_SERVICE_READY);
+        mMainHandler.removeMessages(MESSAGE_MTU_TIMEOUT);
+
+        final int generation = mConnectGeneration.get();
+        stopConnection(new BLEManager.CloseCallback() {
+            @Override
+            public void onClosed() {
+                //关闭期间没有再次connect时才算断开完成
+                if(generation == mConnectGeneration.get()) {
+                    transition(STATE_CLOSING, STATE_DISCONNECTED);
+                }
+                if(callback != null) {
+                    callback.onClosed();
+                }
+            }
+        });
+    }
+
+    /**
+     * 断开这个设备所有的gatt，不阻塞调用线程。
+     * 每个gatt在收到断开回调之后关闭，最多等待{@link #CLOSE_TIMEOUT}
+     * @param callback 所有gatt关闭之后在主线程回调，可以为空
+     * */
+    void stopConnection(final BLEManager.CloseCallback callback) {
+        logd("[stopConnection]");
+        mCurrentBluetoothGatt = null;
+        mCharacteristic = null;
+        mCharacteristics = null;
+        //丢弃还未发送完的数据和队列中的消息，都以失败结束
+        mMessageHandler.sendEmptyMessage(MESSAGE_SEND_CLEAR);
+
+        boolean closed;
+        synchronized (mBluetoothGattSet) {
+            Iterator<BluetoothGatt> iterator = mBluetoothGattSet.iterator();
+            while(iterator.hasNext()) {
+                BluetoothGatt gatt = iterator.next();
+                if(!mClosingGattSet.add(gatt)) {
+                    continue;
+                }
+
+                //try...catch放在while循环中，保证让所有的gatt都断开，即使其中一个断开异常
+                try {
+                    logd("disconnect gatt : " + gatt);
+                    gatt.disconnect();
+                    Method e = BluetoothGatt.class.getMethod("refresh", new Class[0]);
+                    if(e != null) {
+                        boolean success = ((Boolean)e.invoke(gatt, new Object[0])).booleanValue();
+                        logd("Refreshing result: " + success);
+                    }
+                }catch (Exception e) {
+                    e.printStackTrace();
+                    logd("disconnect 失败 gatt:" + gatt);
+                }
+
+                Message msg = Message.obtain();
+                msg.what = MESSAGE_CLOSE_TIMEOUT;
+                msg.obj = gatt;
+                mMainHandler.sendMessageDelayed(msg, CLOSE_TIMEOUT);
+            }
+
+            mBluetoothGattSet.clear();
+
+            closed = mClosingGattSet.isEmpty();
+            if(!closed && callback != null) {
+                mCloseCallbacks.add(callback);
+            }
+        }
+
+        if(closed && callback != null) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onClosed();
+                }
+            });
+        }
+    }
+
+    /**
+     * 关闭已经断开或者等待超时的gatt，在主线程中调用
+     * */
+    private void closeGatt(BluetoothGatt gatt, boolean timeout) {
+        ArrayList<BLEManager.CloseCallback> callbacks = null;
+        synchronized (mBluetoothGattSet) {
+            if(!mClosingGattSet.remove(gatt)) {
+                return;
+            }
+
+            mMainHandler.removeMessages(MESSAGE_CLOSE_TIMEOUT, gatt);
+            try {
+                logd("close gatt : " + gatt + ", timeout = " + timeout);
+                gatt.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+                logd("close 失败 gatt:" + gatt);
+            }
+
+            if(mClosingGattSet.isEmpty() && !mCloseCallbacks.isEmpty()) {
+                callbacks = new ArrayList<>(mCloseCallbacks);
+                mCloseCallbacks.clear();
+            }
+        }
+
+        if(callbacks != null) {
+            for(BLEManager.CloseCallback callback : callbacks) {
+                callback.onClosed();
+            }
+        }
+    }
+
+    private void logd(String message) {
+        BLEManager.logd("[" + mDevice.getAddress() + "] " + message);
+    }
+}
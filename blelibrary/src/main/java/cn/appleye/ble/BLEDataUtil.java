@@ -10,52 +10,137 @@ public class BLEDataUtil {
     /**最大发送20个字节，但是首个字节由标志位占用*/
     private static final int MAX_SIZE = 18;
 
+    /**默认包大小，即未协商MTU时每个包的字节数*/
+    public static final int DEFAULT_PACKET_SIZE = MAX_SIZE + 1;
+
+    /**ATT协议头占用的字节数，包大小 = MTU - ATT_HEADER_SIZE*/
+    public static final int ATT_HEADER_SIZE = 3;
+
     /**开始标志*/
-    private static final byte START_BYTE = 0x01;
+    static final byte START_BYTE = 0x01;
     /**继续标志*/
-    private static final byte CONTINUE_BYTE = 0x02;
+    static final byte CONTINUE_BYTE = 0x02;
     /**结束标志*/
-    private static final byte END_BYTE = 0x00;
+    static final byte END_BYTE = 0x00;
+
+    /**帧格式：旧的开始/继续/结束标志，结尾补0，只适合文本数据*/
+    public static final int FORMAT_LEGACY = 0;
+
+    /**帧格式：首包带总长度，每个包带序号，可以传输任意二进制数据*/
+    public static final int FORMAT_LENGTH_PREFIXED = 1;
+
+    /**长度前缀格式的标志位，旧格式的标志位都小于0x80，据此区分两种格式*/
+    static final byte FLAG_FRAMED = (byte) 0x80;
+
+    /**长度前缀格式的首包标志*/
+    static final byte FLAG_FIRST = 0x40;
+
+    /**长度前缀格式的帧头：1字节标志 + 2字节序号*/
+    static final int FRAME_HEADER_SIZE = 3;
+
+    /**长度前缀格式的首包帧头：帧头 + 4字节总长度*/
+    static final int FIRST_HEADER_SIZE = FRAME_HEADER_SIZE + 4;
 
     /**
-     * 字符串转为二维字节数组
+     * 帧格式：选择重传，每个包带消息ID、序号和总包数，接收端回复收到的包的位图，
+     * 发送端只重发丢失的包，不再从头重发整个消息。需要设备端实现同样的协议
      * */
-    public static byte[][] encode(String strData) {
-        try{
-            byte[] originData = strData.getBytes("UTF-8");
-            int size = (int)Math.ceil(originData.length / (MAX_SIZE*1.0));
-            byte[][] data = new byte[size][MAX_SIZE+1];
-
-            int start = 0;
-            int end = 0;
-            int index  = 0;
-            while(index < size) {
-                index ++ ;
-                if(index == size) {
-                    data[index-1][0] = END_BYTE;
-                } else if(index == 1) {
-                    data[index-1][0] = START_BYTE;
-                } else {
-                    data[index-1][0] = CONTINUE_BYTE;
-                }
+    public static final int FORMAT_SELECTIVE_REPEAT = 2;
 
-                end = Math.min(start + MAX_SIZE, originData.length);
-                System.arraycopy(originData, start, data[index-1], 1, end - start);
+    /**选择重传格式的标志，和FLAG_FRAMED一起使用*/
+    static final byte FLAG_SELECTIVE = 0x20;
 
-                start = end;
-            }
+    /**选择重传格式中要求接收端回复状态的包，每一轮发送的最后一个包都带这个标志*/
+    static final byte FLAG_POLL = 0x10;
 
-            return data;
+    /**选择重传格式中接收端回复的状态包*/
+    static final byte FLAG_STATUS = 0x08;
+
+    /**选择重传格式的帧头：1字节标志 + 1字节消息ID + 2字节序号 + 2字节总包数*/
+    static final int SELECTIVE_HEADER_SIZE = 6;
+
+    /**选择重传格式一个消息的最大包数，序号和总包数都只有2字节，超过之后接收端会拼错*/
+    static final int MAX_SELECTIVE_FRAMES = 0xFFFF;
+
+    /**状态包的帧头：1字节标志 + 1字节消息ID + 2字节第一个缺失的序号，之后是位图*/
+    static final int STATUS_HEADER_SIZE = 4;
+
+    /**状态包位图的最大字节数，保证未协商MTU时也能放进一个包*/
+    static final int STATUS_MAX_BITMAP = DEFAULT_PACKET_SIZE - STATUS_HEADER_SIZE - 1;
+
+    /**
+     * 带逻辑通道的包，标志字节之后是1字节通道号，再之后是原来的帧头。
+     * 只有长度前缀格式和选择重传格式支持，通道0不带通道号，和之前的包相同
+     * */
+    static final byte FLAG_CHANNEL = 0x04;
+
+    /**通道号占用的字节数*/
+    static final int CHANNEL_HEADER_SIZE = 1;
+
+    /**最大通道号*/
+    public static final int MAX_CHANNEL = 255;
+
+    /**
+     * 按照协商后的MTU计算包大小
+     * @param mtu 协商后的MTU
+     * */
+    public static int packetSizeForMtu(int mtu) {
+        return Math.max(DEFAULT_PACKET_SIZE, mtu - ATT_HEADER_SIZE);
+    }
+
+    /**
+     * 字符串按指定的包大小转为二维字节数组，除了最后一个包，每个包都是packetSize个字节，
+     * 最后一个包只保留实际的数据，不再补0
+     * @param strData 数据
+     * @param packetSize 包大小，包含标志位，通常是MTU - 3
+     * */
+    public static byte[][] encode(String strData, int packetSize) {
+        return encode(strData, packetSize, FORMAT_LEGACY);
+    }
+
+    /**
+     * 字符串按指定的包大小和帧格式转为二维字节数组
+     * @param strData 数据
+     * @param packetSize 包大小，包含帧头，通常是MTU - 3
+     * @param format 帧格式{@link #FORMAT_LEGACY}或者{@link #FORMAT_LENGTH_PREFIXED}
+     * */
+    public static byte[][] encode(String strData, int packetSize, int format) {
+        try{
+            return encode(strData.getBytes("UTF-8"), packetSize, format);
         }catch(Exception e){
             e.printStackTrace();
         }
 
         return null;
+    }
+
+    /**
+     * 字节数组按指定的包大小和帧格式转为二维字节数组，逐个包发送时请使用{@link FrameEncoder}
+     * @param originData 数据
+     * @param packetSize 包大小，包含帧头，通常是MTU - 3
+     * @param format 帧格式{@link #FORMAT_LEGACY}或者{@link #FORMAT_LENGTH_PREFIXED}
+     * */
+    public static byte[][] encode(byte[] originData, int packetSize, int format) {
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.reset(originData, 0, originData.length, format, packetSize);
+        byte[][] data = new byte[encoder.frameCount()][];
+        for(int index = 0; index < data.length; index++) {
+            data[index] = encoder.frame(index).clone();
+        }
 
+        return data;
     }
 
     /**
-     * 字节拼接
+     * 字符串转为二维字节数组
+     * */
+    public static byte[][] encode(String strData) {
+        return encode(strData, DEFAULT_PACKET_SIZE, FORMAT_LEGACY);
+    }
+
+    /**
+     * 字节拼接，每个包的大小由包本身决定，与协商的MTU无关。
+     * 每次都会拷贝之前的所有数据，大量数据请使用{@link #decode(byte[], ReassemblyBuffer)}
      * */
     public static byte[] decode(byte[] data, byte[] result) {
 
@@ -89,6 +174,165 @@ public class BLEDataUtil {
         return tempResult;
     }
 
+    /**
+     * 字节拼接到缓冲区，每个包只拷贝一次，整个消息的拼接是线性复杂度
+     * @param data 收到的包
+     * @param buffer 拼包缓冲区，开始包会清空之前的数据
+     * @return 是否是结尾包，是的话缓冲区中就是完整的数据
+     * */
+    public static boolean decode(byte[] data, ReassemblyBuffer buffer) {
+        if(isStart(data)) {
+            buffer.reset();
+        }
+
+        buffer.append(data, 1, data.length - 1);
+
+        if(isEnd(data)) {
+            //去掉结尾的0x00字符，避免转换成字符串乱码
+            buffer.trimTrailingZeros();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * 是否是长度前缀格式的包
+     * */
+    public static boolean isLengthPrefixed(byte[] data) {
+        return data.length > 0 && (data[0] & FLAG_FRAMED) != 0;
+    }
+
+    /**
+     * 多个数据特征值时包写入哪一个：带帧头的包有序号，按轮转写入各个特征值；旧格式的包没有序号，只写入第一个。
+     * Android每个连接同时只能有一个GATT操作在途，所有特征值共用同一个ATT承载，轮转不会增加并行度，
+     * 同一个连接上的写入和通知也不会乱序，只是让外设可以把各个特征值交给不同的处理队列
+     * @param turn 已经轮转写入的包数
+     * @param count 特征值个数
+     * @return 特征值下标，不参与轮转时返回-1，这个包不占用轮转次数
+     * */
+    static int stripeIndex(byte[] packet, int turn, int count) {
+        if(count < 2 || !isLengthPrefixed(packet)) {
+            return -1;
+        }
+        return turn % count;
+    }
+
+    /**
+     * 是否是选择重传格式的包，包括数据包和状态包
+     * */
+    public static boolean isSelectiveRepeat(byte[] data) {
+        return data.length > 0 && (data[0] & (FLAG_FRAMED | FLAG_SELECTIVE)) == (FLAG_FRAMED | FLAG_SELECTIVE);
+    }
+
+    /**
+     * 是否是选择重传格式中接收端回复的状态包
+     * */
+    public static boolean isStatusFrame(byte[] data) {
+        return isSelectiveRepeat(data) && (data[0] & FLAG_STATUS) != 0
+                && data.length >= STATUS_HEADER_SIZE + (hasChannel(data) ? CHANNEL_HEADER_SIZE : 0);
+    }
+
+    /**
+     * 是否带逻辑通道号
+     * */
+    public static boolean hasChannel(byte[] data) {
+        return data.length > CHANNEL_HEADER_SIZE && (data[0] & (FLAG_FRAMED | FLAG_CHANNEL)) == (FLAG_FRAMED | FLAG_CHANNEL);
+    }
+
+    /**
+     * 包所属的逻辑通道，不带通道号的包属于通道0
+     * */
+    public static int frameChannel(byte[] data) {
+        return hasChannel(data) ? data[1] & 0xFF : 0;
+    }
+
+    /**
+     * 去掉通道号，得到原来格式的包，不带通道号时直接返回原数组
+     * */
+    static byte[] stripChannel(byte[] data) {
+        if(!hasChannel(data)) {
+            return data;
+        }
+
+        byte[] frame = new byte[data.length - CHANNEL_HEADER_SIZE];
+        frame[0] = (byte) (data[0] & ~FLAG_CHANNEL);
+        System.arraycopy(data, 1 + CHANNEL_HEADER_SIZE, frame, 1, frame.length - 1);
+        return frame;
+    }
+
+    /**
+     * 给包加上通道号，通道0直接返回原数组
+     * */
+    static byte[] addChannel(byte[] frame, int channel) {
+        if(channel == 0) {
+            return frame;
+        }
+
+        byte[] data = new byte[frame.length + CHANNEL_HEADER_SIZE];
+        data[0] = (byte) (frame[0] | FLAG_CHANNEL);
+        data[1] = (byte) channel;
+        System.arraycopy(frame, 1, data, 1 + CHANNEL_HEADER_SIZE, frame.length - 1);
+        return data;
+    }
+
+    /**
+     * 选择重传格式的消息ID，数据包和状态包相同
+     * */
+    static int selectiveMessageId(byte[] data) {
+        return data[1] & 0xFF;
+    }
+
+    /**
+     * 选择重传格式数据包的序号，状态包中是第一个缺失的序号
+     * */
+    static int selectiveSequence(byte[] data) {
+        return ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+    }
+
+    /**
+     * 选择重传格式数据包的总包数
+     * */
+    static int selectiveFrameCount(byte[] data) {
+        return ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+    }
+
+    /**
+     * 状态包中序号为sequence的包是否已收到。
+     * 第一个缺失的序号之前都已收到，位图的第i位表示序号base + 1 + i，超出位图的都按缺失处理
+     * */
+    static boolean statusReceived(byte[] status, int sequence) {
+        int base = selectiveSequence(status);
+        if(sequence < base) {
+            return true;
+        }
+
+        int bit = sequence - base - 1;
+        int index = STATUS_HEADER_SIZE + bit / 8;
+        return bit >= 0 && index < status.length && (status[index] & (1 << (bit % 8))) != 0;
+    }
+
+    /**
+     * 是否是长度前缀格式的首包
+     * */
+    static boolean isFirstFrame(byte[] data) {
+        return (data[0] & FLAG_FIRST) != 0 && data.length >= FIRST_HEADER_SIZE;
+    }
+
+    /**
+     * 长度前缀格式的包序号
+     * */
+    static int frameSequence(byte[] data) {
+        return ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+    }
+
+    /**
+     * 长度前缀格式首包中的总长度
+     * */
+    static int frameTotalLength(byte[] data) {
+        return ((data[3] & 0xFF) << 24) | ((data[4] & 0xFF) << 16) | ((data[5] & 0xFF) << 8) | (data[6] & 0xFF);
+    }
+
     /**
      * 是否是开头
      * */
@@ -5,7 +5,6 @@ import android.app.Application;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
@@ -13,16 +12,17 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Message;
-import android.os.SystemClock;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author liuliaopu
@@ -55,168 +55,207 @@ public class BLEManager {
     private static volatile Context sContext;
 
     /**
-     * 服务UUID
+     * 服务UUID，install时解析一次
      * */
-    private static String sServiceUUID;
+    private static UUID sServiceUUID;
 
     /**
-     * 特征值UUID
+     * 数据特征值UUID，install时解析一次，第一个是主特征值
      * */
-    private static String sCharacteristicUUID;
+    private static UUID[] sCharacteristicUUIDs;
 
     /**
-     * 发送消息
+     * 连接后请求的MTU，最大517
      * */
-    private static final int MESSAGE_SEND = 1000;
+    private static final int PREFERRED_MTU = 517;
 
     /**
-     * 重试连接
+     * 只直接连接，失败之后按重连策略重试
      * */
-    private static final int MESSAGE_RETRY = 1001;
+    public static final int CONNECT_MODE_DIRECT = 0;
 
     /**
-     * 连接错误消息
+     * 先直接连接，失败之后转为autoConnect后台连接，设备回到范围内时由协议栈连接，默认值
      * */
-    private static final int MESSAGE_CONN_ERROR = 1002;
+    public static final int CONNECT_MODE_AUTO_FALLBACK = 1;
 
     /**
-     * 连接失败消息
+     * 与BluetoothDevice.TRANSPORT_*一致，Android 6.0以上生效
      * */
-    private static final int MESSAGE_CONN_FAILED = 1003;
+    public static final int TRANSPORT_AUTO = 0;
+    public static final int TRANSPORT_BREDR = 1;
+    public static final int TRANSPORT_LE = 2;
 
     /**
-     * 连接成功消息
+     * 与BluetoothDevice.PHY_LE_*_MASK一致，Android 8.0以上生效
      * */
-    private static final int MESSAGE_CONN_SUCCESS = 1004;
+    public static final int PHY_LE_1M_MASK = 1;
+    public static final int PHY_LE_2M_MASK = 2;
+    public static final int PHY_LE_CODED_MASK = 4;
 
     /**
-     * 服务准备好的消息
+     * 与BluetoothDevice.PHY_LE_*一致，PHY变化时回调的值
      * */
-    private static final int MESSAGE_SERVICE_READY = 1005;
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+    public static final int PHY_LE_CODED = 3;
 
     /**
-     * 收到数据
+     * 与BluetoothGatt.CONNECTION_PRIORITY_*一致
      * */
-    private static final int MESSAGE_RECEIVE_DATA = 1006;
+    public static final int CONNECTION_PRIORITY_BALANCED = 0;
+    public static final int CONNECTION_PRIORITY_HIGH = 1;
+    public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
 
     /**
-     * 重试延迟时间
+     * 蓝牙扫描器
      * */
-    private static final int RETRY_TIME_DELAY = 3000;
+    private BluetoothLeScanner mScanner;
 
     /**
-     * 最大尝试次数
+     * 蓝牙扫描结果回调
      * */
-    private static final int MAX_TRY_TIMES = 4;
+    private DeviceScanCallback mDeviceScanCallback;
 
     /**
-     * 当前尝试次数
+     * 批量扫描时的结果合并器
      * */
-    private int mCurrentTimes = 0;
+    private volatile ScanAggregator mScanAggregator;
 
     /**
-     * 保存所有的gatt，避免异常情况下没有关闭
+     * 连接结果回调，连接自己没有设置回调时使用
      * */
-    private HashSet<BluetoothGatt> mBluetoothGattSet = new HashSet<>();
+    private volatile ConnectCallback mConnectCallback;
 
     /**
-     * 蓝牙扫描器
+     * 二进制数据回调，连接自己没有设置回调时使用
      * */
-    private BluetoothLeScanner mScanner;
+    private volatile BinaryReceiveCallback mBinaryReceiveCallback;
+
+    /**
+     * 逻辑通道数据回调，连接自己没有设置回调时使用
+     * */
+    private volatile ChannelReceiveCallback mChannelReceiveCallback;
 
     /**
-     * 蓝牙连接回调
+     * 连接方式
      * */
-    private BluetoothGattCallback mBluetoothGattCallback;
+    private volatile int mConnectMode = CONNECT_MODE_AUTO_FALLBACK;
 
-    private BluetoothGatt mCurrentBluetoothGatt = null;
+    /**
+     * 连接使用的传输方式，双模设备指定LE可以避免连到经典蓝牙
+     * */
+    private volatile int mTransport = TRANSPORT_LE;
 
     /**
-     * 蓝牙扫描结果回调
+     * 连接使用的PHY
      * */
-    private DeviceScanCallback mDeviceScanCallback;
+    private volatile int mConnectPhy = PHY_LE_1M_MASK;
 
     /**
-     * 连接结果回调
+     * 是否根据发送的数据量自动调整连接优先级
      * */
-    private ConnectCallback mConnectCallback;
+    private volatile boolean mAutoConnectionPriority = false;
 
     /**
-     * 是否连接上设备
+     * 自动调整时空闲的连接优先级
      * */
-    private boolean mIsConnected = false;
+    private volatile int mIdleConnectionPriority = CONNECTION_PRIORITY_BALANCED;
 
     /**
-     * 是否已经关闭
+     * 连接成功之后是否请求2M PHY
      * */
-    private volatile boolean mIsShutdown = false;
+    private volatile boolean mPrefer2MPhy = false;
 
     /**
-     * 发送消息Handler，线程中处理发送，避免阻塞主线程
+     * 连接参数回调
      * */
-    private Handler mMessageHandler = null;
+    private volatile LinkCallback mLinkCallback;
 
     /**
-     * 当前全局数据
+     * 回调线程
      * */
-    private byte[] mGlobalResultBytes = null;
+    private volatile Executor mCallbackExecutor = CallbackExecutors.mainThread();
 
     /**
-     * 线程，提供looper
+     * 默认的重连策略
+     * */
+    private volatile ReconnectPolicy mReconnectPolicy = new BackoffReconnectPolicy();
+
+    /**
+     * 所有连接，按设备地址保存
+     * */
+    private final HashMap<String, BLEConnection> mConnections = new HashMap<>();
+
+    /**
+     * 最近一次连接的设备，单设备接口都作用在这个连接上
+     * */
+    private volatile BLEConnection mCurrentConnection;
+
+    /**
+     * 线程，提供looper，所有连接共用
      * */
     private HandlerThread mMessageThread;
 
-    private Handler mMainHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MESSAGE_RETRY: {
-                    final BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if (device != null) {
-                        realConnect(device);
-                    }
-                    break;
-                }
-                case MESSAGE_CONN_ERROR: {
-                    ConnResult connResult = (ConnResult) msg.obj;
-                    if (connResult != null) {
-                        retryConnect(connResult.device, connResult.lostConnection, connResult.resultCode);
-                    }
-                    break;
-                }
+    /**
+     * 主线程，没有需要关闭的连接时也在这里回调CloseCallback
+     * */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
-                case MESSAGE_CONN_FAILED:{
-                    if(mConnectCallback != null) {
-                        mConnectCallback.onConnectFailed();
-                    }
-                    break;
-                }
+    /**
+     * 发送使用的帧格式
+     * */
+    private volatile int mFrameFormat = BLEDataUtil.FORMAT_LEGACY;
 
-                case MESSAGE_CONN_SUCCESS:{
-                    if(mConnectCallback != null) {
-                        BluetoothDevice device = (BluetoothDevice)msg.obj;
-                        mConnectCallback.onConnectSuccess(device);
-                    }
-                    break;
-                }
+    /**
+     * 消息压缩编码
+     * */
+    private volatile PayloadCodec mPayloadCodec;
 
-                case MESSAGE_SERVICE_READY:{
-                    if(mConnectCallback != null) {
-                        boolean ready = (boolean)msg.obj;
-                        mConnectCallback.onServiceSubscribed(ready);
-                    }
-                    break;
-                }
+    /**
+     * 收到的消息的最大长度
+     * */
+    private volatile int mMaxMessageSize = FrameAssembler.DEFAULT_MAX_MESSAGE_SIZE;
 
-                case MESSAGE_RECEIVE_DATA:{
-                    if(mConnectCallback != null){
-                        mConnectCallback.onReceive((String)msg.obj);
-                    }
-                    break;
-                }
-            }
-        }
-    };
+    /**
+     * 拼包期限
+     * */
+    private volatile long mReassemblyTimeout = FrameAssembler.DEFAULT_REASSEMBLY_TIMEOUT;
+
+    /**
+     * 连接后请求的MTU
+     * */
+    private volatile int mPreferredMtu = PREFERRED_MTU;
+
+    /**
+     * 发送窗口
+     * */
+    private int mSendWindow = PacketSender.DEFAULT_WINDOW;
+
+    /**
+     * 写入超时时间
+     * */
+    private long mWriteTimeout = PacketSender.DEFAULT_WRITE_TIMEOUT;
+
+    /**
+     * 流模式信用值
+     * */
+    private int mStreamCredits = PacketSender.DEFAULT_STREAM_CREDITS;
+
+    /**
+     * 流模式最小发送间隔
+     * */
+    private long mStreamInterval = PacketSender.DEFAULT_STREAM_INTERVAL;
+
+    /**
+     * 发送队列容量
+     * */
+    private int mSendQueueCapacity = SendQueue.DEFAULT_CAPACITY;
+
+    /**
+     * 发送队列溢出策略
+     * */
+    private int mSendQueueOverflowPolicy = SendQueue.OVERFLOW_REJECT;
 
     /**
      * 是否允许显示日志
@@ -233,17 +272,40 @@ public class BLEManager {
      * @param characteristicUUID 特征值UUID
      * */
     public static void install(Application context, String serviceUUID, String characteristicUUID) {
+        install(context, serviceUUID, new String[]{characteristicUUID});
+    }
+
+    /**
+     * 初始化上下文、服务UUID和多个数据特征值UUID。
+     * 第一个是主特征值，旧帧格式的包只写入主特征值；带帧头的包按轮转写入各个特征值，对端按序号重排。
+     * 注意Android每个连接同时只能有一个GATT操作在途，所有特征值共用同一个ATT承载，
+     * 轮转不会增加并行度和吞吐量，只适合外设需要按特征值分开处理的情况。
+     * 所有特征值都要支持写入和通知，都会订阅通知，找不到的特征值不参与轮转
+     * @param context 上下文，因为可能涉及到跨Activity使用，使用全局的Application，可以在Application中初始化
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUIDs 数据特征值UUID，至少一个
+     * */
+    public static void install(Application context, String serviceUUID, String[] characteristicUUIDs) {
         if(sContext != null) {
             throw new IllegalArgumentException("you have initialized before");
         }
 
-        if(context == null || TextUtils.isEmpty(serviceUUID) || TextUtils.isEmpty(characteristicUUID)) {
+        if(context == null || TextUtils.isEmpty(serviceUUID) || characteristicUUIDs == null
+                || characteristicUUIDs.length == 0) {
             throw new IllegalArgumentException("context is null or service UUID is empty or characteristic UUID is empty");
         }
 
+        UUID[] characteristics = new UUID[characteristicUUIDs.length];
+        for(int i = 0; i < characteristicUUIDs.length; i++) {
+            if(TextUtils.isEmpty(characteristicUUIDs[i])) {
+                throw new IllegalArgumentException("characteristic UUID is empty");
+            }
+            characteristics[i] = UUID.fromString(characteristicUUIDs[i]);
+        }
+
+        sServiceUUID = UUID.fromString(serviceUUID);
+        sCharacteristicUUIDs = characteristics;
         sContext = context;
-        sServiceUUID = serviceUUID;
-        sCharacteristicUUID = characteristicUUID;
     }
 
     /**
@@ -283,124 +345,167 @@ public class BLEManager {
                 if(mDeviceScanCallback != null) {
                     mDeviceScanCallback.onDeviceFound(bluetoothDevice, rssi, scanRecord);
                 }
-            }
-        }, bluetoothAdapter);
 
-        /*初始化连接回调*/
-        mBluetoothGattCallback = new BluetoothGattCallback(){
-            @Override
-            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                super.onConnectionStateChange(gatt, status, newState);
-                if(gatt != null) {
-                    mBluetoothGattSet.add(gatt);
-                    logd("mBluetoothGattSet= add gatt " + mBluetoothGattSet);
-                }
-                logd("onConnectionStateChange status = " + status + ", newState = " + newState);
-                if(status == BluetoothGatt.GATT_SUCCESS) {
-                    if (newState == BluetoothGatt.STATE_CONNECTED) {//连接成功
-                        gatt.discoverServices();
-                        mCurrentBluetoothGatt = gatt;
-                        logd("连接成功");
-                        if(mConnectCallback != null) {
-                            Message msg = Message.obtain();
-                            msg.what = MESSAGE_CONN_SUCCESS;
-                            msg.obj = gatt.getDevice();
-
-                            mMainHandler.sendMessage(msg);
-                        }
-                    }
-                } else {
-                    logd("connect error, status = " + status + ", newState = " + newState);
-                    if(!mIsShutdown) {//不是用户手动断开的，就继续重试
-                        ConnResult connResult = new ConnResult();
-                        connResult.device = gatt.getDevice();
-                        connResult.lostConnection = true;
-                        connResult.resultCode = status;
-
-                        Message msg = Message.obtain();
-                        msg.obj = connResult;
-                        msg.what = MESSAGE_CONN_ERROR;
-
-                        mMainHandler.sendMessage(msg);
-                    }
+                ScanAggregator scanAggregator = mScanAggregator;
+                if(scanAggregator != null) {
+                    scanAggregator.onScanResult(bluetoothDevice, rssi, scanRecord);
                 }
             }
+        }, bluetoothAdapter);
+    }
 
-            @Override
-            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                super.onServicesDiscovered(gatt, status);
-                if(gatt != null) {
-                    mBluetoothGattSet.add(gatt);
-                }
-                logd("onServicesDiscovered");
-                if(status == BluetoothGatt.GATT_SUCCESS) {
-                    boolean ready = enableNotificationOfCharacteristic(gatt.getDevice(), gatt, true);
-                    Message msg = Message.obtain();
-                    msg.what = MESSAGE_SERVICE_READY;
-                    msg.obj = ready;
-                    mMainHandler.sendMessage(msg);
-                    mIsConnected = ready;
-                }
+    /**
+     * 是否订阅个特征
+     * @param enable true 订阅 false 取消订阅
+     * */
+    public boolean enableNotificationOfCharacteristic(BluetoothDevice device, BluetoothGatt bluetoothGatt, final boolean enable) {
+        if(bluetoothGatt != null){
+            return enableNotificationOfCharacteristics(bluetoothGatt, findCharacteristics(bluetoothGatt), enable);
+        }
+
+        return false;
+    }
+
+    /**
+     * 订阅已经找到的所有数据特征值
+     * @return 全部成功才返回true
+     * */
+    boolean enableNotificationOfCharacteristics(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic[] characteristics, boolean enable) {
+        if(characteristics == null) {
+            return false;
+        }
+
+        boolean success = true;
+        for(BluetoothGattCharacteristic characteristic : characteristics) {
+            success &= enableNotificationOfCharacteristic(bluetoothGatt, characteristic, enable);
+        }
+        return success;
+    }
+
+    /**
+     * 订阅已经找到的特征值，不再查找服务
+     * */
+    boolean enableNotificationOfCharacteristic(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic chara, boolean enable) {
+        if(chara != null){
+            logd("[enableNotificationOfCharacteristic] first disable the notification");
+            if(bluetoothGatt.setCharacteristicNotification(chara, false)){
+                logd("[enableNotificationOfCharacteristic] disable the notification success");
             }
+            boolean success = bluetoothGatt.setCharacteristicNotification(chara,enable);
+            logd("[enableNotificationOfCharacteristic] setCharactNotify: "+success);
+            return success;
+        }
 
-            @Override
-            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                if(status == BluetoothGatt.GATT_SUCCESS) {
-                    logd("success : onCharacteristicWrite: "+ Arrays.toString(characteristic.getValue()));
-                } else {
-                    logd("failed : onCharacteristicWrite: "+ Arrays.toString(characteristic.getValue()));
-                }
-                super.onCharacteristicWrite(gatt, characteristic, status);
+        return false;
+    }
+
+    /**
+     * 查找install时指定的所有特征值，跳过外设上没有的特征值
+     * @return 第一个是主特征值，找不到主特征值时返回null
+     * */
+    static BluetoothGattCharacteristic[] findCharacteristics(BluetoothGatt bluetoothGatt) {
+        BluetoothGattService service = bluetoothGatt.getService(sServiceUUID);
+        if(service == null) {
+            return null;
+        }
+
+        ArrayList<BluetoothGattCharacteristic> found = new ArrayList<>(sCharacteristicUUIDs.length);
+        for(UUID uuid : sCharacteristicUUIDs) {
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+            if(characteristic != null) {
+                found.add(characteristic);
+            } else if(found.isEmpty()) {//没有主特征值
+                return null;
+            } else {
+                logd("[findCharacteristics] characteristic not found: " + uuid);
             }
+        }
+        return found.toArray(new BluetoothGattCharacteristic[found.size()]);
+    }
 
-            @Override
-            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-                logd("onCharacteristicChanged: "+ Arrays.toString(characteristic.getValue()));
-                byte[] value = characteristic.getValue();
+    /**
+     * 设置连接后请求的MTU，下次连接时生效，默认517，小于等于23则不协商
+     * */
+    public void setPreferredMtu(int mtu) {
+        mPreferredMtu = mtu;
+    }
 
-                mGlobalResultBytes = BLEDataUtil.decode(value, mGlobalResultBytes);
-                if(BLEDataUtil.isEnd(value)) {
-                    String result = new String(mGlobalResultBytes);
-                    logd("result : " + result);
+    int getPreferredMtu() {
+        return mPreferredMtu;
+    }
 
-                    Message msg = Message.obtain();
-                    msg.what = MESSAGE_RECEIVE_DATA;
-                    msg.obj = result;
+    /**
+     * 设置发送使用的帧格式，接收时所有格式都支持，对已有连接和之后的连接都生效
+     * @param format {@link BLEDataUtil#FORMAT_LEGACY} 旧格式，兼容旧固件，默认值；
+     *               {@link BLEDataUtil#FORMAT_LENGTH_PREFIXED} 长度前缀格式，数据中可以包含0x00；
+     *               {@link BLEDataUtil#FORMAT_SELECTIVE_REPEAT} 选择重传格式，丢包时只重发缺失的包，需要固件支持
+     * */
+    public void setFrameFormat(int format) {
+        mFrameFormat = format;
+        for(BLEConnection connection : getConnections()) {
+            connection.setFrameFormat(format);
+        }
+    }
 
-                    mMainHandler.sendMessage(msg);
+    int getFrameFormat() {
+        return mFrameFormat;
+    }
 
-                    mGlobalResultBytes = null;
-                }
+    /**
+     * 设置消息压缩编码，对已有连接和之后的连接都生效，固件必须使用相同的编码。
+     * 每个消息前面加1字节编码ID，短消息和压缩之后没有变小的消息不压缩；
+     * 旧帧格式不能承载压缩后的数据，只加编码ID。不同固件版本可以用{@link BLEConnection#setPayloadCodec}单独设置
+     * @param codec 例如{@link DeflateCodec}，为空表示不压缩，默认值
+     * */
+    public void setPayloadCodec(PayloadCodec codec) {
+        mPayloadCodec = codec;
+        for(BLEConnection connection : getConnections()) {
+            connection.setPayloadCodec(codec);
+        }
+    }
 
-                super.onCharacteristicChanged(gatt, characteristic);
-            }
-        };
+    PayloadCodec getPayloadCodec() {
+        return mPayloadCodec;
     }
 
     /**
-     * 是否订阅个特征
-     * @param enable true 订阅 false 取消订阅
+     * 设置收到的消息的最大长度，长度前缀格式在首包就丢弃超长的消息，不分配缓冲区。
+     * 对已有连接和之后的连接都生效，默认{@link FrameAssembler#DEFAULT_MAX_MESSAGE_SIZE}
      * */
-    public boolean enableNotificationOfCharacteristic(BluetoothDevice device, BluetoothGatt bluetoothGatt, final boolean enable) {
-        UUID serviceUUID = UUID.fromString(sServiceUUID);
-        UUID charaUUID = UUID.fromString(sCharacteristicUUID);
-        if(!bluetoothGatt.equals(null)){
-            BluetoothGattService service = bluetoothGatt.getService(serviceUUID);
-            if(service != null){
-                BluetoothGattCharacteristic chara= service.getCharacteristic(charaUUID);
-                if(chara != null){
-                    logd("[enableNotificationOfCharacteristic] first disable the notification");
-                    if(bluetoothGatt.setCharacteristicNotification(chara, false)){
-                        logd("[enableNotificationOfCharacteristic] disable the notification success");
-                    }
-                    boolean success = bluetoothGatt.setCharacteristicNotification(chara,enable);
-                    logd("[enableNotificationOfCharacteristic] setCharactNotify: "+success);
-                    return success;
-                }
-            }
+    public void setMaxMessageSize(int maxMessageSize) {
+        mMaxMessageSize = Math.max(0, maxMessageSize);
+        for(BLEConnection connection : getConnections()) {
+            connection.setMaxMessageSize(maxMessageSize);
         }
+    }
 
-        return false;
+    int getMaxMessageSize() {
+        return mMaxMessageSize;
+    }
+
+    /**
+     * 设置拼包期限，收到一半的消息超过这个时间没有新的包，在收到下一个包时丢弃，0表示不限。
+     * 没有定时检查，链路空闲时未完成的消息保留到下一个包或者断开，只占用已经收到的数据大小的内存。
+     * 对已有连接和之后的连接都生效，默认{@link FrameAssembler#DEFAULT_REASSEMBLY_TIMEOUT}
+     * @param timeout 单位毫秒
+     * */
+    public void setReassemblyTimeout(long timeout) {
+        mReassemblyTimeout = Math.max(0, timeout);
+        for(BLEConnection connection : getConnections()) {
+            connection.setReassemblyTimeout(timeout);
+        }
+    }
+
+    long getReassemblyTimeout() {
+        return mReassemblyTimeout;
+    }
+
+    /**
+     * 当前连接每个包的字节数，包含标志位
+     * */
+    public int getPacketSize() {
+        BLEConnection connection = mCurrentConnection;
+        return connection != null ? connection.getPacketSize() : BLEDataUtil.DEFAULT_PACKET_SIZE;
     }
 
     /**
@@ -427,12 +532,254 @@ public class BLEManager {
     }
 
     /**
-     * 设置连接回调
+     * 设置连接回调，所有没有单独设置回调的连接都使用这个回调
      * */
     public void setConnectCallback(ConnectCallback connectCallback) {
         mConnectCallback = connectCallback;
     }
 
+    ConnectCallback getConnectCallback() {
+        return mConnectCallback;
+    }
+
+    /**
+     * 设置二进制数据回调，设置之后收到的数据不再转换为字符串，
+     * 也不再回调{@link ConnectCallback#onReceive(String)}
+     * */
+    public void setBinaryReceiveCallback(BinaryReceiveCallback callback) {
+        mBinaryReceiveCallback = callback;
+    }
+
+    BinaryReceiveCallback getBinaryReceiveCallback() {
+        return mBinaryReceiveCallback;
+    }
+
+    /**
+     * 设置逻辑通道数据回调，设置之后所有通道(包括通道0)的消息都通过这个回调，
+     * 不再回调{@link BinaryReceiveCallback}和{@link ConnectCallback#onReceive(String)}
+     * */
+    public void setChannelReceiveCallback(ChannelReceiveCallback callback) {
+        mChannelReceiveCallback = callback;
+    }
+
+    ChannelReceiveCallback getChannelReceiveCallback() {
+        return mChannelReceiveCallback;
+    }
+
+    /**
+     * 设置连接方式，下次连接时生效
+     * @param connectMode {@link #CONNECT_MODE_DIRECT} 或者 {@link #CONNECT_MODE_AUTO_FALLBACK}
+     * */
+    public void setConnectMode(int connectMode) {
+        mConnectMode = connectMode;
+    }
+
+    int getConnectMode() {
+        return mConnectMode;
+    }
+
+    /**
+     * 设置连接使用的传输方式，Android 6.0以上生效，默认{@link #TRANSPORT_LE}
+     * */
+    public void setTransport(int transport) {
+        mTransport = transport;
+    }
+
+    int getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * 设置连接使用的PHY，可以组合，Android 8.0以上并且手机支持时生效，默认{@link #PHY_LE_1M_MASK}
+     * @param phyMask {@link #PHY_LE_1M_MASK}, {@link #PHY_LE_2M_MASK}, {@link #PHY_LE_CODED_MASK}
+     * */
+    public void setConnectPhy(int phyMask) {
+        mConnectPhy = phyMask;
+    }
+
+    int getConnectPhy() {
+        return mConnectPhy;
+    }
+
+    /**
+     * 设置是否根据发送的数据量自动调整连接优先级：大量数据或者流模式发送时提高到
+     * {@link #CONNECTION_PRIORITY_HIGH}，发送完成一段时间之后降回idlePriority
+     * @param idlePriority {@link #CONNECTION_PRIORITY_BALANCED} 或者 {@link #CONNECTION_PRIORITY_LOW_POWER}
+     * */
+    public void setAutoConnectionPriority(boolean enable, int idlePriority) {
+        mIdleConnectionPriority = idlePriority;
+        mAutoConnectionPriority = enable;
+    }
+
+    boolean isAutoConnectionPriority() {
+        return mAutoConnectionPriority;
+    }
+
+    int getIdleConnectionPriority() {
+        return mIdleConnectionPriority;
+    }
+
+    /**
+     * 设置连接成功之后是否请求2M PHY，Android 8.0以上并且手机支持时生效，下次连接时生效
+     * */
+    public void setPrefer2MPhy(boolean prefer2MPhy) {
+        mPrefer2MPhy = prefer2MPhy;
+    }
+
+    boolean isPrefer2MPhy() {
+        return mPrefer2MPhy;
+    }
+
+    /**
+     * 设置连接、数据和连接参数回调所在的线程，所有没有单独设置的连接都使用这个线程，默认在主线程回调。
+     * 收到大量数据时可以使用{@link CallbackExecutors#direct()}或者自己的线程池，不再经过主线程
+     * @see CallbackExecutors
+     * */
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor != null ? executor : CallbackExecutors.mainThread();
+    }
+
+    Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    /**
+     * 设置连接参数回调，所有没有单独设置回调的连接都使用这个回调
+     * */
+    public void setLinkCallback(LinkCallback linkCallback) {
+        mLinkCallback = linkCallback;
+    }
+
+    LinkCallback getLinkCallback() {
+        return mLinkCallback;
+    }
+
+    /**
+     * 设置重连策略，所有没有单独设置策略的连接都使用这个策略，默认是{@link BackoffReconnectPolicy}
+     * */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        mReconnectPolicy = reconnectPolicy != null ? reconnectPolicy : new BackoffReconnectPolicy();
+    }
+
+    ReconnectPolicy getReconnectPolicy() {
+        return mReconnectPolicy;
+    }
+
+    /**
+     * 设置发送窗口，即最多允许多少个包已写入但还未在onCharacteristicWrite中确认，默认为1。
+     * 对已有连接和之后的连接都生效
+     * */
+    public void setSendWindow(int window) {
+        mSendWindow = Math.max(1, window);
+        for(BLEConnection connection : getConnections()) {
+            connection.setSendWindow(window);
+        }
+    }
+
+    int getSendWindow() {
+        return mSendWindow;
+    }
+
+    /**
+     * 设置写入超时时间，超时未确认的包按失败重发
+     * @param timeout 超时时间，单位毫秒
+     * */
+    public void setWriteTimeout(long timeout) {
+        mWriteTimeout = Math.max(1, timeout);
+        for(BLEConnection connection : getConnections()) {
+            connection.setWriteTimeout(timeout);
+        }
+    }
+
+    long getWriteTimeout() {
+        return mWriteTimeout;
+    }
+
+    /**
+     * 设置流模式的信用值，即最多允许多少个无应答写入还未被协议栈回调，默认为8
+     * */
+    public void setStreamCredits(int credits) {
+        mStreamCredits = Math.max(1, credits);
+        for(BLEConnection connection : getConnections()) {
+            connection.setStreamCredits(credits);
+        }
+    }
+
+    int getStreamCredits() {
+        return mStreamCredits;
+    }
+
+    /**
+     * 设置流模式的最小发送间隔，默认为0，即只受信用值限制
+     * @param interval 间隔时间，单位毫秒
+     * */
+    public void setStreamInterval(long interval) {
+        mStreamInterval = Math.max(0, interval);
+        for(BLEConnection connection : getConnections()) {
+            connection.setStreamInterval(interval);
+        }
+    }
+
+    long getStreamInterval() {
+        return mStreamInterval;
+    }
+
+    /**
+     * 设置每个连接的发送队列，sendData超过容量时按溢出策略处理，默认容量{@link SendQueue#DEFAULT_CAPACITY}，
+     * 拒绝新消息。对已有连接和之后的连接都生效。
+     * {@link SendQueue#OVERFLOW_BLOCK}在没有设置timeout时会一直阻塞到有空位，只适合在工作线程中调用sendData；
+     * 在主线程和发送线程中调用时不阻塞，按拒绝处理，避免ANR
+     * @param capacity 最多排队的消息数，不包括正在发送的消息
+     * @param overflowPolicy {@link SendQueue#OVERFLOW_BLOCK}, {@link SendQueue#OVERFLOW_DROP_OLDEST}, {@link SendQueue#OVERFLOW_REJECT}
+     * */
+    public void setSendQueue(int capacity, int overflowPolicy) {
+        mSendQueueCapacity = Math.max(1, capacity);
+        mSendQueueOverflowPolicy = overflowPolicy;
+        for(BLEConnection connection : getConnections()) {
+            connection.setSendQueue(capacity, overflowPolicy);
+        }
+    }
+
+    int getSendQueueCapacity() {
+        return mSendQueueCapacity;
+    }
+
+    int getSendQueueOverflowPolicy() {
+        return mSendQueueOverflowPolicy;
+    }
+
+    /**
+     * 添加扫描过滤条件，Android 5.0以上由控制器过滤，下次扫描时生效
+     * @see BluetoothLeScanner#addFilter(UUID, String, String)
+     * */
+    public void addScanFilter(UUID serviceUuid, String name, String address) {
+        mScanner.addFilter(serviceUuid, name, address);
+    }
+
+    /**
+     * 清空扫描过滤条件
+     * */
+    public void clearScanFilters() {
+        mScanner.clearFilters();
+    }
+
+    /**
+     * 设置扫描模式，只在Android 5.0以上生效
+     * @param scanMode {@link BluetoothLeScanner#SCAN_MODE_LOW_POWER}, {@link BluetoothLeScanner#SCAN_MODE_BALANCED},
+     *                 {@link BluetoothLeScanner#SCAN_MODE_LOW_LATENCY}
+     * */
+    public void setScanMode(int scanMode) {
+        mScanner.setScanMode(scanMode);
+    }
+
+    /**
+     * 设置控制器批量上报扫描结果的间隔，只在Android 5.0以上并且控制器支持时生效
+     * @param reportDelay 单位毫秒，0表示立即上报
+     * */
+    public void setScanReportDelay(long reportDelay) {
+        mScanner.setReportDelay(reportDelay);
+    }
+
     /**
      * 开始扫描设备，缺省的时间是{@link #TIME_OUT_SCAN}
      * @param callback 扫描结果回调
@@ -449,6 +796,19 @@ public class BLEManager {
             logd("[stopScan] stop scan");
             mScanner.stopScan();
         }
+
+        stopScanAggregator();
+    }
+
+    /**
+     * 停止合并扫描结果，还没有回调的结果会先回调出去
+     * */
+    private void stopScanAggregator() {
+        ScanAggregator scanAggregator = mScanAggregator;
+        mScanAggregator = null;
+        if(scanAggregator != null) {
+            scanAggregator.stop();
+        }
     }
 
     /**
@@ -462,168 +822,293 @@ public class BLEManager {
             return;
         }
 
+        logd("[scanDevices] stop scan before starting scan");
+        stopScan();
+
         mDeviceScanCallback = callback;
 
-        logd("[scanDevices] stop scan before starting scan");
-        mScanner.stopScan();
         logd("[scanDevices] start scan now");
         mScanner.scanLeDevice(timeout, true, mDeviceScanCallback);
     }
 
     /**
-     * 连接设备
+     * 开始扫描设备，按地址去重，每隔一段时间批量回调一次，在主线程调用
+     * @param timeout 超时时间
+     * @param interval 回调间隔，单位毫秒，默认{@link ScanAggregator#DEFAULT_INTERVAL}
+     * @param callback 扫描结果回调，在主线程回调
+     * */
+    public void scanDevices(int timeout, long interval, final BatchScanCallback callback) {
+        logd("[scanDevices] timeout = " + timeout + ", interval = " + interval);
+        if(timeout <= 0) {
+            return;
+        }
+
+        logd("[scanDevices] stop scan before starting scan");
+        stopScan();
+
+        mDeviceScanCallback = null;
+
+        final ScanAggregator scanAggregator = new ScanAggregator(new HandlerScheduler(new Handler(Looper.getMainLooper())), interval, callback);
+        scanAggregator.start();
+        mScanAggregator = scanAggregator;
+
+        logd("[scanDevices] start scan now");
+        mScanner.scanLeDevice(timeout, true, new BluetoothLeScanner.ScanTimeOut() {
+            @Override
+            public void onScanTimeOut() {
+                if(mScanAggregator == scanAggregator) {
+                    stopScanAggregator();
+                }
+                if(callback != null) {
+                    callback.onScanTimeOut();
+                }
+            }
+        });
+    }
+
+    /**
+     * 连接设备，会先断开其它设备，只保留这一个连接
      * */
     public void connect(final BluetoothDevice device) {
+        connect(device, false);
+    }
+
+    /**
+     * 连接设备
+     * @param keepOthers true 保留已有的其它连接，用于同时连接多个设备；false 先断开其它设备
+     * @return 这个设备的连接，之后可以通过它单独发送数据和设置回调
+     * */
+    public BLEConnection connect(final BluetoothDevice device, boolean keepOthers) {
         if(device == null) {
-            return;
+            return null;
         }
 
-        logd("[connect] connect to device : " + device.getAddress());
-        stopConnection();
+        if(!keepOthers) {
+            for(BLEConnection connection : getConnections()) {
+                if(!connection.getAddress().equals(device.getAddress())) {
+                    removeConnection(connection);
+                    connection.disconnect();
+                }
+            }
+        }
+
+        BLEConnection connection;
+        synchronized (mConnections) {
+            connection = mConnections.get(device.getAddress());
+            if(connection == null) {
+                connection = new BLEConnection(this, device, getSendLooper());
+                mConnections.put(device.getAddress(), connection);
+            }
+        }
+        mCurrentConnection = connection;
 
-        realConnect(device);
+        connection.connect();
+        return connection;
     }
 
     /**
-     * 重试连接
+     * 获取设备的连接
+     * @return 没有连接过这个设备时返回null
      * */
-    private void retryConnect(final BluetoothDevice device, boolean isLostConnection, int errorCode) {
-        if(mIsShutdown) {//主动断开连接，不再重试
-            return;
+    public BLEConnection getConnection(String address) {
+        synchronized (mConnections) {
+            return mConnections.get(address);
         }
+    }
 
-        logd("[retryConnect] reconnect device : " + device.getAddress()
-                + ", isLostConnection = " + isLostConnection + ", errorCode = " + errorCode);
-        stopConnection();
-        mIsConnected = false;
-
-        if(++mCurrentTimes <= MAX_TRY_TIMES) {
-            logd("[retryConnect] try time = " + mCurrentTimes + ", delay = " + RETRY_TIME_DELAY);
-            Message msg = Message.obtain();
-            msg.obj = device;
-            msg.what = MESSAGE_RETRY;
-            mMainHandler.removeMessages(MESSAGE_RETRY);
-            mMainHandler.sendMessageDelayed(msg, RETRY_TIME_DELAY);
+    /**
+     * 获取所有连接
+     * */
+    public List<BLEConnection> getConnections() {
+        synchronized (mConnections) {
+            return new ArrayList<>(mConnections.values());
+        }
+    }
+
+    /**
+     * 断开一个设备，不影响其它设备
+     * */
+    public void disconnect(String address) {
+        disconnect(address, null);
+    }
+
+    /**
+     * 断开一个设备，不影响其它设备
+     * @param callback 这个设备的gatt都关闭之后在主线程回调，可以为空
+     * */
+    public void disconnect(String address, CloseCallback callback) {
+        BLEConnection connection = getConnection(address);
+        if(connection != null) {
+            removeConnection(connection);
+            connection.disconnect(callback);
         } else {
-            logd("connect failed with try out");
-            mMainHandler.removeMessages(MESSAGE_CONN_FAILED);
-            mMainHandler.sendEmptyMessage(MESSAGE_CONN_FAILED);
+            postClosed(callback);
+        }
+    }
+
+    /**
+     * 没有需要关闭的gatt时也投递到主线程回调，调用者可以在回调中重新连接，不会重入
+     * */
+    private void postClosed(final CloseCallback callback) {
+        if(callback == null) {
+            return;
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onClosed();
+            }
+        });
+    }
+
+    /**
+     * 重试次数用完，连接失败
+     * */
+    void onConnectionFailed(BLEConnection connection) {
+        removeConnection(connection);
+    }
+
+    private void removeConnection(BLEConnection connection) {
+        synchronized (mConnections) {
+            if(mConnections.get(connection.getAddress()) == connection) {
+                mConnections.remove(connection.getAddress());
+            }
+        }
+
+        if(mCurrentConnection == connection) {
+            mCurrentConnection = null;
+        }
+    }
+
+    /**
+     * 发送线程的looper，所有连接共用一个线程
+     * */
+    private synchronized Looper getSendLooper() {
+        if(mMessageThread == null) {
+            mMessageThread = new HandlerThread("thread-send-message");
+            mMessageThread.start();
         }
 
+        return mMessageThread.getLooper();
     }
 
     /**
-     * 真正的连接设备调用
+     * 发送数据到最近一次连接的设备
+     * @param data 数据
+     * @return 发送结果，没有连接时直接以{@link SendFuture#RESULT_FAILED}结束
      * */
-    private void realConnect(final BluetoothDevice device) {
-        logd("[realConnect]");
-        device.connectGatt(sContext, false, mBluetoothGattCallback);
+    public SendFuture sendData(final String data) {
+        return sendData(data, false);
     }
 
     /**
-     * 发送数据
+     * 发送数据到最近一次连接的设备
      * @param data 数据
+     * @param streaming true 流模式，用于固件、日志等大量数据：除最后一个包外都使用无应答写入，
+     *                  最后一个包有应答，确认之后才算送达
      * */
-    public void sendData(final String data) {
-        Message message = Message.obtain();
-        message.what = MESSAGE_SEND;
-        message.obj = data;
+    public SendFuture sendData(final String data, boolean streaming) {
+        return sendData(data, streaming, 0);
+    }
 
-        if(mMessageHandler == null) {
-            setupMessageHandler();
+    /**
+     * 发送数据到最近一次连接的设备
+     * @param timeout 期限，从调用时开始计算，包括排队时间，单位毫秒，0表示不限制
+     * */
+    public SendFuture sendData(final String data, boolean streaming, long timeout) {
+        return sendData(data, streaming, timeout, SendQueue.PRIORITY_NORMAL, null);
+    }
+
+    /**
+     * 发送数据到最近一次连接的设备
+     * @param priority 优先级{@link SendQueue#PRIORITY_HIGH}, {@link SendQueue#PRIORITY_NORMAL}, {@link SendQueue#PRIORITY_LOW}
+     * @param coalesceKey 合并key，替换队列中还未开始发送的同key消息，为空不合并
+     * */
+    public SendFuture sendData(final String data, boolean streaming, long timeout, int priority, Object coalesceKey) {
+        BLEConnection connection = mCurrentConnection;
+        if(connection == null) {
+            return SendFuture.completed(SendFuture.RESULT_FAILED);
         }
+        return connection.sendData(data, streaming, timeout, priority, coalesceKey);
+    }
 
-        mMessageHandler.sendMessage(message);
+    /**
+     * 发送二进制数据，不做字符转换。旧格式会去掉结尾的0x00，
+     * 二进制数据应该配合{@link BLEDataUtil#FORMAT_LENGTH_PREFIXED}使用
+     * @param data 数据，发送完成之前不能修改
+     * */
+    public SendFuture sendData(final byte[] data) {
+        return sendData(data, false);
     }
 
     /**
-     * 初始化MessageHandler
+     * 发送二进制数据
+     * @param data 数据，发送完成之前不能修改
+     * @param streaming true 流模式
      * */
-    private void setupMessageHandler() {
-        if(mMessageHandler == null) {
-            if(mMessageThread == null) {
-                mMessageThread = new HandlerThread("thread-send-message");
-            }
-            mMessageThread.start();
-            mMessageHandler = new Handler(mMessageThread.getLooper()) {
-                @Override
-                public void handleMessage(Message message) {
-                    if(mCurrentBluetoothGatt == null) {
-                        return;
-                    }
+    public SendFuture sendData(final byte[] data, boolean streaming) {
+        return sendData(data, streaming, 0);
+    }
 
-                    String msg = (String) message.obj;
-
-                    if(!TextUtils.isEmpty(msg)) {
-                        logd("send message : " + msg);
-                        byte[][] packets = BLEDataUtil.encode(msg);
-                        int tryCount  = 3;//最多重发次数
-                        boolean sendSuccess = true;
-                        while(--tryCount > 0) {
-                            sendSuccess = true;
-                            for(int i = 0; i < packets.length; i++) {
-                                byte[] bytes = packets[i];
-                                int onceTryCount = 3;//单次重发次数
-                                boolean onceSendSuccess = true;
-                                BluetoothGattService service = mCurrentBluetoothGatt.getService(UUID.fromString(sServiceUUID));
-                                if(service != null) {
-                                    BluetoothGattCharacteristic characteristic = service.getCharacteristic(UUID.fromString(sCharacteristicUUID));
-                                    characteristic.setValue(bytes);
-                                    while(--onceTryCount > 0) {
-
-                                        if(mIsShutdown) {
-                                            break;
-                                        }
-
-                                        if(mCurrentBluetoothGatt.writeCharacteristic(characteristic)){
-                                            logd("Write Success, DATA: " + Arrays.toString(characteristic.getValue()));
-                                            onceSendSuccess = true;
-                                            //避免数据发送太快丢失，需要分包延迟发送
-                                            SystemClock.sleep(200);
-                                            break;
-                                        } else {
-                                            logd("Write failed, DATA: " + Arrays.toString(characteristic.getValue()) + ", and left times = " + onceTryCount);
-                                            onceSendSuccess = false;
-                                            //避免数据发送太快丢失，需要分包延迟发送
-                                            SystemClock.sleep(400);//失败的时候，把时间调大
-                                        }
-
-                                    }
-
-                                }
-
-                                if(!onceSendSuccess) {//一次发送，重试三次都未成功则，跳出重发这个数据
-                                    sendSuccess = false;
-                                    break;
-                                }
-
-                                //避免数据发送太快丢失，需要分包延迟发送
-                                SystemClock.sleep(200);
-                            }
-
-                            if(sendSuccess) {
-                                break;
-                            } else {
-                                logd("send msg failed, and try times = " + tryCount);
-                            }
-
-                            if(mIsShutdown) {
-                                logd("give up for disconnected by user");
-                                break;
-                            }
-
-                            //避免数据发送太快丢失，需要分包延迟发送
-                            SystemClock.sleep(200);
-                        }
-
-                        if(!sendSuccess && !mIsShutdown) {
-                            logd("send failed : " + msg);
-                        }
+    /**
+     * 发送二进制数据
+     * @param timeout 期限，从调用时开始计算，包括排队时间，单位毫秒，0表示不限制
+     * */
+    public SendFuture sendData(final byte[] data, boolean streaming, long timeout) {
+        return sendData(data, streaming, timeout, SendQueue.PRIORITY_NORMAL, null);
+    }
 
-                    }
-                }
-            };
+    /**
+     * 发送二进制数据
+     * @param priority 优先级{@link SendQueue#PRIORITY_HIGH}, {@link SendQueue#PRIORITY_NORMAL}, {@link SendQueue#PRIORITY_LOW}
+     * @param coalesceKey 合并key，替换队列中还未开始发送的同key消息，为空不合并
+     * */
+    public SendFuture sendData(final byte[] data, boolean streaming, long timeout, int priority, Object coalesceKey) {
+        BLEConnection connection = mCurrentConnection;
+        if(connection == null) {
+            return SendFuture.completed(SendFuture.RESULT_FAILED);
+        }
+        return connection.sendData(data, streaming, timeout, priority, coalesceKey);
+    }
+
+    /**
+     * 在逻辑通道上发送二进制数据
+     * @see BLEConnection#sendData(int, byte[], boolean, long, int, Object)
+     * */
+    public SendFuture sendData(int channel, final byte[] data, boolean streaming, long timeout, int priority, Object coalesceKey) {
+        BLEConnection connection = mCurrentConnection;
+        if(connection == null) {
+            return SendFuture.completed(SendFuture.RESULT_FAILED);
         }
+        return connection.sendData(channel, data, streaming, timeout, priority, coalesceKey);
+    }
+
+    /**
+     * 发送ByteBuffer中剩余的数据，不改变ByteBuffer的position
+     * */
+    public SendFuture sendData(final ByteBuffer data) {
+        return sendData(data, false);
+    }
+
+    /**
+     * 发送ByteBuffer中剩余的数据，不改变ByteBuffer的position
+     * @param streaming true 流模式
+     * */
+    public SendFuture sendData(final ByteBuffer data, boolean streaming) {
+        return sendData(data, streaming, 0);
+    }
+
+    /**
+     * 发送ByteBuffer中剩余的数据，不改变ByteBuffer的position
+     * @param timeout 期限，从调用时开始计算，包括排队时间，单位毫秒，0表示不限制
+     * */
+    public SendFuture sendData(final ByteBuffer data, boolean streaming, long timeout) {
+        BLEConnection connection = mCurrentConnection;
+        if(connection == null) {
+            return SendFuture.completed(SendFuture.RESULT_FAILED);
+        }
+        return connection.sendData(data, streaming, timeout);
     }
 
     /**
@@ -640,51 +1125,64 @@ public class BLEManager {
         mDeviceScanCallback = null;
 
         mConnectCallback = null;
-
-        mGlobalResultBytes = null;
-
-        /*移除所有的消息，避免内存泄露*/
-        mMainHandler.removeCallbacksAndMessages(null);
     }
 
     /**
-     * 停止所有连接
+     * 停止所有连接，不阻塞调用线程
      * */
     public void stopConnection() {
+        stopConnection(null);
+    }
+
+    /**
+     * 停止所有连接，不阻塞调用线程
+     * @param callback 所有gatt都关闭之后在主线程回调，可以为空
+     * */
+    public void stopConnection(final CloseCallback callback) {
         logd("[stopConnection]");
-        //关闭所有的gatt
-        synchronized (mBluetoothGattSet) {
-            Iterator<BluetoothGatt> iterator = mBluetoothGattSet.iterator();
-            while(iterator.hasNext()) {
-                BluetoothGatt gatt = iterator.next();
-                //try...catch放在while循环中，保证让所有的gatt都关闭，即使其中一个关闭异常
-                try {
-                    logd("close gatt : " + gatt);
-                    gatt.disconnect();
-                    Method e = BluetoothGatt.class.getMethod("refresh", new Class[0]);
-                    if(e != null) {
-                        boolean success = ((Boolean)e.invoke(gatt, new Object[0])).booleanValue();
-                        logd("Refreshing result: " + success);
-                    }
+        List<BLEConnection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections.values());
+            mConnections.clear();
+        }
+        mCurrentConnection = null;
 
-                    SystemClock.sleep(600);
+        if(connections.isEmpty()) {
+            postClosed(callback);
+            return;
+        }
 
-                    gatt.close();
-                }catch (Exception e) {
-                    e.printStackTrace();
-                    logd("close 失败 gatt:" + gatt);
+        CloseCallback connectionCallback = null;
+        if(callback != null) {
+            final AtomicInteger remaining = new AtomicInteger(connections.size());
+            connectionCallback = new CloseCallback() {
+                @Override
+                public void onClosed() {
+                    if(remaining.decrementAndGet() == 0) {
+                        callback.onClosed();
+                    }
                 }
-            }
+            };
+        }
 
-            mBluetoothGattSet.clear();
+        for(BLEConnection connection : connections) {
+            connection.disconnect(connectionCallback);
         }
     }
 
+    static Context getContext() {
+        return sContext;
+    }
+
+    static boolean isDebugEnabled() {
+        return DEBUG_ENABLE;
+    }
+
     /**
      * 日志
      * @param message
      * */
-    private static void logd(String message) {
+    static void logd(String message) {
         if(DEBUG_ENABLE) {
             Log.d(TAG, message);
         }
@@ -697,6 +1195,12 @@ public class BLEManager {
         void onDeviceFound(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord);
     }
 
+    /**
+     * 批量扫描结果回调
+     * */
+    public interface BatchScanCallback extends BluetoothLeScanner.ScanTimeOut, ScanAggregator.BatchCallback {
+    }
+
     /**
      * 连接结果回调
      * */
@@ -711,7 +1215,7 @@ public class BLEManager {
          * */
         void onConnectSuccess(BluetoothDevice device);
         /**
-         * 服务已订阅
+         * 服务已订阅，ready为true时MTU也已经协商完成(或者协商失败、超时，按默认包大小)，可以直接发送数据
          * */
         void onServiceSubscribed(boolean ready);
         /**
@@ -721,11 +1225,56 @@ public class BLEManager {
     }
 
     /**
-     * 连接结果
+     * 二进制数据回调
+     * */
+    public interface BinaryReceiveCallback {
+        /**
+         * 接收到数据
+         * @param data 只读视图，直接指向拼包缓冲区，只在回调中有效，需要保留的话请拷贝
+         * */
+        void onReceiveBytes(ByteBuffer data);
+    }
+
+    /**
+     * 逻辑通道数据回调
      * */
-    private static class ConnResult{
-        public BluetoothDevice device;
-        public boolean lostConnection;
-        public int resultCode;
+    public interface ChannelReceiveCallback {
+        /**
+         * 接收到数据
+         * @param channel 消息所在的逻辑通道，不带通道号的消息是0
+         * @param data 只读视图，直接指向拼包缓冲区，只在回调中有效，需要保留的话请拷贝
+         * */
+        void onReceiveBytes(int channel, ByteBuffer data);
+    }
+
+    /**
+     * 连接参数回调，在{@link #setCallbackExecutor}设置的线程回调
+     * */
+    public interface LinkCallback {
+        /**
+         * 连接优先级请求已提交，在{@link BLEConnection#requestConnectionPriority}之后回调。
+         * 只表示请求是否交给了协议栈，Android不回调控制器实际使用的连接参数，不代表链路当前的设置
+         * @param priority 请求的优先级
+         * @param success 请求是否提交成功
+         * */
+        void onConnectionPriorityRequested(int priority, boolean success);
+
+        /**
+         * PHY变化或者readPhy的结果
+         * @param txPhy 当前发送PHY，{@link #PHY_LE_1M}等
+         * @param rxPhy 当前接收PHY
+         * @param status 0表示成功
+         * */
+        void onPhyUpdate(int txPhy, int rxPhy, int status);
+    }
+
+    /**
+     * 连接关闭回调
+     * */
+    public interface CloseCallback {
+        /**
+         * 所有gatt都已关闭，可以重新连接
+         * */
+        void onClosed();
     }
 }
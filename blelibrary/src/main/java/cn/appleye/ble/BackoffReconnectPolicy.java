@@ -0,0 +1,104 @@
+package cn.appleye.ble;
+
+import java.util.Random;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-24
+ * 指数退避重连策略，延迟按倍数增长到上限，并加入随机抖动，多个设备同时断开时不会同时重连。
+ * 133(GATT_ERROR)和8(连接超时)大多是暂时的，第一次重连立即进行
+ */
+public class BackoffReconnectPolicy implements ReconnectPolicy {
+    /**
+     * 协议栈的通用错误，通常重连一次就能恢复
+     * */
+    public static final int STATUS_GATT_ERROR = 133;
+
+    /**
+     * 连接监督超时，设备短暂离开范围
+     * */
+    public static final int STATUS_CONNECTION_TIMEOUT = 8;
+
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+
+    public static final long DEFAULT_MAX_DELAY = 30 * 1000;
+
+    /**
+     * 和之前固定重连4次相同，默认参数下最多约1+2+4+8=15秒之后回调连接失败
+     * */
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    public static final float DEFAULT_JITTER = 0.5f;
+
+    private final long mInitialDelay;
+
+    private final long mMaxDelay;
+
+    private final int mMaxAttempts;
+
+    private volatile float mJitter = DEFAULT_JITTER;
+
+    private volatile boolean mFastRetry = true;
+
+    private final Random mRandom;
+
+    public BackoffReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param initialDelay 第一次重连的延迟，单位毫秒
+     * @param maxDelay 延迟上限，单位毫秒
+     * @param maxAttempts 最多重连次数，小于等于0表示一直重连
+     * */
+    public BackoffReconnectPolicy(long initialDelay, long maxDelay, int maxAttempts) {
+        this(initialDelay, maxDelay, maxAttempts, new Random());
+    }
+
+    BackoffReconnectPolicy(long initialDelay, long maxDelay, int maxAttempts, Random random) {
+        mInitialDelay = Math.max(0, initialDelay);
+        mMaxDelay = Math.max(mInitialDelay, maxDelay);
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    /**
+     * 设置随机抖动的比例，实际延迟在[delay * (1 - jitter), delay]之间
+     * @param jitter [0, 1]，0表示不抖动
+     * */
+    public void setJitter(float jitter) {
+        mJitter = Math.max(0f, Math.min(1f, jitter));
+    }
+
+    /**
+     * 设置133和8是否第一次立即重连，默认开启
+     * */
+    public void setFastRetry(boolean fastRetry) {
+        mFastRetry = fastRetry;
+    }
+
+    @Override
+    public long getRetryDelay(int attempt, int status) {
+        if(mMaxAttempts > 0 && attempt > mMaxAttempts) {
+            return STOP;
+        }
+
+        if(attempt == 1 && mFastRetry
+                && (status == STATUS_GATT_ERROR || status == STATUS_CONNECTION_TIMEOUT)) {
+            return 0;
+        }
+
+        long delay = mInitialDelay;
+        for(int i = 1; i < attempt && delay < mMaxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, mMaxDelay);
+
+        float jitter = mJitter;
+        if(jitter > 0 && delay > 0) {
+            delay -= (long) (delay * jitter * mRandom.nextFloat());
+        }
+
+        return delay;
+    }
+}
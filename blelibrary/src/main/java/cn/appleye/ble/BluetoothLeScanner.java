@@ -1,15 +1,39 @@
 package cn.appleye.ble;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Build;
 import android.os.Handler;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
 /**
  * @author liuliaopu
  * @date 2017-02-14
+ *
+ * Android 5.0以上使用ScanFilter/ScanSettings扫描，过滤条件交给控制器处理；
+ * 4.4或者新接口扫描失败时退回startLeScan，在回调中按同样的条件过滤
  */
 public class BluetoothLeScanner {
     private static final String TAG = "BluetoothLeScanner";
 
+    /**
+     * 低功耗模式，扫描窗口最小，适合后台长时间扫描
+     * */
+    public static final int SCAN_MODE_LOW_POWER = 0;
+
+    /**
+     * 均衡模式
+     * */
+    public static final int SCAN_MODE_BALANCED = 1;
+
+    /**
+     * 低延迟模式，一直扫描，适合前台短时间扫描，默认值
+     * */
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
     private final Handler mHandler;
     private final BluetoothAdapter.LeScanCallback mLeScanCallback;
 
@@ -17,6 +41,47 @@ public class BluetoothLeScanner {
 
     private boolean mScanning;
 
+    /**
+     * 过滤条件，满足任意一个即可，为空表示不过滤
+     * */
+    private final ArrayList<DeviceFilter> mFilters = new ArrayList<>();
+
+    private int mScanMode = SCAN_MODE_LOW_LATENCY;
+
+    private long mReportDelay = 0;
+
+    /**
+     * 旧接口过滤服务UUID时使用的解析器
+     * */
+    private final AdvertisementParser mParser = new AdvertisementParser();
+
+    /**
+     * 5.0以上的扫描实现，4.4上为空
+     * */
+    private LollipopScanner mLollipopScanner;
+
+    /**
+     * 是否正在使用startLeScan扫描
+     * */
+    private boolean mLegacyScanning;
+
+    /**
+     * 扫描超时任务
+     * */
+    private Runnable mTimeoutTask;
+
+    /**
+     * 旧接口的回调，先按过滤条件过滤
+     * */
+    private final BluetoothAdapter.LeScanCallback mLegacyCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if(matches(device, scanRecord)) {
+                mLeScanCallback.onLeScan(device, rssi, scanRecord);
+            }
+        }
+    };
+
     public BluetoothLeScanner(final BluetoothAdapter.LeScanCallback leScanCallback, BluetoothAdapter bluetoothAdapter) {
         mHandler = new Handler();
         mLeScanCallback = leScanCallback;
@@ -27,6 +92,43 @@ public class BluetoothLeScanner {
         return mScanning;
     }
 
+    /**
+     * 添加过滤条件，同一个条件中不为空的字段都要匹配，多个条件之间满足任意一个即可，下次扫描时生效
+     * @param serviceUuid 广播中包含的服务UUID，为空不限制
+     * @param name 设备名称，为空不限制
+     * @param address 设备地址，大写，为空不限制
+     * */
+    public void addFilter(UUID serviceUuid, String name, String address) {
+        if(serviceUuid == null && name == null && address == null) {
+            return;
+        }
+        mFilters.add(new DeviceFilter(serviceUuid, name, address));
+    }
+
+    /**
+     * 清空过滤条件
+     * */
+    public void clearFilters() {
+        mFilters.clear();
+    }
+
+    /**
+     * 设置扫描模式，只在5.0以上生效，下次扫描时生效
+     * @param scanMode {@link #SCAN_MODE_LOW_POWER}, {@link #SCAN_MODE_BALANCED}, {@link #SCAN_MODE_LOW_LATENCY}
+     * */
+    public void setScanMode(int scanMode) {
+        mScanMode = scanMode;
+    }
+
+    /**
+     * 设置控制器批量上报的间隔，控制器缓存扫描结果，到时间之后一次上报，
+     * 只在5.0以上并且控制器支持时生效
+     * @param reportDelay 单位毫秒，0表示每个结果立即上报
+     * */
+    public void setReportDelay(long reportDelay) {
+        mReportDelay = Math.max(0, reportDelay);
+    }
+
     /**
      * @param duration 持续时间
      * @param enable true 开启扫描 false 结束扫描
@@ -45,25 +147,75 @@ public class BluetoothLeScanner {
                 return;
             }
             if (duration > 0) {
-                mHandler.postDelayed(new Runnable() {
+                mTimeoutTask = new Runnable() {
                     @Override
                     public void run() {
                         if(mScanning && scanTimeOut != null) {
                             scanTimeOut.onScanTimeOut();
                         }
                         mScanning = false;
-                        mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                        stopBackend();
                     }
-                }, duration);
+                };
+                mHandler.postDelayed(mTimeoutTask, duration);
             }
             mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            startBackend();
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            stopBackend();
         }
     }
 
+    /**
+     * 5.0以上使用新接口，失败时退回旧接口
+     * */
+    private void startBackend() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if(mLollipopScanner == null) {
+                mLollipopScanner = new LollipopScanner(mBluetoothAdapter, mLeScanCallback, new LollipopScanner.FailureListener() {
+                    @Override
+                    public void onScanFailed(int errorCode) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if(mScanning && !mLegacyScanning) {
+                                    startLegacyScan();
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+
+            if(mLollipopScanner.start(mFilters, mScanMode, mReportDelay)) {
+                return;
+            }
+        }
+
+        startLegacyScan();
+    }
+
+    private void startLegacyScan() {
+        mLegacyScanning = true;
+        mBluetoothAdapter.startLeScan(mLegacyCallback);
+    }
+
+    private void stopBackend() {
+        if(mTimeoutTask != null) {
+            mHandler.removeCallbacks(mTimeoutTask);
+            mTimeoutTask = null;
+        }
+
+        if(mLollipopScanner != null) {
+            mLollipopScanner.stop();
+        }
+
+        //旧接口停止一个没有开始的扫描没有影响，和之前一样总是调用
+        mLegacyScanning = false;
+        mBluetoothAdapter.stopLeScan(mLegacyCallback);
+    }
+
     /**
      * 结束扫描
      * */
@@ -71,7 +223,51 @@ public class BluetoothLeScanner {
         scanLeDevice(-1, false);
     }
 
+    /**
+     * 旧接口扫描时在应用中过滤
+     * */
+    private boolean matches(BluetoothDevice device, byte[] scanRecord) {
+        if(mFilters.isEmpty()) {
+            return true;
+        }
+
+        for(int i = 0; i < mFilters.size(); i++) {
+            DeviceFilter filter = mFilters.get(i);
+            if(filter.address != null && !filter.address.equals(device.getAddress())) {
+                continue;
+            }
+            if(filter.name != null && !filter.name.equals(device.getName())) {
+                continue;
+            }
+            if(filter.serviceUuid != null) {
+                synchronized (mParser) {
+                    if(!mParser.parse(scanRecord).hasServiceUuid(filter.serviceUuid)) {
+                        continue;
+                    }
+                }
+            }
+            return true;
+        }
+
+        return false;
+    }
+
     public interface ScanTimeOut{
         void onScanTimeOut();
     }
+
+    /**
+     * 过滤条件
+     * */
+    static class DeviceFilter {
+        final UUID serviceUuid;
+        final String name;
+        final String address;
+
+        DeviceFilter(UUID serviceUuid, String name, String address) {
+            this.serviceUuid = serviceUuid;
+            this.name = name;
+            this.address = address;
+        }
+    }
 }
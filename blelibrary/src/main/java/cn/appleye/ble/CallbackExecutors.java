@@ -0,0 +1,61 @@
+package cn.appleye.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-29
+ * 回调线程，默认在主线程回调。
+ * 数据量大时可以使用{@link #direct()}直接在蓝牙回调线程中处理，或者交给自己的线程池，避免经过主线程
+ */
+public class CallbackExecutors {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static volatile Executor sMainThread;
+
+    private CallbackExecutors() {
+    }
+
+    /**
+     * 在主线程回调
+     * */
+    public static Executor mainThread() {
+        if(sMainThread == null) {
+            synchronized (CallbackExecutors.class) {
+                if(sMainThread == null) {
+                    sMainThread = handler(new Handler(Looper.getMainLooper()));
+                }
+            }
+        }
+
+        return sMainThread;
+    }
+
+    /**
+     * 在Handler所在线程回调
+     * */
+    public static Executor handler(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * 直接在产生事件的线程中回调，通常是蓝牙的binder线程，收到数据时不切换线程也不分配任务对象。
+     * 回调中不能做耗时操作，否则会阻塞后续的蓝牙回调
+     * */
+    public static Executor direct() {
+        return DIRECT;
+    }
+}
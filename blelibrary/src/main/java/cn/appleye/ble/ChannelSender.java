@@ -0,0 +1,339 @@
+package cn.appleye.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author liuliaopu
+ * @date 2017-04-12
+ * 逻辑通道的发送调度，每个通道有自己的{@link SendQueue}，发送器空闲时按轮转从下一个有消息的通道取一段交给发送器。
+ * 只用通道0时整个消息一次交给发送器，和之前相同；用到其它通道之后，长消息按{@link #SEGMENT_FRAMES}个包分段，
+ * 段之间轮到其它通道，大量数据不会长时间阻塞小的控制消息。选择重传格式的消息不分段；
+ * 旧格式的包不带通道号和序号，对端无法区分交错的包，也不分段。
+ * 入队和移除可以在任意线程调用，其它方法只在发送线程中调用
+ */
+class ChannelSender {
+    /**用到多个通道时每段的包数*/
+    static final int SEGMENT_FRAMES = 16;
+
+    private final TaskScheduler mScheduler;
+
+    private final PacketSender mSender;
+
+    private final Encoder mEncoder;
+
+    /**所有通道，按创建顺序轮转，只增不减，写时复制*/
+    private volatile Channel[] mChannels = new Channel[0];
+
+    /**下一次从哪个通道开始查找，只在发送线程中访问*/
+    private int mNextChannel;
+
+    private int mCapacity = SendQueue.DEFAULT_CAPACITY;
+
+    private int mOverflowPolicy = SendQueue.OVERFLOW_REJECT;
+
+    /**是否已经投递了发送下一段的任务*/
+    private boolean mSendPending;
+
+    private final Runnable mSendTask = new Runnable() {
+        @Override
+        public void run() {
+            mSendPending = false;
+            sendNext();
+        }
+    };
+
+    ChannelSender(TaskScheduler scheduler, PacketSender sender, Encoder encoder) {
+        mScheduler = scheduler;
+        mSender = sender;
+        mEncoder = encoder;
+        getChannel(0);
+    }
+
+    /**
+     * 设置每个通道的队列容量和溢出策略，对已有的通道和之后的通道都生效
+     * */
+    void setSendQueue(int capacity, int overflowPolicy) {
+        synchronized (this) {
+            mCapacity = capacity;
+            mOverflowPolicy = overflowPolicy;
+        }
+        for(Channel channel : mChannels) {
+            channel.queue.setCapacity(capacity);
+            channel.queue.setOverflowPolicy(overflowPolicy);
+        }
+    }
+
+    /**
+     * 放入消息所在通道的队列
+     * @see SendQueue#offer(SendFuture, boolean)
+     * */
+    boolean offer(SendFuture future, boolean mayBlock) {
+        return getChannel(future.mChannel).queue.offer(future, mayBlock);
+    }
+
+    /**
+     * 移除还没有出队的消息
+     * @return false 已经出队
+     * */
+    boolean remove(SendFuture future) {
+        return getChannel(future.mChannel).queue.remove(future);
+    }
+
+    /**
+     * 取消已经出队的消息：正在发送的段交给发送器取消，两段之间的消息直接结束
+     * */
+    void cancel(SendFuture future) {
+        Transfer transfer = getChannel(future.mChannel).transfer;
+        if(transfer == null || transfer.future != future) {
+            return;
+        }
+
+        if(transfer.sending) {
+            mSender.cancel(transfer);
+        } else {
+            transfer.finish(PacketSender.RESULT_CANCELLED);
+        }
+    }
+
+    /**
+     * 取出所有队列中超过期限的消息
+     * @return 没有时返回null
+     * */
+    List<SendFuture> expire(long now) {
+        List<SendFuture> expired = null;
+        for(Channel channel : mChannels) {
+            List<SendFuture> list = channel.queue.expire(now);
+            if(list != null) {
+                if(expired == null) {
+                    expired = list;
+                } else {
+                    expired.addAll(list);
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * 所有队列中最早的期限
+     * @return 没有设置期限的消息时返回0
+     * */
+    long earliestDeadline() {
+        long earliest = 0;
+        for(Channel channel : mChannels) {
+            long deadline = channel.queue.earliestDeadline();
+            if(deadline > 0 && (earliest == 0 || deadline < earliest)) {
+                earliest = deadline;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * 取出所有队列中的消息和两段之间的消息，在发送器清空之后调用
+     * */
+    List<SendFuture> clear() {
+        ArrayList<SendFuture> all = new ArrayList<>();
+        for(Channel channel : mChannels) {
+            all.addAll(channel.queue.clear());
+            Transfer transfer = channel.transfer;
+            if(transfer != null && !transfer.sending) {
+                channel.transfer = null;
+                transfer.frames.release();
+                all.add(transfer.future);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * 发送器空闲时按轮转交给发送器下一段
+     * */
+    void sendNext() {
+        Transfer transfer;
+        while(!mSender.isBusy() && (transfer = nextTransfer()) != null) {
+            sendSegment(transfer);
+        }
+    }
+
+    private Channel getChannel(int channel) {
+        for(Channel c : mChannels) {
+            if(c.id == channel) {
+                return c;
+            }
+        }
+
+        synchronized (this) {
+            Channel[] channels = mChannels;
+            for(Channel c : channels) {
+                if(c.id == channel) {
+                    return c;
+                }
+            }
+
+            Channel created = new Channel(channel, new SendQueue(mScheduler));
+            created.queue.setCapacity(mCapacity);
+            created.queue.setOverflowPolicy(mOverflowPolicy);
+            Channel[] newChannels = new Channel[channels.length + 1];
+            System.arraycopy(channels, 0, newChannels, 0, channels.length);
+            newChannels[channels.length] = created;
+            mChannels = newChannels;
+            return created;
+        }
+    }
+
+    /**
+     * 从mNextChannel开始找到第一个有消息的通道，没有正在发送的消息时从队列中取出并编码
+     * */
+    private Transfer nextTransfer() {
+        Channel[] channels = mChannels;
+        for(int i = 0; i < channels.length; i++) {
+            int index = (mNextChannel + i) % channels.length;
+            Channel channel = channels[index];
+            SendFuture future;
+            while(channel.transfer == null && (future = channel.queue.poll()) != null) {
+                FrameEncoder frames = mEncoder.encode(future);
+                if(frames != null) {
+                    channel.transfer = new Transfer(channel, future, frames);
+                }
+            }
+
+            if(channel.transfer != null) {
+                mNextChannel = (index + 1) % channels.length;
+                return channel.transfer;
+            }
+        }
+
+        return null;
+    }
+
+    private void sendSegment(Transfer transfer) {
+        SendFuture future = transfer.future;
+        if(future.isCancelRequested()) {
+            transfer.finish(PacketSender.RESULT_CANCELLED);
+            return;
+        }
+
+        FrameEncoder frames = transfer.frames;
+        boolean selective = frames.getFormat() == BLEDataUtil.FORMAT_SELECTIVE_REPEAT;
+        boolean segmented = frames.getFormat() == BLEDataUtil.FORMAT_LENGTH_PREFIXED && mChannels.length > 1;
+        int count = frames.frameCount();
+        int start = transfer.next;
+        int end = segmented ? Math.min(count, start + SEGMENT_FRAMES) : count;
+        FrameRange range = new FrameRange(frames, start, end);
+        transfer.end = end;
+        transfer.sending = true;
+
+        if(selective) {
+            mSender.sendSelective(range, frames.getMessageId(), future.mStreaming, future.mDeadline, transfer);
+        } else if(start == 0) {
+            mSender.send(range, future.mStreaming, future.mDeadline, transfer);
+        } else {
+            mSender.sendSegment(range, future.mStreaming, future.mDeadline, transfer);
+        }
+    }
+
+    private void scheduleSendNext() {
+        if(!mSendPending) {
+            mSendPending = true;
+            mScheduler.postDelayed(mSendTask, 0);
+        }
+    }
+
+    /**
+     * 编码消息
+     * */
+    interface Encoder {
+        /**
+         * @return 编码好的包，无法发送时结束future并返回null
+         * */
+        FrameEncoder encode(SendFuture future);
+    }
+
+    private static class Channel {
+        final int id;
+        final SendQueue queue;
+
+        /**已经出队的消息，只在发送线程中访问*/
+        Transfer transfer;
+
+        Channel(int id, SendQueue queue) {
+            this.id = id;
+            this.queue = queue;
+        }
+    }
+
+    /**
+     * 已经出队、分段发送的消息
+     * */
+    private class Transfer implements PacketSender.SendCallback {
+        final Channel channel;
+        final SendFuture future;
+        final FrameEncoder frames;
+
+        /**下一段的第一个包*/
+        int next;
+
+        /**正在发送的段的结尾*/
+        int end;
+
+        /**是否有一段在发送器中*/
+        boolean sending;
+
+        Transfer(Channel channel, SendFuture future, FrameEncoder frames) {
+            this.channel = channel;
+            this.future = future;
+            this.frames = frames;
+        }
+
+        @Override
+        public void onSendComplete(int result) {
+            sending = false;
+            if(result == PacketSender.RESULT_SUCCESS && end < frames.frameCount()) {
+                next = end;
+                scheduleSendNext();
+                return;
+            }
+
+            finish(result);
+        }
+
+        void finish(int result) {
+            if(channel.transfer == this) {
+                channel.transfer = null;
+            }
+            frames.release();
+            future.mSendCallback.onSendComplete(result);
+        }
+    }
+
+    /**
+     * 消息中的一段包，不负责释放
+     * */
+    private static class FrameRange implements FrameSource {
+        private final FrameSource mFrames;
+        private final int mStart;
+        private final int mCount;
+
+        FrameRange(FrameSource frames, int start, int end) {
+            mFrames = frames;
+            mStart = start;
+            mCount = end - start;
+        }
+
+        @Override
+        public int frameCount() {
+            return mCount;
+        }
+
+        @Override
+        public byte[] frame(int index) {
+            return mFrames.frame(mStart + index);
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
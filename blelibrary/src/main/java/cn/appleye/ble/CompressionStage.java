@@ -0,0 +1,71 @@
+package cn.appleye.ble;
+
+import java.io.IOException;
+
+/**
+ * @author liuliaopu
+ * @date 2017-04-10
+ * 发送和接收之间的压缩环节。设置了{@link PayloadCodec}的连接，每个消息前面都加1字节编码ID：
+ * 0表示原数据，否则是压缩后的数据。太短的消息和压缩之后没有变小的消息直接按原数据发送，
+ * 旧帧格式会去掉结尾的0x00，不能承载压缩后的数据，也按原数据发送
+ */
+class CompressionStage {
+    /**短于这个长度的消息不压缩，压缩头和Deflate的块头就能抵消收益*/
+    static final int MIN_COMPRESS_LENGTH = 48;
+
+    /**原数据的编码ID*/
+    static final int ID_RAW = 0;
+
+    private CompressionStage() {
+    }
+
+    /**
+     * 压缩要发送的消息
+     * @param codec 为空表示不压缩，也不加编码ID
+     * @return 加了编码ID的数据
+     * */
+    static byte[] encode(PayloadCodec codec, byte[] data, int format) {
+        if(codec == null) {
+            return data;
+        }
+
+        byte[] compressed = null;
+        if(data.length >= MIN_COMPRESS_LENGTH && format != BLEDataUtil.FORMAT_LEGACY) {
+            compressed = codec.compress(data, 0, data.length);
+        }
+
+        byte[] payload = compressed != null ? compressed : data;
+        byte[] result = new byte[payload.length + 1];
+        result[0] = (byte) (compressed != null ? codec.getId() : ID_RAW);
+        System.arraycopy(payload, 0, result, 1, payload.length);
+        return result;
+    }
+
+    /**
+     * 在原缓冲区中解压收到的消息，去掉编码ID
+     * @param codec 为空表示没有压缩环节，不做处理
+     * @throws IOException 编码ID不匹配或者数据损坏
+     * */
+    static void decode(PayloadCodec codec, ReassemblyBuffer buffer) throws IOException {
+        if(codec == null) {
+            return;
+        }
+        if(buffer.length() == 0) {
+            throw new IOException("missing codec id");
+        }
+
+        byte[] data = buffer.array();
+        int id = data[0] & 0xFF;
+        if(id == ID_RAW) {
+            buffer.discard(1);
+            return;
+        }
+        if(id != codec.getId()) {
+            throw new IOException("unknown codec id " + id);
+        }
+
+        byte[] result = codec.decompress(data, 1, buffer.length() - 1);
+        buffer.reset();
+        buffer.append(result, 0, result.length);
+    }
+}
@@ -0,0 +1,129 @@
+package cn.appleye.ble;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author liuliaopu
+ * @date 2017-04-16
+ * 连接状态机，只决定GATT回调之后状态怎么切换、连接要做什么，具体的操作由{@link BLEConnection}执行。
+ * 断开(不管status是不是0)、发现服务失败、订阅失败都回到连接中，按重连策略重试，不会停在中间状态。
+ * GATT回调线程、主线程、发送线程和调用者线程都会修改，只通过CAS切换，不加锁
+ */
+class ConnectionStateMachine {
+    /**不需要处理*/
+    static final int ACTION_NONE = 0;
+
+    /**连接成功，开始发现服务*/
+    static final int ACTION_DISCOVER = 1;
+
+    /**已经主动断开之后才连上，关闭这个gatt*/
+    static final int ACTION_CLOSE = 2;
+
+    /**断开或者出错，已经回到连接中，按重连策略重试*/
+    static final int ACTION_RETRY = 3;
+
+    /**服务发现成功，开始订阅特征值*/
+    static final int ACTION_SUBSCRIBE = 4;
+
+    /**订阅成功，可以发送数据*/
+    static final int ACTION_READY = 5;
+
+    private final AtomicInteger mState = new AtomicInteger(BLEConnection.STATE_DISCONNECTED);
+
+    int getState() {
+        return mState.get();
+    }
+
+    /**
+     * 直接切换到state，用于connect和disconnect
+     * @return 之前的状态
+     * */
+    int set(int state) {
+        return mState.getAndSet(state);
+    }
+
+    /**
+     * 是否已经主动断开或者放弃重连
+     * */
+    boolean isClosed() {
+        int state = mState.get();
+        return state == BLEConnection.STATE_CLOSING || state == BLEConnection.STATE_DISCONNECTED;
+    }
+
+    /**
+     * 从from切换到to，状态已经被其它线程改变时失败
+     * */
+    boolean transition(int from, int to) {
+        return mState.compareAndSet(from, to);
+    }
+
+    /**
+     * 连接出错之后回到连接中，已经主动断开或者放弃重连时失败
+     * */
+    boolean restart() {
+        while(true) {
+            int state = mState.get();
+            if(state == BLEConnection.STATE_CLOSING || state == BLEConnection.STATE_DISCONNECTED) {
+                return false;
+            }
+            if(state == BLEConnection.STATE_CONNECTING || transition(state, BLEConnection.STATE_CONNECTING)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 连接状态变化，正在关闭的gatt不经过这里
+     * @return {@link #ACTION_DISCOVER}, {@link #ACTION_CLOSE}, {@link #ACTION_RETRY}, {@link #ACTION_NONE}
+     * */
+    int onConnectionStateChange(int status, int newState) {
+        if(status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothGatt.STATE_CONNECTED) {
+            if(transition(BLEConnection.STATE_CONNECTING, BLEConnection.STATE_DISCOVERING)) {
+                return ACTION_DISCOVER;
+            }
+            //disconnect之后才连上的gatt要关闭，重复的回调忽略
+            return isClosed() ? ACTION_CLOSE : ACTION_NONE;
+        }
+
+        //出错或者断开，status为0的断开也要重连，不是用户手动断开的就继续重试
+        if(status != BluetoothGatt.GATT_SUCCESS || newState == BluetoothGatt.STATE_DISCONNECTED) {
+            return restart() ? ACTION_RETRY : ACTION_NONE;
+        }
+        return ACTION_NONE;
+    }
+
+    /**
+     * 服务发现完成，服务变化之后协议栈也会重新发现，所以就绪状态下也会回调
+     * @return {@link #ACTION_SUBSCRIBE}, {@link #ACTION_RETRY}, {@link #ACTION_NONE}
+     * */
+    int onServicesDiscovered(int status) {
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            if(transition(BLEConnection.STATE_DISCOVERING, BLEConnection.STATE_SUBSCRIBING)
+                    || transition(BLEConnection.STATE_READY, BLEConnection.STATE_SUBSCRIBING)) {
+                return ACTION_SUBSCRIBE;
+            }
+            return ACTION_NONE;
+        }
+
+        //已经在重连或者已经断开时不再重复重试
+        if(transition(BLEConnection.STATE_DISCOVERING, BLEConnection.STATE_CONNECTING)
+                || transition(BLEConnection.STATE_READY, BLEConnection.STATE_CONNECTING)) {
+            return ACTION_RETRY;
+        }
+        return ACTION_NONE;
+    }
+
+    /**
+     * 特征值订阅完成，成功时在MTU协商完成之后才调用
+     * @return {@link #ACTION_READY}, {@link #ACTION_RETRY}, {@link #ACTION_NONE}
+     * */
+    int onSubscribed(boolean success) {
+        if(transition(BLEConnection.STATE_SUBSCRIBING,
+                success ? BLEConnection.STATE_READY : BLEConnection.STATE_CONNECTING)) {
+            return success ? ACTION_READY : ACTION_RETRY;
+        }
+        return ACTION_NONE;
+    }
+}
@@ -0,0 +1,138 @@
+package cn.appleye.ble;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author liuliaopu
+ * @date 2017-04-10
+ * Deflate压缩，不带zlib头和校验(链路层已经有CRC)，可以设置预置字典：
+ * 短JSON消息本身重复很少，把常用的key和取值放进字典，压缩率能提高很多。
+ * Deflater和Inflater各复用一个，分别加锁
+ */
+public class DeflateCodec implements PayloadCodec {
+    public static final int ID = 1;
+
+    /**解压后的最大长度，防止损坏的数据或者恶意数据占用大量内存*/
+    public static final int DEFAULT_MAX_DECOMPRESSED_SIZE = 1024 * 1024;
+
+    /**临时缓冲区保留的最大容量，和ReassemblyBuffer一致*/
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    /**临时缓冲区初始容量*/
+    private static final int INITIAL_BUFFER = 256;
+
+    private final Deflater mDeflater;
+
+    private final Inflater mInflater;
+
+    private final byte[] mDictionary;
+
+    private final int mMaxDecompressedSize;
+
+    /**压缩和解压的临时缓冲区*/
+    private byte[] mDeflateBuffer = new byte[INITIAL_BUFFER];
+    private byte[] mInflateBuffer = new byte[INITIAL_BUFFER];
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /**
+     * @param level 压缩级别，{@link Deflater#BEST_SPEED}~{@link Deflater#BEST_COMPRESSION}
+     * @param dictionary 预置字典，为空表示不使用，两端必须相同
+     * */
+    public DeflateCodec(int level, byte[] dictionary) {
+        this(level, dictionary, DEFAULT_MAX_DECOMPRESSED_SIZE);
+    }
+
+    public DeflateCodec(int level, byte[] dictionary, int maxDecompressedSize) {
+        mDeflater = new Deflater(level, true);
+        mInflater = new Inflater(true);
+        mDictionary = dictionary != null && dictionary.length > 0 ? dictionary.clone() : null;
+        mMaxDecompressedSize = maxDecompressedSize;
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+        synchronized (mDeflater) {
+            mDeflater.reset();
+            if(mDictionary != null) {
+                mDeflater.setDictionary(mDictionary);
+            }
+            mDeflater.setInput(data, offset, length);
+            mDeflater.finish();
+
+            int size = 0;
+            while(!mDeflater.finished()) {
+                if(size == mDeflateBuffer.length) {
+                    if(size >= length) {//没有变小，不再继续压缩
+                        return null;
+                    }
+                    mDeflateBuffer = grow(mDeflateBuffer, size);
+                }
+                size += mDeflater.deflate(mDeflateBuffer, size, mDeflateBuffer.length - size);
+            }
+
+            if(size >= length) {
+                return null;
+            }
+            byte[] result = new byte[size];
+            System.arraycopy(mDeflateBuffer, 0, result, 0, size);
+            if(mDeflateBuffer.length > MAX_RETAINED_BUFFER) {
+                mDeflateBuffer = new byte[INITIAL_BUFFER];
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        synchronized (mInflater) {
+            mInflater.reset();
+            if(mDictionary != null) {
+                mInflater.setDictionary(mDictionary);
+            }
+            mInflater.setInput(data, offset, length);
+
+            int size = 0;
+            try {
+                while(!mInflater.finished()) {
+                    if(size == mInflateBuffer.length) {
+                        if(size >= mMaxDecompressedSize) {
+                            throw new IOException("decompressed size exceeds " + mMaxDecompressedSize);
+                        }
+                        mInflateBuffer = grow(mInflateBuffer, size);
+                    }
+                    int count = mInflater.inflate(mInflateBuffer, size, mInflateBuffer.length - size);
+                    if(count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                        throw new IOException("truncated deflate data");
+                    }
+                    size += count;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+
+            byte[] result = new byte[size];
+            System.arraycopy(mInflateBuffer, 0, result, 0, size);
+            if(mInflateBuffer.length > MAX_RETAINED_BUFFER) {
+                mInflateBuffer = new byte[INITIAL_BUFFER];
+            }
+            return result;
+        }
+    }
+
+    private static byte[] grow(byte[] buffer, int size) {
+        byte[] newBuffer = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, newBuffer, 0, size);
+        return newBuffer;
+    }
+}
@@ -0,0 +1,572 @@
+package cn.appleye.ble;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-08
+ * 拼包器，同时支持旧格式、长度前缀格式和选择重传格式，根据每个包的标志位自动区分。
+ * 长度前缀格式在首包按总长度预先分配缓冲区(最多{@link ReassemblyBuffer#MAX_RETAINED_CAPACITY}，之后按实际收到的数据扩容)，
+ * 收满总长度即完成，不会去掉结尾的0x00；
+ * 外设有多个数据特征值时包可能乱序到达，提前到达的包按序号暂存，最多{@link #MAX_REORDER_FRAMES}个，
+ * 只在一个消息之内重排；超出范围或者重复的序号按丢包处理，直接丢弃整个消息，不会拼出错误的数据。
+ * 选择重传格式可以乱序接收，需要回复给发送端的状态包通过{@link #takeStatus()}取出。
+ * 带通道号的包交给各自通道的拼包器，不同通道的消息可以交错到达，互不影响。
+ * 每个未完成的消息有最大长度和期限，超过{@link #MAX_PARTIAL_MESSAGES}个时淘汰最早的，
+ * 链路再差也不会无限占用内存。期限在收到下一个包时检查，没有定时器，链路空闲时未完成的消息
+ * 一直保留到下一个包到达或者{@link #reset()}，占用的内存和实际收到的数据成正比。
+ * 非线程安全，同一个连接的包应该在同一个线程中处理
+ */
+public class FrameAssembler {
+    /**长度前缀格式的包最多可以比期望的序号提前多少个到达*/
+    static final int MAX_REORDER_FRAMES = 32;
+
+    /**默认的消息最大长度*/
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    /**默认的拼包期限，未完成的消息超过这个时间没有收到新的包，在收到下一个包时丢弃*/
+    public static final long DEFAULT_REASSEMBLY_TIMEOUT = 10000;
+
+    /**所有通道最多同时拼接的消息数*/
+    static final int MAX_PARTIAL_MESSAGES = 8;
+
+    /**通道0的拼包器，配置和计数都在这里，通道0自己指向自己*/
+    private final FrameAssembler mRoot;
+
+    /**时钟，为空时不检查期限*/
+    private final TaskScheduler mClock;
+
+    private volatile int mMaxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    private volatile long mReassemblyTimeout = DEFAULT_REASSEMBLY_TIMEOUT;
+
+    /**出错丢弃的消息数：丢包、重复、超长、被新的消息打断*/
+    private volatile int mDroppedCount;
+
+    /**超过期限或者被淘汰的未完成消息数*/
+    private volatile int mPartialCount;
+
+    /**最早可能超过期限的时间，只是下限，到了之后重新检查*/
+    private long mNextExpiry = Long.MAX_VALUE;
+
+    /**未完成的消息开始的先后，用于淘汰最早的*/
+    private long mStartCounter;
+
+    /**正在拼接的数据*/
+    private ReassemblyBuffer mBuffer;
+
+    /**是否有未完成的消息*/
+    private boolean mPartial;
+
+    /**本次处理的包是否开始了一个新消息*/
+    private boolean mStarted;
+
+    /**未完成的消息开始的顺序*/
+    private long mStartOrder;
+
+    /**未完成的消息最近一次收到包的时间*/
+    private long mLastFrameTime;
+
+    /**旧格式是否收到了开始包*/
+    private boolean mLegacyStarted;
+
+    /**长度前缀格式的总长度，-1表示没有正在拼接的长度前缀消息*/
+    private int mExpectedLength = -1;
+
+    /**长度前缀格式期望的下一个序号*/
+    private int mNextSequence;
+
+    /**提前到达的长度前缀格式的包，按序号取余存放，第一次乱序时创建*/
+    private byte[][] mEarlyFrames;
+
+    /**暂存的包数*/
+    private int mEarlyCount;
+
+    /**丢包之后丢弃后续的包，直到下一个首包*/
+    private boolean mDiscarding;
+
+    /**选择重传格式的接收端，收到第一个选择重传的包时创建*/
+    private SelectiveRepeatReceiver mSelective;
+
+    /**其它逻辑通道的拼包器，通道0使用当前对象*/
+    private HashMap<Integer, FrameAssembler> mChannels;
+
+    /**已完整的消息所在的通道的拼包器，通道0为空*/
+    private FrameAssembler mCompleted;
+
+    /**已完整的消息所在的通道*/
+    private int mMessageChannel;
+
+    /**其它通道等待写回的状态包，已经加上通道号*/
+    private byte[] mChannelStatus;
+
+    /**
+     * 不检查期限，只限制消息长度和未完成的消息数
+     * */
+    public FrameAssembler() {
+        this((TaskScheduler) null);
+    }
+
+    /**
+     * @param clock 提供当前时间，用于检查拼包期限
+     * */
+    public FrameAssembler(TaskScheduler clock) {
+        mRoot = this;
+        mClock = clock;
+    }
+
+    private FrameAssembler(FrameAssembler root) {
+        mRoot = root;
+        mClock = null;
+    }
+
+    /**
+     * 设置消息的最大长度，超出的消息直接丢弃，默认{@link #DEFAULT_MAX_MESSAGE_SIZE}
+     * */
+    public void setMaxMessageSize(int maxMessageSize) {
+        mMaxMessageSize = Math.max(0, maxMessageSize);
+    }
+
+    /**
+     * 设置拼包期限，未完成的消息超过这个时间没有收到新的包就丢弃，0表示不限。
+     * 在收到下一个包时检查，默认{@link #DEFAULT_REASSEMBLY_TIMEOUT}
+     * */
+    public void setReassemblyTimeout(long timeout) {
+        mReassemblyTimeout = Math.max(0, timeout);
+    }
+
+    /**
+     * 出错丢弃的消息数，包括丢包、重复的包、超长和被新的消息打断，可以在任意线程读取
+     * */
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * 超过期限或者因为未完成的消息太多被淘汰的消息数，可以在任意线程读取
+     * */
+    public int getPartialCount() {
+        return mPartialCount;
+    }
+
+    /**
+     * 处理收到的包
+     * @return true 消息已完整，通过{@link #takeMessage()}取出
+     * */
+    public boolean onFrame(byte[] frame) {
+        if(frame == null || frame.length == 0) {
+            return false;
+        }
+
+        long now = mClock != null ? mClock.uptimeMillis() : 0;
+        if(mClock != null && now >= mNextExpiry) {
+            evictExpired(now);
+        }
+
+        if(BLEDataUtil.hasChannel(frame)) {
+            return onChannelFrame(BLEDataUtil.frameChannel(frame), BLEDataUtil.stripChannel(frame), now);
+        }
+
+        return onContextFrame(frame, now);
+    }
+
+    /**
+     * 处理属于当前通道的包，记录未完成的消息的开始顺序和最近收到包的时间
+     * */
+    private boolean onContextFrame(byte[] frame, long now) {
+        if(mBuffer == null) {
+            mBuffer = ReassemblyBuffer.obtain();
+        }
+
+        mStarted = false;
+        boolean complete;
+        if(BLEDataUtil.isSelectiveRepeat(frame)) {
+            complete = onSelectiveFrame(frame);
+        } else if(!BLEDataUtil.isLengthPrefixed(frame)) {
+            complete = onLegacyFrame(frame);
+        } else {
+            complete = onLengthPrefixedFrame(frame);
+        }
+
+        if(complete || !hasPartialData()) {
+            mPartial = false;
+            return complete;
+        }
+
+        boolean started = !mPartial || mStarted;
+        mPartial = true;
+        mLastFrameTime = now;
+        long timeout = mRoot.mReassemblyTimeout;
+        if(timeout > 0 && mRoot.mClock != null) {
+            mRoot.mNextExpiry = Math.min(mRoot.mNextExpiry, now + timeout);
+        }
+        if(started) {
+            mStartOrder = mRoot.mStartCounter++;
+            mRoot.limitPartialMessages(this);
+        }
+        return false;
+    }
+
+    private boolean onSelectiveFrame(byte[] frame) {
+        mExpectedLength = -1;
+        mLegacyStarted = false;
+        if(mSelective == null) {
+            mSelective = new SelectiveRepeatReceiver();
+        }
+
+        int previous = mSelective.receivingMessageId();
+        int dropped = mSelective.droppedCount();
+        boolean complete = mSelective.onFrame(frame, mBuffer, mRoot.mMaxMessageSize);
+        int current = mSelective.receivingMessageId();
+        mRoot.mDroppedCount += mSelective.droppedCount() - dropped;
+        mStarted = current >= 0 && current != previous;
+        return complete;
+    }
+
+    /**
+     * 旧格式只有开始、继续、结束标志，没有开始包的继续包不能拼到之前的数据后面，
+     * 丢弃到下一个开始包或者结尾包为止；没有开始包的结尾包是只有一个包的消息
+     * */
+    private boolean onLegacyFrame(byte[] frame) {
+        mExpectedLength = -1;
+        boolean end = BLEDataUtil.isEnd(frame);
+        if(BLEDataUtil.isStart(frame)) {
+            if(mLegacyStarted) {
+                mRoot.mDroppedCount++;
+            }
+            mDiscarding = false;
+            mLegacyStarted = true;
+            mStarted = true;
+            mBuffer.reset();
+        } else if(!mLegacyStarted) {
+            if(mDiscarding) {
+                mDiscarding = !end;
+                return false;
+            }
+            if(!end) {
+                drop();
+                return false;
+            }
+            mBuffer.reset();
+        }
+
+        if(mBuffer.length() + frame.length - 1 > mRoot.mMaxMessageSize) {
+            drop();
+            mDiscarding = !end;
+            return false;
+        }
+
+        if(BLEDataUtil.decode(frame, mBuffer)) {
+            mLegacyStarted = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 按序号处理长度前缀格式的包，期望的包到达之后接着拼接暂存的包
+     * */
+    private boolean onLengthPrefixedFrame(byte[] frame) {
+        mLegacyStarted = false;
+        if(frame.length < BLEDataUtil.FRAME_HEADER_SIZE) {//帧头不完整，不能读取序号
+            drop();
+            return false;
+        }
+        int sequence = BLEDataUtil.frameSequence(frame);
+        if(BLEDataUtil.isFirstFrame(frame)) {
+            if(mExpectedLength >= 0) {//上一个消息没有收完，暂存的包都属于它
+                mRoot.mDroppedCount++;
+                clearEarlyFrames();
+            }
+            mDiscarding = false;
+            mStarted = true;
+            mNextSequence = sequence;
+        } else if(mDiscarding) {
+            return false;
+        } else {
+            int ahead = (sequence - mNextSequence) & 0xFFFF;
+            if(ahead > 0 && ahead < MAX_REORDER_FRAMES) {//提前到达，包括先于首包到达的包
+                holdEarlyFrame(frame, sequence);
+                return false;
+            }
+            if(ahead != 0 || mExpectedLength < 0) {//没有首包、重复或者中间丢了包
+                drop();
+                return false;
+            }
+        }
+
+        boolean complete = appendFrame(frame);
+        while(!complete && mExpectedLength >= 0 && mEarlyCount > 0) {
+            byte[] early = takeEarlyFrame(mNextSequence);
+            if(early == null) {
+                break;
+            }
+            complete = appendFrame(early);
+        }
+        return complete;
+    }
+
+    /**
+     * 拼接序号正确的包
+     * @return 是否已完整
+     * */
+    private boolean appendFrame(byte[] frame) {
+        int headerSize;
+        if(BLEDataUtil.isFirstFrame(frame)) {
+            int totalLength = BLEDataUtil.frameTotalLength(frame);
+            if(totalLength < 0 || totalLength > mRoot.mMaxMessageSize) {
+                drop();
+                return false;
+            }
+            mBuffer.reset();
+            //声明的长度不可信，只预先分配一部分，内存随实际收到的数据增长
+            mBuffer.ensureCapacity(Math.min(totalLength, ReassemblyBuffer.MAX_RETAINED_CAPACITY));
+            mExpectedLength = totalLength;
+            headerSize = BLEDataUtil.FIRST_HEADER_SIZE;
+        } else {
+            headerSize = BLEDataUtil.FRAME_HEADER_SIZE;
+        }
+
+        int payloadLength = frame.length - headerSize;
+        if(mBuffer.length() + payloadLength > mExpectedLength) {
+            drop();
+            return false;
+        }
+
+        mBuffer.append(frame, headerSize, payloadLength);
+        mNextSequence = (BLEDataUtil.frameSequence(frame) + 1) & 0xFFFF;
+        if(mBuffer.length() == mExpectedLength) {
+            //下一个消息从序号0开始
+            mExpectedLength = -1;
+            mNextSequence = 0;
+            clearEarlyFrames();
+            return true;
+        }
+
+        return false;
+    }
+
+    private void holdEarlyFrame(byte[] frame, int sequence) {
+        if(mEarlyFrames == null) {
+            mEarlyFrames = new byte[MAX_REORDER_FRAMES][];
+        }
+
+        int index = sequence % MAX_REORDER_FRAMES;
+        if(mEarlyFrames[index] == null) {
+            mEarlyCount++;
+        }
+        //收到的包可能被调用者复用，暂存时拷贝，按顺序到达的包不拷贝
+        mEarlyFrames[index] = frame.clone();
+    }
+
+    private byte[] takeEarlyFrame(int sequence) {
+        int index = sequence % MAX_REORDER_FRAMES;
+        byte[] frame = mEarlyFrames[index];
+        if(frame == null || BLEDataUtil.frameSequence(frame) != sequence) {
+            return null;
+        }
+
+        mEarlyFrames[index] = null;
+        mEarlyCount--;
+        return frame;
+    }
+
+    private void clearEarlyFrames() {
+        if(mEarlyCount > 0) {
+            Arrays.fill(mEarlyFrames, null);
+            mEarlyCount = 0;
+        }
+    }
+
+    /**
+     * 是否有拼接到一半的数据
+     * */
+    private boolean hasPartialData() {
+        return mExpectedLength >= 0 || mEarlyCount > 0 || mLegacyStarted
+                || (mSelective != null && mSelective.receivingMessageId() >= 0);
+    }
+
+    /**
+     * 出错时丢弃当前通道正在拼接的消息，之后的包都丢弃，直到下一个首包，不影响其它通道
+     * */
+    private void drop() {
+        mRoot.mDroppedCount++;
+        mExpectedLength = -1;
+        mNextSequence = 0;
+        mLegacyStarted = false;
+        mDiscarding = true;
+        clearEarlyFrames();
+        if(mBuffer != null) {
+            mBuffer.reset();
+        }
+    }
+
+    /**
+     * 丢弃超过期限或者被淘汰的未完成消息，释放缓冲区，剩下的包也丢弃，不会拼到下一个消息中
+     * */
+    private void evict() {
+        mRoot.mPartialCount++;
+        resetContext();
+        mDiscarding = true;
+        if(mBuffer != null) {
+            mBuffer.recycle();
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * 丢弃所有超过期限的未完成消息，重新计算下一次检查的时间
+     * */
+    private void evictExpired(long now) {
+        long timeout = mReassemblyTimeout;
+        mNextExpiry = Long.MAX_VALUE;
+        if(timeout == 0) {
+            return;
+        }
+
+        if(mPartial) {
+            if(now - mLastFrameTime >= timeout) {
+                evict();
+            } else {
+                mNextExpiry = mLastFrameTime + timeout;
+            }
+        }
+        if(mChannels != null) {
+            for(FrameAssembler assembler : mChannels.values()) {
+                if(!assembler.mPartial) {
+                    continue;
+                }
+                if(now - assembler.mLastFrameTime >= timeout) {
+                    assembler.evict();
+                } else {
+                    mNextExpiry = Math.min(mNextExpiry, assembler.mLastFrameTime + timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * 未完成的消息超过{@link #MAX_PARTIAL_MESSAGES}个时淘汰最早开始的，刚开始的消息除外
+     * */
+    private void limitPartialMessages(FrameAssembler current) {
+        if(mChannels == null) {
+            return;
+        }
+
+        int count = mPartial ? 1 : 0;
+        FrameAssembler oldest = mPartial && this != current ? this : null;
+        for(FrameAssembler assembler : mChannels.values()) {
+            if(!assembler.mPartial) {
+                continue;
+            }
+            count++;
+            if(assembler != current && (oldest == null || assembler.mStartOrder < oldest.mStartOrder)) {
+                oldest = assembler;
+            }
+        }
+
+        if(count > MAX_PARTIAL_MESSAGES && oldest != null) {
+            oldest.evict();
+        }
+    }
+
+    private boolean onChannelFrame(int channel, byte[] frame, long now) {
+        if(channel == 0) {
+            return onContextFrame(frame, now);
+        }
+
+        if(mChannels == null) {
+            mChannels = new HashMap<>();
+        }
+        FrameAssembler assembler = mChannels.get(channel);
+        if(assembler == null) {
+            assembler = new FrameAssembler(this);
+            mChannels.put(channel, assembler);
+        }
+
+        boolean complete = assembler.onContextFrame(frame, now);
+        byte[] status = assembler.takeStatus();
+        if(status != null) {
+            mChannelStatus = BLEDataUtil.addChannel(status, channel);
+        }
+        if(complete) {
+            mCompleted = assembler;
+            mMessageChannel = channel;
+        }
+        return complete;
+    }
+
+    /**
+     * 最近一次完整的消息所在的逻辑通道，在{@link #takeMessage()}之前调用
+     * */
+    public int messageChannel() {
+        return mMessageChannel;
+    }
+
+    /**
+     * 取出完整的消息，之后由调用者负责{@link ReassemblyBuffer#recycle()}
+     * */
+    public ReassemblyBuffer takeMessage() {
+        if(mCompleted != null) {
+            ReassemblyBuffer buffer = mCompleted.takeMessage();
+            mCompleted = null;
+            mMessageChannel = 0;
+            return buffer;
+        }
+
+        ReassemblyBuffer buffer = mBuffer;
+        mBuffer = null;
+        mExpectedLength = -1;
+        return buffer;
+    }
+
+    /**
+     * 取出需要写回发送端的选择重传状态包，每次{@link #onFrame(byte[])}之后调用
+     * @return 没有时返回null
+     * */
+    public byte[] takeStatus() {
+        if(mChannelStatus != null) {
+            byte[] status = mChannelStatus;
+            mChannelStatus = null;
+            return status;
+        }
+        return mSelective != null ? mSelective.takeStatus() : null;
+    }
+
+    /**
+     * 丢弃正在拼接的数据
+     * */
+    public void reset() {
+        resetContext();
+        if(mChannels != null) {
+            for(FrameAssembler assembler : mChannels.values()) {
+                assembler.reset();
+            }
+        }
+        mCompleted = null;
+        mMessageChannel = 0;
+        mChannelStatus = null;
+        if(mRoot == this) {
+            mNextExpiry = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 丢弃当前通道正在拼接的数据，不影响其它通道
+     * */
+    private void resetContext() {
+        mExpectedLength = -1;
+        mNextSequence = 0;
+        mDiscarding = false;
+        mLegacyStarted = false;
+        mPartial = false;
+        clearEarlyFrames();
+        if(mSelective != null) {
+            mSelective.reset();
+        }
+        if(mBuffer != null) {
+            mBuffer.reset();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package cn.appleye.ble;
+
+import java.util.Arrays;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-10
+ * 分包游标：直接从原始数据中按序号生成包，写入复用的数组，而不是一次性分配byte[][]，
+ * 稳定发送时每个包不再分配内存。通过{@link #obtain}和{@link #release()}复用
+ */
+public class FrameEncoder implements FrameSource {
+    /**缓存池大小*/
+    private static final int MAX_POOL_SIZE = 4;
+
+    private static final Object sPoolSync = new Object();
+    private static FrameEncoder sPool;
+    private static int sPoolSize = 0;
+
+    /**缓存池中的下一个*/
+    private FrameEncoder mNext;
+
+    private byte[] mData;
+    private int mOffset;
+    private int mLength;
+    private int mFormat;
+    private int mPacketSize;
+    private int mFrameCount;
+
+    /**选择重传格式的消息ID*/
+    private int mMessageId;
+
+    /**逻辑通道*/
+    private int mChannel;
+
+    /**通道号占用的字节数，通道0和旧格式不带通道号*/
+    private int mChannelSize;
+
+    /**完整大小的包*/
+    private byte[] mFrame;
+
+    /**不足完整大小的最后一个包*/
+    private byte[] mLastFrame;
+
+    /**
+     * 从缓存池中获取并设置数据
+     * */
+    public static FrameEncoder obtain(byte[] data, int format, int packetSize) {
+        return obtain(data, format, packetSize, 0);
+    }
+
+    /**
+     * 从缓存池中获取并设置数据
+     * @param channel 逻辑通道，旧格式不支持，按通道0发送
+     * */
+    public static FrameEncoder obtain(byte[] data, int format, int packetSize, int channel) {
+        FrameEncoder encoder = null;
+        synchronized (sPoolSync) {
+            if(sPool != null) {
+                encoder = sPool;
+                sPool = encoder.mNext;
+                encoder.mNext = null;
+                sPoolSize--;
+            }
+        }
+
+        if(encoder == null) {
+            encoder = new FrameEncoder();
+        }
+        encoder.reset(data, 0, data.length, format, packetSize, channel);
+        return encoder;
+    }
+
+    /**
+     * 放回缓存池，之后不能再使用
+     * */
+    @Override
+    public void release() {
+        mData = null;
+        synchronized (sPoolSync) {
+            if(sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * 设置要分包的数据，包大小不变时复用之前的数组
+     * @param data 数据，发送完成之前不能修改
+     * @param format 帧格式{@link BLEDataUtil#FORMAT_LEGACY}, {@link BLEDataUtil#FORMAT_LENGTH_PREFIXED},
+     *               {@link BLEDataUtil#FORMAT_SELECTIVE_REPEAT}
+     * @param packetSize 包大小，包含帧头
+     * */
+    public void reset(byte[] data, int offset, int length, int format, int packetSize) {
+        reset(data, offset, length, format, packetSize, 0);
+    }
+
+    /**
+     * 设置要分包的数据
+     * @param channel 逻辑通道，不为0时每个包的标志字节之后加1字节通道号，旧格式不支持
+     * */
+    public void reset(byte[] data, int offset, int length, int format, int packetSize, int channel) {
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+        mFormat = format;
+        mChannel = format != BLEDataUtil.FORMAT_LEGACY ? channel & 0xFF : 0;
+        mChannelSize = mChannel != 0 ? BLEDataUtil.CHANNEL_HEADER_SIZE : 0;
+
+        if(format == BLEDataUtil.FORMAT_SELECTIVE_REPEAT) {
+            packetSize = Math.max(packetSize, BLEDataUtil.DEFAULT_PACKET_SIZE);
+            int payloadSize = packetSize - BLEDataUtil.SELECTIVE_HEADER_SIZE - mChannelSize;
+            mFrameCount = Math.max(1, (length + payloadSize - 1) / payloadSize);
+        } else if(format == BLEDataUtil.FORMAT_LENGTH_PREFIXED) {
+            packetSize = Math.max(packetSize, BLEDataUtil.DEFAULT_PACKET_SIZE);
+            int firstPayload = packetSize - BLEDataUtil.FIRST_HEADER_SIZE - mChannelSize;
+            int payloadSize = packetSize - BLEDataUtil.FRAME_HEADER_SIZE - mChannelSize;
+            mFrameCount = 1;
+            if(length > firstPayload) {
+                mFrameCount += (length - firstPayload + payloadSize - 1) / payloadSize;
+            }
+        } else if(packetSize <= BLEDataUtil.DEFAULT_PACKET_SIZE) {
+            //旧的固定包大小，结尾补0
+            packetSize = BLEDataUtil.DEFAULT_PACKET_SIZE;
+            mFrameCount = (length + packetSize - 2) / (packetSize - 1);
+        } else {
+            mFrameCount = Math.max(1, (length + packetSize - 2) / (packetSize - 1));
+        }
+
+        if(mFrame == null || mPacketSize != packetSize) {
+            mFrame = new byte[packetSize];
+        }
+        mPacketSize = packetSize;
+    }
+
+    /**
+     * 设置选择重传格式的消息ID，接收端据此区分不同的消息
+     * */
+    public void setMessageId(int messageId) {
+        mMessageId = messageId & 0xFF;
+    }
+
+    int getMessageId() {
+        return mMessageId;
+    }
+
+    int getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public int frameCount() {
+        return mFrameCount;
+    }
+
+    @Override
+    public byte[] frame(int index) {
+        if(index < 0 || index >= mFrameCount) {
+            throw new IndexOutOfBoundsException("index = " + index + ", count = " + mFrameCount);
+        }
+
+        if(mFormat == BLEDataUtil.FORMAT_LENGTH_PREFIXED) {
+            return lengthPrefixedFrame(index);
+        }
+
+        if(mFormat == BLEDataUtil.FORMAT_SELECTIVE_REPEAT) {
+            return selectiveFrame(index);
+        }
+
+        return legacyFrame(index);
+    }
+
+    /**
+     * 选择重传格式的包，每个包的数据位置只由序号决定，可以乱序接收，最后一个包要求接收端回复状态
+     * */
+    private byte[] selectiveFrame(int index) {
+        int headerSize = BLEDataUtil.SELECTIVE_HEADER_SIZE + mChannelSize;
+        int payloadSize = mPacketSize - headerSize;
+        int start = index * payloadSize;
+        int count = Math.min(payloadSize, mLength - start);
+        byte[] frame = frameArray(count + headerSize);
+        byte flags = (byte) (BLEDataUtil.FLAG_FRAMED | BLEDataUtil.FLAG_SELECTIVE);
+        if(index == mFrameCount - 1) {
+            flags |= BLEDataUtil.FLAG_POLL;
+        }
+        int position = writeFlags(frame, flags);
+        frame[position] = (byte) mMessageId;
+        frame[position + 1] = (byte) (index >> 8);
+        frame[position + 2] = (byte) index;
+        frame[position + 3] = (byte) (mFrameCount >> 8);
+        frame[position + 4] = (byte) mFrameCount;
+
+        System.arraycopy(mData, mOffset + start, frame, headerSize, count);
+        return frame;
+    }
+
+    /**
+     * 写入标志字节和通道号
+     * @return 之后的帧头开始的位置
+     * */
+    private int writeFlags(byte[] frame, byte flags) {
+        if(mChannelSize == 0) {
+            frame[0] = flags;
+            return 1;
+        }
+
+        frame[0] = (byte) (flags | BLEDataUtil.FLAG_CHANNEL);
+        frame[1] = (byte) mChannel;
+        return 1 + mChannelSize;
+    }
+
+    private byte[] legacyFrame(int index) {
+        int payloadSize = mPacketSize - 1;
+        int start = index * payloadSize;
+        int count = Math.min(payloadSize, mLength - start);
+        boolean padding = mPacketSize == BLEDataUtil.DEFAULT_PACKET_SIZE;
+        byte[] frame = padding ? mFrame : frameArray(count + 1);
+
+        if(index == mFrameCount - 1) {
+            frame[0] = BLEDataUtil.END_BYTE;
+        } else if(index == 0) {
+            frame[0] = BLEDataUtil.START_BYTE;
+        } else {
+            frame[0] = BLEDataUtil.CONTINUE_BYTE;
+        }
+
+        System.arraycopy(mData, mOffset + start, frame, 1, count);
+        if(padding && count < payloadSize) {
+            Arrays.fill(frame, count + 1, frame.length, (byte) 0);
+        }
+        return frame;
+    }
+
+    private byte[] lengthPrefixedFrame(int index) {
+        int firstPayload = mPacketSize - BLEDataUtil.FIRST_HEADER_SIZE - mChannelSize;
+        int headerSize;
+        int start;
+        if(index == 0) {
+            headerSize = BLEDataUtil.FIRST_HEADER_SIZE + mChannelSize;
+            start = 0;
+        } else {
+            headerSize = BLEDataUtil.FRAME_HEADER_SIZE + mChannelSize;
+            start = firstPayload + (index - 1) * (mPacketSize - headerSize);
+        }
+
+        int count = Math.min(mPacketSize - headerSize, mLength - start);
+        byte[] frame = frameArray(count + headerSize);
+        int position = writeFlags(frame, index == 0
+                ? (byte) (BLEDataUtil.FLAG_FRAMED | BLEDataUtil.FLAG_FIRST) : BLEDataUtil.FLAG_FRAMED);
+        frame[position] = (byte) (index >> 8);
+        frame[position + 1] = (byte) index;
+        if(index == 0) {
+            frame[position + 2] = (byte) (mLength >> 24);
+            frame[position + 3] = (byte) (mLength >> 16);
+            frame[position + 4] = (byte) (mLength >> 8);
+            frame[position + 5] = (byte) mLength;
+        }
+
+        System.arraycopy(mData, mOffset + start, frame, headerSize, count);
+        return frame;
+    }
+
+    /**
+     * 指定长度的包数组，完整大小的包和最后一个包分别复用
+     * */
+    private byte[] frameArray(int length) {
+        if(length == mPacketSize) {
+            return mFrame;
+        }
+
+        if(mLastFrame == null || mLastFrame.length != length) {
+            mLastFrame = new byte[length];
+        }
+        return mLastFrame;
+    }
+}
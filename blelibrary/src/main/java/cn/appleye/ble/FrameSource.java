@@ -0,0 +1,23 @@
+package cn.appleye.ble;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-10
+ * 待发送的包，可以按序号随机访问，方便重发
+ */
+public interface FrameSource {
+    /**
+     * 包的个数
+     * */
+    int frameCount();
+
+    /**
+     * 第index个包，返回的数组可能被复用，只在下一次调用之前有效
+     * */
+    byte[] frame(int index);
+
+    /**
+     * 发送结束之后调用，释放占用的资源
+     * */
+    void release();
+}
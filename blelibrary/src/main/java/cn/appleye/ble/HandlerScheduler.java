@@ -0,0 +1,37 @@
+package cn.appleye.ble;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-02
+ * 基于Handler的任务调度，所有任务都在Handler所在线程执行
+ */
+public class HandlerScheduler implements TaskScheduler {
+    private final Handler mHandler;
+
+    public HandlerScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        mHandler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void remove(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+}
@@ -0,0 +1,122 @@
+package cn.appleye.ble;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-20
+ * Android 5.0以上的扫描实现，过滤条件交给控制器处理，不匹配的广播不会唤醒应用处理器。
+ * 结果转换成{@link BluetoothAdapter.LeScanCallback}回调，调用方不需要区分系统版本。
+ * 只有在5.0以上才能加载这个类
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class LollipopScanner {
+    private final BluetoothAdapter mBluetoothAdapter;
+
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback;
+
+    private final FailureListener mFailureListener;
+
+    private android.bluetooth.le.BluetoothLeScanner mScanner;
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            deliver(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for(int i = 0; i < results.size(); i++) {
+                deliver(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            mScanner = null;
+            mFailureListener.onScanFailed(errorCode);
+        }
+    };
+
+    LollipopScanner(BluetoothAdapter bluetoothAdapter, BluetoothAdapter.LeScanCallback leScanCallback, FailureListener failureListener) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mLeScanCallback = leScanCallback;
+        mFailureListener = failureListener;
+    }
+
+    /**
+     * 开始扫描
+     * @param reportDelay 控制器批量上报的间隔，控制器不支持时忽略
+     * @return false 蓝牙没有开启
+     * */
+    boolean start(List<BluetoothLeScanner.DeviceFilter> filters, int scanMode, long reportDelay) {
+        android.bluetooth.le.BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if(scanner == null) {
+            return false;
+        }
+
+        List<ScanFilter> scanFilters = new ArrayList<>(filters.size());
+        for(BluetoothLeScanner.DeviceFilter filter : filters) {
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            if(filter.serviceUuid != null) {
+                builder.setServiceUuid(new ParcelUuid(filter.serviceUuid));
+            }
+            if(filter.name != null) {
+                builder.setDeviceName(filter.name);
+            }
+            if(filter.address != null) {
+                builder.setDeviceAddress(filter.address);
+            }
+            scanFilters.add(builder.build());
+        }
+
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(scanMode);
+        if(reportDelay > 0 && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(reportDelay);
+        }
+
+        scanner.startScan(scanFilters, settings.build(), mScanCallback);
+        mScanner = scanner;
+        return true;
+    }
+
+    /**
+     * 停止扫描，批量上报中还没有回调的结果会先回调出去
+     * */
+    void stop() {
+        android.bluetooth.le.BluetoothLeScanner scanner = mScanner;
+        mScanner = null;
+        if(scanner != null) {
+            try {
+                scanner.flushPendingScanResults(mScanCallback);
+                scanner.stopScan(mScanCallback);
+            } catch (IllegalStateException e) {//蓝牙已经关闭
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void deliver(ScanResult result) {
+        ScanRecord scanRecord = result.getScanRecord();
+        mLeScanCallback.onLeScan(result.getDevice(), result.getRssi(), scanRecord != null ? scanRecord.getBytes() : null);
+    }
+
+    /**
+     * 扫描失败回调
+     * */
+    interface FailureListener {
+        void onScanFailed(int errorCode);
+    }
+}
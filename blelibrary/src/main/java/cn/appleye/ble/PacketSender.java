@@ -0,0 +1,911 @@
+package cn.appleye.ble;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-02
+ * 分包发送器，由写入回调驱动：前一个包在onCharacteristicWrite中确认之后立即发送下一个包，
+ * 不再依赖固定的延时。允许同时有多个未确认的包(发送窗口)，超时未确认则按失败处理。
+ * 流模式下，除最后一个包以外都使用无应答写入，由信用值和最小间隔控制发送速度，
+ * 最后一个包使用有应答写入，确认之后才认为整个消息送达。
+ * 每个消息可以设置期限，也可以取消，已经开始发送的消息不再写入新的包，在途的包返回之后结束。
+ * 选择重传格式的消息失败时不从头重发，而是按接收端回复的状态包只重发缺失的包，
+ * 接收端的状态包也通过{@link #sendControl(byte[])}由这里写出。
+ * 所有方法都必须在调度器所在的线程中调用
+ */
+public class PacketSender {
+    private static final String TAG = "PacketSender";
+
+    /**所有包都已确认*/
+    public static final int RESULT_SUCCESS = 0;
+
+    /**重试之后仍然失败，或者连接断开时被丢弃*/
+    public static final int RESULT_FAILED = 1;
+
+    /**超过了消息的期限*/
+    public static final int RESULT_TIMEOUT = 2;
+
+    /**被取消*/
+    public static final int RESULT_CANCELLED = 3;
+
+    /**默认发送窗口，有应答的写入同一时刻只能有一个在进行*/
+    public static final int DEFAULT_WINDOW = 1;
+
+    /**默认写入超时时间*/
+    public static final long DEFAULT_WRITE_TIMEOUT = 1000;
+
+    /**流模式默认信用值，即最多允许多少个无应答写入还未被协议栈回调*/
+    public static final int DEFAULT_STREAM_CREDITS = 8;
+
+    /**流模式默认的最小发送间隔，0表示只受信用值限制*/
+    public static final long DEFAULT_STREAM_INTERVAL = 0;
+
+    /**单个消息最多发送次数*/
+    private static final int MAX_MESSAGE_TIMES = 2;
+
+    /**单个包最多发送次数*/
+    private static final int MAX_PACKET_TIMES = 2;
+
+    /**协议栈繁忙(writeCharacteristic返回false)时最多重试次数*/
+    private static final int MAX_BUSY_TIMES = 10;
+
+    /**协议栈繁忙时重试的延迟时间*/
+    private static final long BUSY_RETRY_DELAY = 20;
+
+    /**选择重传最多发送的轮数，包括第一轮*/
+    private static final int MAX_SELECTIVE_ROUNDS = 8;
+
+    /**选择重传等待状态包超时之后，最多重发多少次带轮询标志的包*/
+    private static final int MAX_POLL_TIMES = 3;
+
+    private final TaskScheduler mScheduler;
+
+    private final PacketWriter mWriter;
+
+    /**发送窗口，最多允许多少个包未确认*/
+    private int mWindow = DEFAULT_WINDOW;
+
+    /**写入超时时间*/
+    private long mWriteTimeout = DEFAULT_WRITE_TIMEOUT;
+
+    /**流模式信用值*/
+    private int mStreamCredits = DEFAULT_STREAM_CREDITS;
+
+    /**流模式最小发送间隔*/
+    private long mStreamInterval = DEFAULT_STREAM_INTERVAL;
+
+    /**上一次无应答写入的时间*/
+    private long mLastStreamWrite;
+
+    /**等待发送的消息*/
+    private final LinkedList<Outgoing> mQueue = new LinkedList<>();
+
+    /**正在发送的消息*/
+    private Outgoing mCurrent;
+
+    /**下一个要写入的包*/
+    private int mNextIndex;
+
+    /**已经确认的包数，确认按写入顺序到达*/
+    private int mAckedCount;
+
+    /**已写入但还未确认的包数*/
+    private int mInFlight;
+
+    /**当前包已发送的次数*/
+    private int mPacketTimes;
+
+    /**当前消息已发送的次数*/
+    private int mMessageTimes;
+
+    /**协议栈繁忙的连续次数*/
+    private int mBusyTimes;
+
+    /**有包失败，等待未确认的包全部返回之后重发整个消息*/
+    private boolean mRestartPending;
+
+    /**超时的时间点*/
+    private long mDeadline;
+
+    /**选择重传本轮要发送的序号，最后一个总是带轮询标志的包*/
+    private int[] mRound;
+
+    /**选择重传本轮要发送的包数*/
+    private int mRoundLength;
+
+    /**选择重传已经发送的轮数*/
+    private int mRounds;
+
+    /**选择重传连续等待状态包超时的次数*/
+    private int mPollTimes;
+
+    /**选择重传本轮已经全部写入，等待接收端的状态包*/
+    private boolean mAwaitingStatus;
+
+    /**本轮的包都已提交，但写入回调还没有全部返回时收到的状态包*/
+    private byte[] mPendingStatus;
+
+    /**等待写出的控制包，例如接收端的状态包*/
+    private final LinkedList<byte[]> mControls = new LinkedList<>();
+
+    /**控制包已写入还未回调，控制包只在没有数据包在途时写入*/
+    private boolean mControlInFlight;
+
+    /**是否已经投递了延迟发送任务*/
+    private boolean mPumpPending;
+
+    /**是否已经投递了超时检查任务，超时检查只在到期时重新投递，不随每个包投递和移除*/
+    private boolean mTimeoutPending;
+
+    /**已投递的期限检查任务的执行时间，0表示没有投递*/
+    private long mExpireAt;
+
+    private final Runnable mPumpTask = new Runnable() {
+        @Override
+        public void run() {
+            mPumpPending = false;
+            pump();
+        }
+    };
+
+    private final Runnable mTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            mTimeoutPending = false;
+            onTimeout();
+        }
+    };
+
+    private final Runnable mExpireTask = new Runnable() {
+        @Override
+        public void run() {
+            mExpireAt = 0;
+            expireQueued();
+            pump();
+            scheduleExpire();
+        }
+    };
+
+    public PacketSender(TaskScheduler scheduler, PacketWriter writer) {
+        mScheduler = scheduler;
+        mWriter = writer;
+    }
+
+    /**
+     * 设置发送窗口
+     * @param window 最多允许多少个包未确认，最小为1
+     * */
+    public void setWindow(int window) {
+        mWindow = Math.max(1, window);
+    }
+
+    /**
+     * 设置写入超时时间，超过这个时间没有收到确认则认为写入失败
+     * */
+    public void setWriteTimeout(long timeout) {
+        mWriteTimeout = Math.max(1, timeout);
+    }
+
+    /**
+     * 设置流模式的信用值，每个无应答写入占用一个，协议栈回调之后归还
+     * */
+    public void setStreamCredits(int credits) {
+        mStreamCredits = Math.max(1, credits);
+    }
+
+    /**
+     * 设置流模式的最小发送间隔，避免协议栈不回调时塞满控制器队列
+     * @param interval 间隔时间，单位毫秒，0表示不限制
+     * */
+    public void setStreamInterval(long interval) {
+        mStreamInterval = Math.max(0, interval);
+    }
+
+    /**
+     * 发送一个消息的所有包，每个包都使用有应答写入
+     * @param packets 分好的包
+     * @param callback 发送结果回调，可以为空
+     * */
+    public void send(byte[][] packets, SendCallback callback) {
+        send(packets, false, callback);
+    }
+
+    /**
+     * 发送一个消息的所有包
+     * @param packets 分好的包
+     * @param streaming true 流模式，除最后一个包外都使用无应答写入
+     * @param callback 发送结果回调，可以为空
+     * */
+    public void send(byte[][] packets, boolean streaming, SendCallback callback) {
+        send(packets == null ? null : new PacketArray(packets), streaming, callback);
+    }
+
+    /**
+     * 发送一个消息的所有包，发送结束之后调用{@link FrameSource#release()}
+     * @param frames 按需生成的包，通常是{@link FrameEncoder}
+     * @param streaming true 流模式，除最后一个包外都使用无应答写入
+     * @param callback 发送结果回调，可以为空
+     * */
+    public void send(FrameSource frames, boolean streaming, SendCallback callback) {
+        send(frames, streaming, 0, callback);
+    }
+
+    /**
+     * 发送一个消息的所有包，超过期限还没有送达时以{@link #RESULT_TIMEOUT}结束
+     * @param deadline 期限，和调度器的{@link TaskScheduler#uptimeMillis()}使用同一个时钟，0表示不限制
+     * */
+    public void send(FrameSource frames, boolean streaming, long deadline, SendCallback callback) {
+        if(frames == null || frames.frameCount() == 0) {
+            if(frames != null) {
+                frames.release();
+            }
+            if(callback != null) {
+                callback.onSendComplete(RESULT_FAILED);
+            }
+            return;
+        }
+
+        enqueue(new Outgoing(frames, streaming, deadline, callback));
+    }
+
+    /**
+     * 发送一个消息中间的一段，接收端按序号拼接，不能从这一段的开头重发，
+     * 单个包重试之后仍然失败时直接以{@link #RESULT_FAILED}结束
+     * */
+    void sendSegment(FrameSource frames, boolean streaming, long deadline, SendCallback callback) {
+        if(frames == null || frames.frameCount() == 0) {
+            send(frames, streaming, deadline, callback);
+            return;
+        }
+
+        Outgoing outgoing = new Outgoing(frames, streaming, deadline, callback);
+        outgoing.restartable = false;
+        enqueue(outgoing);
+    }
+
+    /**
+     * 发送一个选择重传格式的消息，丢失的包由接收端的状态包报告，只重发缺失的包
+     * @param frames 选择重传格式的包，最后一个包带轮询标志，见{@link FrameEncoder#setMessageId(int)}
+     * @param messageId 消息ID，用来匹配接收端的状态包
+     * 超过{@link BLEDataUtil#MAX_SELECTIVE_FRAMES}个包的消息直接以{@link #RESULT_FAILED}结束
+     * */
+    public void sendSelective(FrameSource frames, int messageId, boolean streaming, long deadline, SendCallback callback) {
+        if(frames == null || frames.frameCount() == 0) {
+            send(frames, streaming, deadline, callback);
+            return;
+        }
+        if(frames.frameCount() > BLEDataUtil.MAX_SELECTIVE_FRAMES) {
+            frames.release();
+            if(callback != null) {
+                callback.onSendComplete(RESULT_FAILED);
+            }
+            return;
+        }
+
+        Outgoing outgoing = new Outgoing(frames, streaming, deadline, callback);
+        outgoing.selective = true;
+        outgoing.messageId = messageId & 0xFF;
+        enqueue(outgoing);
+    }
+
+    private void enqueue(Outgoing outgoing) {
+        mQueue.add(outgoing);
+        if(mCurrent == null) {
+            startNext();
+        }
+        if(outgoing.deadline > 0) {
+            scheduleExpire();
+        }
+    }
+
+    /**
+     * 写出一个控制包，在没有数据包在途时立即写入，不影响正在发送的消息
+     * */
+    public void sendControl(byte[] frame) {
+        mControls.add(frame);
+        pump();
+    }
+
+    /**
+     * 收到接收端的选择重传状态包，在onCharacteristicChanged中回调
+     * */
+    public void onReceiverStatus(byte[] status) {
+        if(mCurrent == null || !mCurrent.selective || !BLEDataUtil.isStatusFrame(status)
+                || BLEDataUtil.selectiveMessageId(status) != mCurrent.messageId) {
+            return;
+        }
+
+        if(mAwaitingStatus) {
+            applyStatus(status);
+        } else if(mNextIndex >= mRoundLength) {
+            //带轮询标志的包已经写入，写入回调还没有返回
+            mPendingStatus = status;
+        }
+    }
+
+    /**
+     * 取消callback对应的消息。还在队列中的消息直接以{@link #RESULT_CANCELLED}结束；
+     * 正在发送的消息不再写入新的包，在途的包返回之后结束，接收端会丢弃不完整的消息
+     * @return false 没有找到，已经结束了
+     * */
+    public boolean cancel(SendCallback callback) {
+        if(callback == null) {
+            return false;
+        }
+
+        if(mCurrent != null && mCurrent.callback == callback) {
+            if(mCurrent.abortResult == RESULT_SUCCESS) {
+                mCurrent.abortResult = RESULT_CANCELLED;
+            }
+            pump();
+            return true;
+        }
+
+        Iterator<Outgoing> iterator = mQueue.iterator();
+        while(iterator.hasNext()) {
+            Outgoing outgoing = iterator.next();
+            if(outgoing.callback == callback) {
+                iterator.remove();
+                finish(outgoing, RESULT_CANCELLED);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * 写入结果，在onCharacteristicWrite中回调
+     * @param success 是否写入成功
+     * */
+    public void onPacketWritten(boolean success) {
+        if(mControlInFlight) {//控制包写入时没有其它包在途，这个回调一定属于它
+            mControlInFlight = false;
+            pump();
+            return;
+        }
+
+        if(mCurrent == null || mInFlight == 0) {//超时之后迟到的回调，忽略
+            return;
+        }
+
+        mInFlight--;
+        if(mCurrent.selective) {//失败的包由接收端的状态包报告，不重发整个消息
+            mDeadline = mScheduler.uptimeMillis() + mWriteTimeout;
+            pump();
+            return;
+        }
+
+        if(!success && mCurrent.abortResult != RESULT_SUCCESS) {//已经中止，不再重发
+            mRestartPending = false;
+        } else if(!success) {
+            onPacketFailed();
+        } else if(!mRestartPending) {
+            mAckedCount++;
+            mPacketTimes = 0;
+            if(mAckedCount == mCurrent.frameCount) {
+                complete(RESULT_SUCCESS);
+                return;
+            }
+        }
+
+        if(mRestartPending && mInFlight == 0) {
+            restartMessage();
+            if(mCurrent == null) {
+                return;
+            }
+        }
+
+        //收到确认之后顺延超时时间
+        mDeadline = mScheduler.uptimeMillis() + mWriteTimeout;
+        pump();
+    }
+
+    /**
+     * 是否还有消息没有发送完成
+     * */
+    public boolean isBusy() {
+        return mCurrent != null;
+    }
+
+    /**
+     * 丢弃所有未发送完成的消息，都以{@link #RESULT_FAILED}结束
+     * */
+    public void clear() {
+        cancelTasks();
+        ArrayList<Outgoing> dropped = new ArrayList<>(mQueue.size() + 1);
+        if(mCurrent != null) {
+            dropped.add(mCurrent);
+            mCurrent = null;
+        }
+        dropped.addAll(mQueue);
+        mQueue.clear();
+        mInFlight = 0;
+        mControls.clear();
+        mControlInFlight = false;
+        mAwaitingStatus = false;
+        mPendingStatus = null;
+
+        //先清空状态再回调，回调中可以发送新的消息
+        for(int i = 0; i < dropped.size(); i++) {
+            finish(dropped.get(i), RESULT_FAILED);
+        }
+    }
+
+    private void cancelTasks() {
+        if(mPumpPending) {
+            mScheduler.remove(mPumpTask);
+            mPumpPending = false;
+        }
+        if(mTimeoutPending) {
+            mScheduler.remove(mTimeoutTask);
+            mTimeoutPending = false;
+        }
+        if(mExpireAt != 0) {
+            mScheduler.remove(mExpireTask);
+            mExpireAt = 0;
+        }
+    }
+
+    /**
+     * 在最早的期限到达时检查，只在最早的期限变化时重新投递
+     * */
+    private void scheduleExpire() {
+        //已经中止的消息只等待在途的包，不再需要检查期限
+        long earliest = mCurrent != null && mCurrent.abortResult == RESULT_SUCCESS ? mCurrent.deadline : 0;
+        for(Outgoing outgoing : mQueue) {
+            if(outgoing.deadline > 0 && (earliest == 0 || outgoing.deadline < earliest)) {
+                earliest = outgoing.deadline;
+            }
+        }
+
+        if(earliest == mExpireAt) {
+            return;
+        }
+        if(mExpireAt != 0) {
+            mScheduler.remove(mExpireTask);
+        }
+        mExpireAt = earliest;
+        if(earliest != 0) {
+            mScheduler.postDelayed(mExpireTask, Math.max(0, earliest - mScheduler.uptimeMillis()));
+        }
+    }
+
+    private boolean isExpired(Outgoing outgoing) {
+        return outgoing.deadline > 0 && mScheduler.uptimeMillis() >= outgoing.deadline;
+    }
+
+    /**
+     * 队列中超过期限的消息直接结束
+     * */
+    private void expireQueued() {
+        Iterator<Outgoing> iterator = mQueue.iterator();
+        ArrayList<Outgoing> expired = null;
+        while(iterator.hasNext()) {
+            Outgoing outgoing = iterator.next();
+            if(isExpired(outgoing)) {
+                iterator.remove();
+                if(expired == null) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(outgoing);
+            }
+        }
+
+        if(expired != null) {
+            for(int i = 0; i < expired.size(); i++) {
+                finish(expired.get(i), RESULT_TIMEOUT);
+            }
+        }
+    }
+
+    private void schedulePump(long delay) {
+        if(!mPumpPending) {
+            mPumpPending = true;
+            mScheduler.postDelayed(mPumpTask, delay);
+        }
+    }
+
+    private void startNext() {
+        mCurrent = mQueue.poll();
+        while(mCurrent != null && isExpired(mCurrent)) {
+            finish(mCurrent, RESULT_TIMEOUT);
+            mCurrent = mQueue.poll();
+        }
+        mMessageTimes = 0;
+        resetProgress();
+        if(mCurrent != null) {
+            pump();
+        }
+    }
+
+    private void resetProgress() {
+        mNextIndex = 0;
+        mAckedCount = 0;
+        mInFlight = 0;
+        mPacketTimes = 0;
+        mBusyTimes = 0;
+        mRestartPending = false;
+        mAwaitingStatus = false;
+        mPendingStatus = null;
+        if(mCurrent != null && mCurrent.selective) {
+            mRound = new int[mCurrent.frameCount];
+            for(int i = 0; i < mRound.length; i++) {
+                mRound[i] = i;
+            }
+            mRoundLength = mRound.length;
+            mRounds = 1;
+            mPollTimes = 0;
+        }
+    }
+
+    /**
+     * 本轮要发送的包数，选择重传每一轮只发送缺失的包
+     * */
+    private int sendCount() {
+        return mCurrent.selective ? mRoundLength : mCurrent.frameCount;
+    }
+
+    private int frameIndex(int position) {
+        return mCurrent.selective ? mRound[position] : position;
+    }
+
+    /**
+     * 在窗口允许的范围内尽可能多地写入
+     * */
+    private void pump() {
+        if(mControlInFlight) {
+            return;
+        }
+        if(!mControls.isEmpty() && mInFlight == 0) {
+            writeControl();
+            return;
+        }
+
+        if(mCurrent != null && checkAbort()) {
+            return;
+        }
+
+        while(mCurrent != null && !mRestartPending && !mAwaitingStatus && mNextIndex < sendCount()) {
+            boolean withResponse = !mCurrent.streaming || mNextIndex == sendCount() - 1;
+            if(!withResponse) {
+                if(mInFlight >= mStreamCredits) {
+                    return;
+                }
+
+                long wait = mLastStreamWrite + mStreamInterval - mScheduler.uptimeMillis();
+                if(mStreamInterval > 0 && mNextIndex > 0 && wait > 0) {
+                    schedulePump(wait);
+                    return;
+                }
+            } else if(mCurrent.streaming ? mInFlight > 0 : mInFlight >= mWindow) {
+                //流模式的结尾包要等前面的包都交给协议栈之后再写入
+                return;
+            }
+
+            if(!mWriter.writePacket(mCurrent.frames.frame(frameIndex(mNextIndex)), withResponse)) {
+                if(++mBusyTimes <= MAX_BUSY_TIMES) {
+                    schedulePump(BUSY_RETRY_DELAY);
+                    return;
+                }
+
+                mBusyTimes = 0;
+                if(mCurrent.selective) {//跳过这个包，由下一轮补发
+                    mNextIndex++;
+                    continue;
+                }
+                onPacketFailed();
+                if(mRestartPending && mInFlight == 0) {
+                    restartMessage();
+                }
+                continue;
+            }
+
+            mBusyTimes = 0;
+            mNextIndex++;
+            if(!withResponse) {
+                mLastStreamWrite = mScheduler.uptimeMillis();
+            }
+            if(mInFlight++ == 0) {
+                mDeadline = mScheduler.uptimeMillis() + mWriteTimeout;
+                if(!mTimeoutPending) {
+                    mTimeoutPending = true;
+                    mScheduler.postDelayed(mTimeoutTask, mWriteTimeout);
+                }
+            }
+        }
+
+        if(mCurrent != null && mCurrent.selective) {
+            checkRoundWritten();
+        }
+    }
+
+    private void writeControl() {
+        if(!mWriter.writePacket(mControls.peek(), true)) {
+            if(++mBusyTimes <= MAX_BUSY_TIMES) {
+                schedulePump(BUSY_RETRY_DELAY);
+                return;
+            }
+            //丢弃，对端等待超时之后会再次轮询
+            mControls.poll();
+            mBusyTimes = 0;
+            pump();
+            return;
+        }
+
+        mControls.poll();
+        mBusyTimes = 0;
+        mControlInFlight = true;
+        mDeadline = mScheduler.uptimeMillis() + mWriteTimeout;
+        if(!mTimeoutPending) {
+            mTimeoutPending = true;
+            mScheduler.postDelayed(mTimeoutTask, mWriteTimeout);
+        }
+    }
+
+    /**
+     * 选择重传本轮的包都已写入并回调之后，开始等待接收端的状态包
+     * */
+    private void checkRoundWritten() {
+        if(mAwaitingStatus || mNextIndex < mRoundLength || mInFlight > 0) {
+            return;
+        }
+
+        mAwaitingStatus = true;
+        if(mPendingStatus != null) {
+            applyStatus(mPendingStatus);
+            return;
+        }
+
+        mDeadline = mScheduler.uptimeMillis() + mWriteTimeout;
+        if(!mTimeoutPending) {
+            mTimeoutPending = true;
+            mScheduler.postDelayed(mTimeoutTask, mWriteTimeout);
+        }
+    }
+
+    /**
+     * 按状态包计算缺失的包，全部收到则发送成功，否则开始下一轮
+     * */
+    private void applyStatus(byte[] status) {
+        mAwaitingStatus = false;
+        mPendingStatus = null;
+        if(mCurrent.abortResult != RESULT_SUCCESS) {
+            complete(mCurrent.abortResult);
+            return;
+        }
+
+        int last = mCurrent.frameCount - 1;
+        mRoundLength = 0;
+        for(int i = 0; i <= last; i++) {
+            if(!BLEDataUtil.statusReceived(status, i)) {
+                mRound[mRoundLength++] = i;
+            }
+        }
+        if(mRoundLength == 0) {
+            complete(RESULT_SUCCESS);
+            return;
+        }
+        if(++mRounds > MAX_SELECTIVE_ROUNDS) {
+            complete(RESULT_FAILED);
+            return;
+        }
+
+        //每一轮都以带轮询标志的最后一个包结束
+        if(mRound[mRoundLength - 1] != last) {
+            mRound[mRoundLength++] = last;
+        }
+        mNextIndex = 0;
+        mPollTimes = 0;
+        pump();
+    }
+
+    /**
+     * 等待状态包超时，可能是轮询包或者状态包丢失，只重发带轮询标志的包
+     * */
+    private void onStatusTimeout() {
+        mAwaitingStatus = false;
+        if(mCurrent.abortResult != RESULT_SUCCESS) {
+            complete(mCurrent.abortResult);
+            return;
+        }
+        if(++mPollTimes > MAX_POLL_TIMES) {
+            complete(RESULT_FAILED);
+            return;
+        }
+
+        mRound[0] = mCurrent.frameCount - 1;
+        mRoundLength = 1;
+        mNextIndex = 0;
+        pump();
+    }
+
+    /**
+     * 当前消息被取消或者超过期限时不再写入，在途的包都返回之后结束
+     * @return true 已经中止
+     * */
+    private boolean checkAbort() {
+        if(mCurrent.abortResult == RESULT_SUCCESS && isExpired(mCurrent)) {
+            mCurrent.abortResult = RESULT_TIMEOUT;
+        }
+        if(mCurrent.abortResult == RESULT_SUCCESS) {
+            return false;
+        }
+
+        if(mInFlight == 0) {
+            complete(mCurrent.abortResult);
+        }
+        return true;
+    }
+
+    /**
+     * 最早的未确认包失败：没有其它包在途时只重发这一个包，否则重发整个消息。
+     * 流模式下无应答写入没有送达保证，失败时都重发整个消息
+     * */
+    private void onPacketFailed() {
+        if(mInFlight == 0 && !mCurrent.streaming && ++mPacketTimes < MAX_PACKET_TIMES) {
+            mNextIndex = mAckedCount;
+        } else {
+            mRestartPending = true;
+        }
+    }
+
+    private void restartMessage() {
+        if(!mCurrent.restartable || ++mMessageTimes >= MAX_MESSAGE_TIMES) {
+            complete(RESULT_FAILED);
+            return;
+        }
+
+        resetProgress();
+    }
+
+    private void onTimeout() {
+        if(!mControlInFlight && (mCurrent == null || (mInFlight == 0 && !mAwaitingStatus))) {
+            return;
+        }
+
+        long now = mScheduler.uptimeMillis();
+        if(now < mDeadline) {
+            mTimeoutPending = true;
+            mScheduler.postDelayed(mTimeoutTask, mDeadline - now);
+            return;
+        }
+
+        if(mControlInFlight) {//控制包的回调丢失
+            mControlInFlight = false;
+            if(!mAwaitingStatus) {
+                pump();
+                return;
+            }
+        }
+        if(mAwaitingStatus) {
+            onStatusTimeout();
+            return;
+        }
+
+        //超时的包全部按失败处理
+        mInFlight = 0;
+        mRestartPending = false;
+        if(mCurrent.abortResult != RESULT_SUCCESS) {
+            complete(mCurrent.abortResult);
+            return;
+        }
+        if(mCurrent.selective) {
+            pump();
+            return;
+        }
+        onPacketFailed();
+        if(mRestartPending) {
+            restartMessage();
+            if(mCurrent == null) {
+                return;
+            }
+        }
+        pump();
+    }
+
+    private void complete(int result) {
+        if(mPumpPending) {
+            mScheduler.remove(mPumpTask);
+            mPumpPending = false;
+        }
+        Outgoing finished = mCurrent;
+        mCurrent = null;
+        finish(finished, result);
+
+        if(mCurrent == null) {
+            startNext();
+        }
+        if(finished.deadline > 0) {
+            scheduleExpire();
+        }
+    }
+
+    private static void finish(Outgoing outgoing, int result) {
+        outgoing.frames.release();
+        if(outgoing.callback != null) {
+            outgoing.callback.onSendComplete(result);
+        }
+    }
+
+    /**
+     * 数据包写入接口
+     * */
+    public interface PacketWriter {
+        /**
+         * 写入一个包
+         * @param withResponse true 有应答写入 false 无应答写入
+         * @return true 已提交给协议栈 false 协议栈繁忙或者连接不可用
+         * */
+        boolean writePacket(byte[] packet, boolean withResponse);
+    }
+
+    /**
+     * 消息发送结果回调
+     * */
+    public interface SendCallback {
+        /**
+         * @param result {@link #RESULT_SUCCESS} 所有包都已确认，{@link #RESULT_FAILED}，
+         *               {@link #RESULT_TIMEOUT}，{@link #RESULT_CANCELLED}
+         * */
+        void onSendComplete(int result);
+    }
+
+    /**
+     * 已经分好的包
+     * */
+    private static class PacketArray implements FrameSource {
+        private final byte[][] mPackets;
+
+        PacketArray(byte[][] packets) {
+            mPackets = packets;
+        }
+
+        @Override
+        public int frameCount() {
+            return mPackets.length;
+        }
+
+        @Override
+        public byte[] frame(int index) {
+            return mPackets[index];
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * 待发送的消息
+     * */
+    private static class Outgoing {
+        final FrameSource frames;
+        final int frameCount;
+        final boolean streaming;
+        final long deadline;
+        final SendCallback callback;
+
+        /**中止的原因，RESULT_SUCCESS表示没有中止*/
+        int abortResult = RESULT_SUCCESS;
+
+        /**是否可以从头重发，消息中间的一段不能*/
+        boolean restartable = true;
+
+        /**选择重传格式，按接收端的状态包重发*/
+        boolean selective;
+
+        int messageId;
+
+        Outgoing(FrameSource frames, boolean streaming, long deadline, SendCallback callback) {
+            this.frames = frames;
+            this.frameCount = frames.frameCount();
+            this.streaming = streaming;
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+    }
+}
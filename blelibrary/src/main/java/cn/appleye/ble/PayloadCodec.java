@@ -0,0 +1,29 @@
+package cn.appleye.ble;
+
+import java.io.IOException;
+
+/**
+ * @author liuliaopu
+ * @date 2017-04-10
+ * 消息压缩编码，在分包之前压缩、拼包之后解压，两端必须使用相同的编码和参数(例如预置字典)，
+ * 由应用和固件协商之后通过{@link BLEConnection#setPayloadCodec(PayloadCodec)}设置。
+ * 发送线程和接收线程会同时调用，实现需要线程安全
+ */
+public interface PayloadCodec {
+    /**
+     * 编码ID，写在消息的第一个字节，取值1~255，0表示消息没有压缩
+     * */
+    int getId();
+
+    /**
+     * 压缩
+     * @return 压缩后的数据，不比原数据小时返回null，按原数据发送
+     * */
+    byte[] compress(byte[] data, int offset, int length);
+
+    /**
+     * 解压
+     * @throws IOException 数据损坏或者解压后超过长度限制
+     * */
+    byte[] decompress(byte[] data, int offset, int length) throws IOException;
+}
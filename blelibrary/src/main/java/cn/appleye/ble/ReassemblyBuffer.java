@@ -0,0 +1,159 @@
+package cn.appleye.ble;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-06
+ * 拼包缓冲区，容量不够时按倍数扩容，每次追加的均摊复杂度与包大小成正比。
+ * 拼好的数据可以直接通过{@link #array()}和{@link #length()}读取，不需要再拷贝一次。
+ * 与Message一样通过{@link #obtain()}和{@link #recycle()}复用
+ */
+public class ReassemblyBuffer {
+    /**初始容量*/
+    private static final int DEFAULT_CAPACITY = 256;
+
+    /**回收时保留的最大容量，避免大消息的数组一直占用内存；按声明的长度预先分配时也不超过这个容量*/
+    static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    /**缓存池大小*/
+    private static final int MAX_POOL_SIZE = 8;
+
+    private static final Object sPoolSync = new Object();
+    private static ReassemblyBuffer sPool;
+    private static int sPoolSize = 0;
+
+    /**缓存池中的下一个*/
+    private ReassemblyBuffer mNext;
+
+    private byte[] mData;
+
+    private int mLength;
+
+    public ReassemblyBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReassemblyBuffer(int initialCapacity) {
+        mData = new byte[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * 从缓存池中获取，缓存池为空时新建
+     * */
+    public static ReassemblyBuffer obtain() {
+        synchronized (sPoolSync) {
+            if(sPool != null) {
+                ReassemblyBuffer buffer = sPool;
+                sPool = buffer.mNext;
+                buffer.mNext = null;
+                sPoolSize--;
+                return buffer;
+            }
+        }
+
+        return new ReassemblyBuffer();
+    }
+
+    /**
+     * 放回缓存池，之后不能再使用
+     * */
+    public void recycle() {
+        reset();
+        synchronized (sPoolSync) {
+            if(sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * 清空数据，容量过大时释放数组
+     * */
+    public void reset() {
+        mLength = 0;
+        if(mData.length > MAX_RETAINED_CAPACITY) {
+            mData = new byte[DEFAULT_CAPACITY];
+        }
+    }
+
+    /**
+     * 保证可以容纳capacity个字节，已知总长度时可以提前分配，避免扩容
+     * */
+    public void ensureCapacity(int capacity) {
+        if(capacity > mData.length) {
+            int newCapacity = Math.max(capacity, mData.length * 2);
+            byte[] newData = new byte[newCapacity];
+            System.arraycopy(mData, 0, newData, 0, mLength);
+            mData = newData;
+        }
+    }
+
+    /**
+     * 追加数据
+     * */
+    public void append(byte[] data, int offset, int length) {
+        ensureCapacity(mLength + length);
+        System.arraycopy(data, offset, mData, mLength, length);
+        mLength += length;
+    }
+
+    /**
+     * 在指定位置写入数据，长度扩展到写入的结尾，用于乱序到达的包
+     * */
+    void put(int position, byte[] data, int offset, int length) {
+        ensureCapacity(position + length);
+        System.arraycopy(data, offset, mData, position, length);
+        mLength = Math.max(mLength, position + length);
+    }
+
+    /**
+     * 去掉开头的count个字节
+     * */
+    void discard(int count) {
+        count = Math.min(count, mLength);
+        System.arraycopy(mData, count, mData, 0, mLength - count);
+        mLength -= count;
+    }
+
+    /**
+     * 去掉结尾的0x00，只修改长度，不拷贝数据
+     * */
+    public void trimTrailingZeros() {
+        while(mLength > 0 && mData[mLength - 1] == 0x00) {
+            mLength--;
+        }
+    }
+
+    /**
+     * 数据长度
+     * */
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * 底层数组，有效数据是[0, length())，下次追加或者回收之后可能失效
+     * */
+    public byte[] array() {
+        return mData;
+    }
+
+    /**
+     * 有效数据的只读视图，不拷贝数据
+     * */
+    public ByteBuffer view() {
+        return ByteBuffer.wrap(mData, 0, mLength).asReadOnlyBuffer();
+    }
+
+    /**
+     * 拷贝出有效数据
+     * */
+    public byte[] toByteArray() {
+        byte[] result = new byte[mLength];
+        System.arraycopy(mData, 0, result, 0, mLength);
+        return result;
+    }
+}
@@ -0,0 +1,21 @@
+package cn.appleye.ble;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-24
+ * 重连策略，决定连接断开或者失败之后多久重连，每个连接单独计数
+ */
+public interface ReconnectPolicy {
+    /**
+     * 不再重连
+     * */
+    long STOP = -1;
+
+    /**
+     * 计算下一次重连的延迟
+     * @param attempt 第几次重连，从1开始，连接成功之后重新计数
+     * @param status onConnectionStateChange中的status
+     * @return 延迟时间，单位毫秒；{@link #STOP}表示放弃
+     * */
+    long getRetryDelay(int attempt, int status);
+}
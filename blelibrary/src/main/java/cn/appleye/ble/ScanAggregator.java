@@ -0,0 +1,203 @@
+package cn.appleye.ble;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-17
+ * 扫描结果合并器，按地址去重，平滑信号强度，保留最新的广播数据，每隔一段时间批量回调一次。
+ * 同一个设备只在第一次出现时创建对象，之后的广播只更新数值，回调次数与广播频率无关
+ */
+public class ScanAggregator {
+    /**
+     * 默认回调间隔
+     * */
+    public static final long DEFAULT_INTERVAL = 500;
+
+    /**
+     * 默认平滑系数，新的信号强度占的比重
+     * */
+    public static final float DEFAULT_SMOOTHING = 0.25f;
+
+    private final TaskScheduler mScheduler;
+
+    private final BatchCallback mCallback;
+
+    private final long mInterval;
+
+    private volatile float mSmoothing = DEFAULT_SMOOTHING;
+
+    private final Object mLock = new Object();
+
+    /**
+     * 所有设备的最新数据，按地址保存，只在mLock中访问
+     * */
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * 上次回调之后有更新的设备，只在mLock中访问
+     * */
+    private final ArrayList<Entry> mDirtyEntries = new ArrayList<>();
+
+    /**
+     * 回调的结果，只在调度线程中访问
+     * */
+    private final ArrayList<ScannedDevice> mBatch = new ArrayList<>();
+
+    private final List<ScannedDevice> mBatchView = Collections.unmodifiableList(mBatch);
+
+    private boolean mFlushPending;
+
+    private boolean mStarted;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param scheduler 回调所在的线程
+     * @param interval 回调间隔，单位毫秒
+     * */
+    public ScanAggregator(TaskScheduler scheduler, long interval, BatchCallback callback) {
+        mScheduler = scheduler;
+        mInterval = Math.max(0, interval);
+        mCallback = callback;
+    }
+
+    /**
+     * 设置信号强度的平滑系数
+     * @param smoothing (0, 1]，越大越接近最新的信号强度，1表示不平滑
+     * */
+    public void setSmoothing(float smoothing) {
+        mSmoothing = Math.max(0.01f, Math.min(1f, smoothing));
+    }
+
+    /**
+     * 开始新的一次扫描，清空之前的设备
+     * */
+    public void start() {
+        synchronized (mLock) {
+            mEntries.clear();
+            mDirtyEntries.clear();
+            mStarted = true;
+        }
+    }
+
+    /**
+     * 停止合并，把还没有回调的结果回调出去，在调度线程中调用
+     * */
+    public void stop() {
+        flush();
+        synchronized (mLock) {
+            mStarted = false;
+            mEntries.clear();
+            mDirtyEntries.clear();
+        }
+    }
+
+    /**
+     * 收到一个广播，可以在任意线程调用
+     * */
+    public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        onScanResult(device.getAddress(), device, rssi, scanRecord);
+    }
+
+    void onScanResult(String address, BluetoothDevice device, int rssi, byte[] scanRecord) {
+        boolean schedule = false;
+        synchronized (mLock) {
+            if(!mStarted) {
+                return;
+            }
+
+            Entry entry = mEntries.get(address);
+            if(entry == null) {
+                entry = new Entry(device, address, rssi);
+                mEntries.put(address, entry);
+            } else {
+                entry.rssi += (rssi - entry.rssi) * mSmoothing;
+            }
+            entry.lastRssi = rssi;
+            entry.scanRecord = scanRecord;
+            entry.lastSeen = mScheduler.uptimeMillis();
+            entry.count++;
+
+            if(!entry.dirty) {
+                entry.dirty = true;
+                mDirtyEntries.add(entry);
+            }
+
+            if(!mFlushPending) {
+                mFlushPending = true;
+                schedule = true;
+            }
+        }
+
+        if(schedule) {
+            mScheduler.postDelayed(mFlushTask, mInterval);
+        }
+    }
+
+    /**
+     * 立即回调有更新的设备，在调度线程中调用
+     * */
+    public void flush() {
+        mScheduler.remove(mFlushTask);
+        mBatch.clear();
+        synchronized (mLock) {
+            mFlushPending = false;
+            for(int i = 0; i < mDirtyEntries.size(); i++) {
+                Entry entry = mDirtyEntries.get(i);
+                entry.dirty = false;
+
+                ScannedDevice snapshot = entry.snapshot;
+                snapshot.rssi = entry.rssi;
+                snapshot.lastRssi = entry.lastRssi;
+                snapshot.scanRecord = entry.scanRecord;
+                snapshot.lastSeen = entry.lastSeen;
+                snapshot.count = entry.count;
+                mBatch.add(snapshot);
+            }
+            mDirtyEntries.clear();
+        }
+
+        if(!mBatch.isEmpty() && mCallback != null) {
+            mCallback.onDevicesFound(mBatchView);
+        }
+    }
+
+    /**
+     * 一个设备的最新数据，扫描线程更新，回调时拷贝到snapshot
+     * */
+    private static class Entry {
+        final ScannedDevice snapshot;
+        float rssi;
+        int lastRssi;
+        byte[] scanRecord;
+        long lastSeen;
+        int count;
+        boolean dirty;
+
+        Entry(BluetoothDevice device, String address, int rssi) {
+            this.snapshot = new ScannedDevice(device, address);
+            this.rssi = rssi;
+        }
+    }
+
+    /**
+     * 批量扫描结果回调
+     * */
+    public interface BatchCallback {
+        /**
+         * @param devices 上次回调之后有新广播的设备，列表只在回调中有效
+         * */
+        void onDevicesFound(List<ScannedDevice> devices);
+    }
+}
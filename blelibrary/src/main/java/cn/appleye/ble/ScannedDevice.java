@@ -0,0 +1,73 @@
+package cn.appleye.ble;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-17
+ * 合并之后的扫描结果，同一个设备在每批结果中都是同一个对象，
+ * 数值只在下一批结果回调时更新，回调之外读取到的是上一批的数值
+ */
+public class ScannedDevice {
+    BluetoothDevice device;
+
+    String address;
+
+    float rssi;
+
+    int lastRssi;
+
+    byte[] scanRecord;
+
+    long lastSeen;
+
+    int count;
+
+    ScannedDevice(BluetoothDevice device, String address) {
+        this.device = device;
+        this.address = address;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * 平滑之后的信号强度
+     * */
+    public int getRssi() {
+        return Math.round(rssi);
+    }
+
+    /**
+     * 最后一次广播的信号强度
+     * */
+    public int getLastRssi() {
+        return lastRssi;
+    }
+
+    /**
+     * 最后一次广播的数据
+     * */
+    public byte[] getScanRecord() {
+        return scanRecord;
+    }
+
+    /**
+     * 最后一次收到广播的时间，单位毫秒
+     * */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * 本次扫描收到的广播次数
+     * */
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,227 @@
+package cn.appleye.ble;
+
+/**
+ * @author liuliaopu
+ * @date 2017-04-08
+ * 选择重传格式的接收端，按序号把包放到缓冲区中的固定位置，可以乱序接收和重复接收。
+ * 收到带{@link BLEDataUtil#FLAG_POLL}的包时生成状态包：第一个缺失的序号加上之后的收包位图，
+ * 由连接写回发送端，发送端只重发缺失的包。
+ * 非线程安全，由{@link FrameAssembler}在同一个线程中调用
+ */
+class SelectiveRepeatReceiver {
+    /**正在接收的消息ID，-1表示没有*/
+    private int mMessageId = -1;
+
+    private int mFrameCount;
+
+    /**每个序号是否已收到，按最大的消息复用*/
+    private boolean[] mReceived = new boolean[0];
+
+    private int mReceivedCount;
+
+    /**非最后一个包的数据长度，0表示还没有收到*/
+    private int mPayloadSize;
+
+    /**最后一个包先于其它包到达时，还不知道它的位置，先暂存数据*/
+    private byte[] mLastPayload;
+
+    /**最近完成的消息，重发的包只回复状态，不再拼接*/
+    private int mCompletedId = -1;
+    private int mCompletedCount;
+
+    /**等待写回发送端的状态包*/
+    private byte[] mStatus;
+
+    /**没有收完就被丢弃的消息数*/
+    private int mDroppedCount;
+
+    /**出错丢弃的消息，发送端重发的包直接忽略，不再回复状态*/
+    private int mRejectedId = -1;
+    private int mRejectedCount;
+
+    /**
+     * 处理一个数据包
+     * @param maxLength 消息的最大长度，超出的消息直接丢弃，不分配缓冲区
+     * @return true 消息已完整
+     * */
+    boolean onFrame(byte[] frame, ReassemblyBuffer buffer, int maxLength) {
+        if(frame.length < BLEDataUtil.SELECTIVE_HEADER_SIZE || (frame[0] & BLEDataUtil.FLAG_STATUS) != 0) {
+            return false;
+        }
+
+        int messageId = BLEDataUtil.selectiveMessageId(frame);
+        int sequence = BLEDataUtil.selectiveSequence(frame);
+        int frameCount = BLEDataUtil.selectiveFrameCount(frame);
+        boolean poll = (frame[0] & BLEDataUtil.FLAG_POLL) != 0;
+        if(frameCount == 0 || sequence >= frameCount) {
+            return false;
+        }
+
+        if(messageId != mMessageId || frameCount != mFrameCount) {
+            if(messageId == mRejectedId && frameCount == mRejectedCount) {
+                return false;
+            }
+            if(messageId == mCompletedId && frameCount == mCompletedCount) {//确认丢失，发送端又发了一轮
+                if(poll) {
+                    mStatus = buildStatus(messageId, frameCount);
+                }
+                return false;
+            }
+            if(mMessageId >= 0) {//没有收完就开始了新消息
+                mDroppedCount++;
+            }
+            start(messageId, frameCount, buffer);
+        }
+
+        if(!mReceived[sequence] && !place(frame, sequence, buffer, maxLength)) {
+            //包大小不一致，不是同一个消息，或者消息太长
+            mDroppedCount++;
+            reset();
+            buffer.reset();
+            mRejectedId = messageId;
+            mRejectedCount = frameCount;
+            return false;
+        }
+
+        boolean complete = mReceivedCount == mFrameCount;
+        if(complete) {
+            mCompletedId = mMessageId;
+            mCompletedCount = mFrameCount;
+        }
+        if(poll) {
+            mStatus = buildStatus(messageId, frameCount);
+        }
+        if(complete) {
+            mMessageId = -1;
+        }
+        return complete;
+    }
+
+    /**
+     * 取出等待写回的状态包
+     * @return 没有时返回null
+     * */
+    byte[] takeStatus() {
+        byte[] status = mStatus;
+        mStatus = null;
+        return status;
+    }
+
+    /**
+     * 正在接收的消息ID
+     * @return 没有正在接收的消息时返回-1
+     * */
+    int receivingMessageId() {
+        return mMessageId;
+    }
+
+    /**
+     * 没有收完就被丢弃的消息数，包括出错和被新消息打断
+     * */
+    int droppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * 丢弃正在接收的消息和记录
+     * */
+    void reset() {
+        mMessageId = -1;
+        mFrameCount = 0;
+        mReceivedCount = 0;
+        mPayloadSize = 0;
+        mLastPayload = null;
+        mCompletedId = -1;
+        mCompletedCount = 0;
+        mRejectedId = -1;
+        mRejectedCount = 0;
+        mStatus = null;
+    }
+
+    private void start(int messageId, int frameCount, ReassemblyBuffer buffer) {
+        mMessageId = messageId;
+        mRejectedId = -1;
+        mFrameCount = frameCount;
+        mReceivedCount = 0;
+        mPayloadSize = 0;
+        mLastPayload = null;
+        if(mReceived.length < frameCount) {
+            mReceived = new boolean[frameCount];
+        } else {
+            for(int i = 0; i < frameCount; i++) {
+                mReceived[i] = false;
+            }
+        }
+        buffer.reset();
+    }
+
+    private boolean place(byte[] frame, int sequence, ReassemblyBuffer buffer, int maxLength) {
+        int offset = BLEDataUtil.SELECTIVE_HEADER_SIZE;
+        int length = frame.length - offset;
+        int last = mFrameCount - 1;
+        if(sequence < last) {
+            if(mPayloadSize == 0) {
+                if(length == 0 || (mLastPayload != null && mLastPayload.length > length)
+                        || (long) length * (mFrameCount - 1) + 1 > maxLength) {
+                    return false;
+                }
+                mPayloadSize = length;
+                buffer.ensureCapacity(Math.min(mPayloadSize * mFrameCount, ReassemblyBuffer.MAX_RETAINED_CAPACITY));
+                if(mLastPayload != null) {
+                    buffer.put(last * mPayloadSize, mLastPayload, 0, mLastPayload.length);
+                    mLastPayload = null;
+                }
+            } else if(length != mPayloadSize) {
+                return false;
+            }
+            buffer.put(sequence * mPayloadSize, frame, offset, length);
+        } else if(mFrameCount == 1) {
+            if(length > maxLength) {
+                return false;
+            }
+            buffer.put(0, frame, offset, length);
+        } else if(mPayloadSize > 0) {
+            if(length > mPayloadSize) {
+                return false;
+            }
+            buffer.put(last * mPayloadSize, frame, offset, length);
+        } else {
+            mLastPayload = new byte[length];
+            System.arraycopy(frame, offset, mLastPayload, 0, length);
+        }
+
+        mReceived[sequence] = true;
+        mReceivedCount++;
+        return true;
+    }
+
+    /**
+     * 生成状态包，第一个缺失的序号之后的位图最多{@link BLEDataUtil#STATUS_MAX_BITMAP}字节，
+     * 超出的部分发送端按缺失处理
+     * */
+    private byte[] buildStatus(int messageId, int frameCount) {
+        int base = frameCount;
+        if(messageId == mMessageId) {
+            for(int i = 0; i < frameCount; i++) {
+                if(!mReceived[i]) {
+                    base = i;
+                    break;
+                }
+            }
+        }
+
+        int bits = Math.max(0, frameCount - base - 1);
+        int bitmapSize = Math.min(BLEDataUtil.STATUS_MAX_BITMAP, (bits + 7) / 8);
+        byte[] status = new byte[BLEDataUtil.STATUS_HEADER_SIZE + bitmapSize];
+        status[0] = (byte) (BLEDataUtil.FLAG_FRAMED | BLEDataUtil.FLAG_SELECTIVE | BLEDataUtil.FLAG_STATUS);
+        status[1] = (byte) messageId;
+        status[2] = (byte) (base >> 8);
+        status[3] = (byte) base;
+        for(int bit = 0; bit < bitmapSize * 8 && bit < bits; bit++) {
+            if(mReceived[base + 1 + bit]) {
+                status[BLEDataUtil.STATUS_HEADER_SIZE + bit / 8] |= (byte) (1 << (bit % 8));
+            }
+        }
+        return status;
+    }
+}
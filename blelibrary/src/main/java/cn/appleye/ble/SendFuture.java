@@ -0,0 +1,244 @@
+package cn.appleye.ble;
+
+import java.util.concurrent.Executor;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-31
+ * 一次sendData的结果，所有包都在onCharacteristicWrite中确认之后才算送达。
+ * 消息先进入连接的{@link SendQueue}，再按优先级交给发送器。
+ * 可以注册监听、取消还未送达的消息，或者在工作线程中等待结果，不要在主线程和发送线程中等待
+ */
+public class SendFuture {
+    /**
+     * 还没有结果
+     * */
+    public static final int RESULT_PENDING = -1;
+
+    public static final int RESULT_SUCCESS = PacketSender.RESULT_SUCCESS;
+
+    public static final int RESULT_FAILED = PacketSender.RESULT_FAILED;
+
+    public static final int RESULT_TIMEOUT = PacketSender.RESULT_TIMEOUT;
+
+    public static final int RESULT_CANCELLED = PacketSender.RESULT_CANCELLED;
+
+    /**
+     * 发送队列满时被丢弃或者拒绝，或者被同key的新消息替换，见{@link SendQueue}
+     * */
+    public static final int RESULT_DROPPED = 4;
+
+    /**
+     * 监听回调的线程
+     * */
+    private final Executor mExecutor;
+
+    /**
+     * 期限，SystemClock.uptimeMillis()时钟，0表示不限制
+     * */
+    final long mDeadline;
+
+    /**
+     * 要发送的数据，String或者byte[]，交给发送器之后清空
+     * */
+    Object mData;
+
+    final boolean mStreaming;
+
+    /**
+     * 优先级{@link SendQueue#PRIORITY_HIGH}等
+     * */
+    final int mPriority;
+
+    /**
+     * 合并key，为空表示不合并
+     * */
+    final Object mKey;
+
+    /**
+     * 逻辑通道，每个通道有自己的发送队列
+     * */
+    final int mChannel;
+
+    private int mResult = RESULT_PENDING;
+
+    private boolean mCancelRequested;
+
+    private SendListener mListener;
+
+    /**
+     * 取消请求，由连接交给发送线程处理
+     * */
+    private Canceller mCanceller;
+
+    /**
+     * 发送器的回调，在发送线程中回调
+     * */
+    final PacketSender.SendCallback mSendCallback;
+
+    SendFuture(Object data, boolean streaming, long deadline, int priority, Object key,
+               Executor executor, PacketSender.SendCallback next) {
+        this(data, streaming, deadline, priority, key, 0, executor, next);
+    }
+
+    SendFuture(Object data, boolean streaming, long deadline, int priority, Object key, int channel,
+               Executor executor, final PacketSender.SendCallback next) {
+        mData = data;
+        mChannel = channel;
+        mStreaming = streaming;
+        mDeadline = deadline;
+        mPriority = priority;
+        mKey = key;
+        mExecutor = executor;
+        mSendCallback = new PacketSender.SendCallback() {
+            @Override
+            public void onSendComplete(int result) {
+                if(next != null) {
+                    next.onSendComplete(result);
+                }
+                setResult(result);
+            }
+        };
+    }
+
+    /**
+     * 已经有结果的future，没有连接时返回
+     * */
+    static SendFuture completed(int result) {
+        SendFuture future = new SendFuture(null, false, 0, SendQueue.PRIORITY_NORMAL, null, CallbackExecutors.direct(), null);
+        future.setResult(result);
+        return future;
+    }
+
+    void setCanceller(Canceller canceller) {
+        mCanceller = canceller;
+    }
+
+    /**
+     * @return {@link #RESULT_PENDING}, {@link #RESULT_SUCCESS}, {@link #RESULT_FAILED},
+     * {@link #RESULT_TIMEOUT}, {@link #RESULT_CANCELLED}, {@link #RESULT_DROPPED}
+     * */
+    public synchronized int getResult() {
+        return mResult;
+    }
+
+    public synchronized boolean isDone() {
+        return mResult != RESULT_PENDING;
+    }
+
+    public synchronized boolean isSuccess() {
+        return mResult == RESULT_SUCCESS;
+    }
+
+    /**
+     * 是否已经请求取消，发送线程处理前用来跳过还在Handler中的消息
+     * */
+    synchronized boolean isCancelRequested() {
+        return mCancelRequested;
+    }
+
+    /**
+     * 取消发送，异步生效：还在队列中的消息不再发送，正在发送的消息不再写入新的包，
+     * 结果是{@link #RESULT_CANCELLED}。最后一个包已经写入时仍然可能以{@link #RESULT_SUCCESS}结束
+     * @return false 已经有结果或者已经取消过
+     * */
+    public boolean cancel() {
+        Canceller canceller;
+        synchronized (this) {
+            if(mResult != RESULT_PENDING || mCancelRequested) {
+                return false;
+            }
+            mCancelRequested = true;
+            canceller = mCanceller;
+        }
+
+        if(canceller != null) {
+            canceller.cancel(this);
+        }
+        return true;
+    }
+
+    /**
+     * 设置结果监听，已经有结果时立即投递
+     * */
+    public void setListener(SendListener listener) {
+        boolean done;
+        synchronized (this) {
+            mListener = listener;
+            done = mResult != RESULT_PENDING;
+        }
+
+        if(done && listener != null) {
+            dispatch(listener);
+        }
+    }
+
+    /**
+     * 等待结果，不能在主线程和发送线程中调用
+     * @param timeout 最长等待时间，单位毫秒，0表示一直等待
+     * @return 结果，超时返回{@link #RESULT_PENDING}
+     * */
+    public synchronized int await(long timeout) throws InterruptedException {
+        if(timeout <= 0) {
+            while(mResult == RESULT_PENDING) {
+                wait();
+            }
+            return mResult;
+        }
+
+        long end = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while(mResult == RESULT_PENDING && remaining > 0) {
+            wait(remaining);
+            remaining = end - System.currentTimeMillis();
+        }
+        return mResult;
+    }
+
+    /**
+     * 设置结果，只有第一次有效
+     * */
+    void setResult(int result) {
+        SendListener listener;
+        synchronized (this) {
+            if(mResult != RESULT_PENDING) {
+                return;
+            }
+            mResult = result;
+            mData = null;
+            listener = mListener;
+            notifyAll();
+        }
+
+        if(listener != null) {
+            dispatch(listener);
+        }
+    }
+
+    private void dispatch(final SendListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onSendComplete(SendFuture.this, getResult());
+            }
+        });
+    }
+
+    /**
+     * 发送结果监听
+     * */
+    public interface SendListener {
+        /**
+         * @param result {@link #RESULT_SUCCESS}, {@link #RESULT_FAILED}, {@link #RESULT_TIMEOUT},
+         *               {@link #RESULT_CANCELLED}, {@link #RESULT_DROPPED}
+         * */
+        void onSendComplete(SendFuture future, int result);
+    }
+
+    /**
+     * 取消请求的处理者
+     * */
+    interface Canceller {
+        void cancel(SendFuture future);
+    }
+}
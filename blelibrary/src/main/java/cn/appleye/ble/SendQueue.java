@@ -0,0 +1,292 @@
+package cn.appleye.ble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * @author liuliaopu
+ * @date 2017-04-05
+ * 有界的发送队列，按优先级出队，同一优先级先进先出。
+ * 队列满时按溢出策略阻塞调用者、丢弃最早的消息或者拒绝新的消息；
+ * 设置了合并key的消息会替换队列中还未开始发送的同key消息，替换时保留原来的位置。
+ * 调用者线程入队，发送线程出队，线程安全
+ */
+public class SendQueue {
+    /**
+     * 控制命令等需要优先发送的消息
+     * */
+    public static final int PRIORITY_HIGH = 0;
+
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * 遥测、日志等可以延后的消息
+     * */
+    public static final int PRIORITY_LOW = 2;
+
+    /**
+     * 队列满时阻塞调用者，直到有空位或者消息超过期限。在发送线程和主线程中调用时按拒绝处理
+     * */
+    public static final int OVERFLOW_BLOCK = 0;
+
+    /**
+     * 队列满时丢弃优先级不高于新消息的最早的消息，没有可以丢弃的消息时拒绝新消息
+     * */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+
+    /**
+     * 队列满时拒绝新消息
+     * */
+    public static final int OVERFLOW_REJECT = 2;
+
+    /**
+     * 默认容量
+     * */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final int PRIORITY_COUNT = 3;
+
+    /**
+     * 每个优先级一个队列
+     * */
+    private final ArrayList<LinkedList<SendFuture>> mQueues = new ArrayList<>(PRIORITY_COUNT);
+
+    /**
+     * 合并key对应的还未出队的消息
+     * */
+    private final HashMap<Object, SendFuture> mKeyed = new HashMap<>();
+
+    private int mSize;
+
+    /**
+     * 时钟，和消息的期限使用同一个时钟
+     * */
+    private final TaskScheduler mClock;
+
+    private int mCapacity = DEFAULT_CAPACITY;
+
+    private int mOverflowPolicy = OVERFLOW_REJECT;
+
+    public SendQueue(TaskScheduler clock) {
+        mClock = clock;
+        for(int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues.add(new LinkedList<SendFuture>());
+        }
+    }
+
+    /**
+     * 设置容量，已经在队列中的消息不受影响
+     * */
+    public synchronized void setCapacity(int capacity) {
+        mCapacity = Math.max(1, capacity);
+        notifyAll();
+    }
+
+    /**
+     * @param policy {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_DROP_OLDEST}, {@link #OVERFLOW_REJECT}
+     * */
+    public synchronized void setOverflowPolicy(int policy) {
+        mOverflowPolicy = policy;
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * 入队，被替换、丢弃或者拒绝的消息以{@link SendFuture#RESULT_DROPPED}结束
+     * @param mayBlock false 不允许阻塞，{@link #OVERFLOW_BLOCK}按拒绝处理
+     * @return true 已入队
+     * */
+    public boolean offer(SendFuture future, boolean mayBlock) {
+        SendFuture dropped = null;
+        int result = SendFuture.RESULT_DROPPED;
+        boolean queued = false;
+        boolean interrupted = false;
+
+        synchronized (this) {
+            int priority = clampPriority(future.mPriority);
+            SendFuture previous = future.mKey != null ? mKeyed.get(future.mKey) : null;
+            if(previous != null) {//合并，替换旧消息，队列长度不变
+                LinkedList<SendFuture> queue = mQueues.get(clampPriority(previous.mPriority));
+                if(queue == mQueues.get(priority)) {//同一优先级保留原来的位置
+                    queue.set(queue.indexOf(previous), future);
+                    mKeyed.put(future.mKey, future);
+                    queued = true;
+                } else {
+                    queue.remove(previous);
+                    onRemoved(previous);
+                }
+                dropped = previous;
+            } else {
+                while(mSize >= mCapacity) {
+                    if(mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+                        dropped = removeOldest(priority);
+                        if(dropped == null) {
+                            dropped = future;
+                        }
+                        break;
+                    }
+
+                    if(mOverflowPolicy != OVERFLOW_BLOCK || !mayBlock) {
+                        dropped = future;
+                        break;
+                    }
+
+                    long wait = 0;
+                    if(future.mDeadline > 0) {
+                        wait = future.mDeadline - mClock.uptimeMillis();
+                        if(wait <= 0) {
+                            dropped = future;
+                            result = SendFuture.RESULT_TIMEOUT;
+                            break;
+                        }
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        dropped = future;
+                        break;
+                    }
+                }
+            }
+
+            if(!queued && dropped != future) {
+                mQueues.get(priority).add(future);
+                mSize++;
+                if(future.mKey != null) {
+                    mKeyed.put(future.mKey, future);
+                }
+                queued = true;
+            }
+        }
+
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if(dropped != null) {
+            dropped.setResult(result);
+        }
+        return queued;
+    }
+
+    /**
+     * 取出优先级最高的消息
+     * @return 队列为空时返回null
+     * */
+    public synchronized SendFuture poll() {
+        for(int i = 0; i < PRIORITY_COUNT; i++) {
+            SendFuture future = mQueues.get(i).poll();
+            if(future != null) {
+                onRemoved(future);
+                return future;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 移除还没有出队的消息
+     * @return false 已经出队
+     * */
+    public synchronized boolean remove(SendFuture future) {
+        if(!removeFromQueue(future)) {
+            return false;
+        }
+        onRemoved(future);
+        return true;
+    }
+
+    /**
+     * 取出所有超过期限的消息
+     * @return 没有时返回null
+     * */
+    public synchronized List<SendFuture> expire(long now) {
+        ArrayList<SendFuture> expired = null;
+        for(int i = 0; i < PRIORITY_COUNT; i++) {
+            Iterator<SendFuture> iterator = mQueues.get(i).iterator();
+            while(iterator.hasNext()) {
+                SendFuture future = iterator.next();
+                if(future.mDeadline > 0 && future.mDeadline <= now) {
+                    iterator.remove();
+                    onRemoved(future);
+                    if(expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(future);
+                }
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * 最早的期限
+     * @return 没有设置期限的消息时返回0
+     * */
+    public synchronized long earliestDeadline() {
+        long earliest = 0;
+        for(int i = 0; i < PRIORITY_COUNT; i++) {
+            for(SendFuture future : mQueues.get(i)) {
+                if(future.mDeadline > 0 && (earliest == 0 || future.mDeadline < earliest)) {
+                    earliest = future.mDeadline;
+                }
+            }
+        }
+
+        return earliest;
+    }
+
+    /**
+     * 取出所有消息
+     * */
+    public synchronized List<SendFuture> clear() {
+        ArrayList<SendFuture> all = new ArrayList<>(mSize);
+        for(int i = 0; i < PRIORITY_COUNT; i++) {
+            all.addAll(mQueues.get(i));
+            mQueues.get(i).clear();
+        }
+        mKeyed.clear();
+        mSize = 0;
+        notifyAll();
+        return all;
+    }
+
+    private boolean removeFromQueue(SendFuture future) {
+        return mQueues.get(clampPriority(future.mPriority)).remove(future);
+    }
+
+    /**
+     * 从最低优先级开始，丢弃优先级不高于priority的最早的消息
+     * */
+    private SendFuture removeOldest(int priority) {
+        for(int i = PRIORITY_COUNT - 1; i >= priority; i--) {
+            SendFuture future = mQueues.get(i).poll();
+            if(future != null) {
+                onRemoved(future);
+                return future;
+            }
+        }
+
+        return null;
+    }
+
+    private void onRemoved(SendFuture future) {
+        mSize--;
+        if(future.mKey != null && mKeyed.get(future.mKey) == future) {
+            mKeyed.remove(future.mKey);
+        }
+        notifyAll();
+    }
+
+    private static int clampPriority(int priority) {
+        return Math.min(PRIORITY_COUNT - 1, Math.max(0, priority));
+    }
+}
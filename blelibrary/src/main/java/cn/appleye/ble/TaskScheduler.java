@@ -0,0 +1,29 @@
+package cn.appleye.ble;
+
+/**
+ * @author liuliaopu
+ * @date 2017-03-02
+ * 任务调度接口，屏蔽Handler的实现，发送流程可以直接在JVM上模拟测试
+ */
+public interface TaskScheduler {
+    /**
+     * 投递任务
+     * */
+    void post(Runnable task);
+
+    /**
+     * 延迟投递任务
+     * @param delayMillis 延迟时间，单位毫秒
+     * */
+    void postDelayed(Runnable task, long delayMillis);
+
+    /**
+     * 移除还未执行的任务
+     * */
+    void remove(Runnable task);
+
+    /**
+     * 当前时间，单位毫秒
+     * */
+    long uptimeMillis();
+}
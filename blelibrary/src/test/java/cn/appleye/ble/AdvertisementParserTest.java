@@ -0,0 +1,162 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static cn.appleye.ble.TestUtils.allocatedBytes;
+import static org.junit.Assert.*;
+
+/**
+ * 广播数据解析测试，以及与逐个拷贝的解析方式的性能对比
+ */
+public class AdvertisementParserTest {
+    private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    /**
+     * flags + 16位UUID列表 + 名称 + 发射功率 + 厂商数据，共31字节
+     * */
+    private static final byte[] RECORD = {
+            0x02, 0x01, 0x06,
+            0x05, 0x03, 0x0F, 0x18, 0x0D, 0x18,
+            0x07, 0x09, 'B', 'L', 'E', '-', '0', '1',
+            0x02, 0x0A, (byte) 0xF4,
+            0x08, (byte) 0xFF, 0x4C, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05,
+            0x00, 0x00
+    };
+
+    private static byte[] buildFullUuidRecord(UUID uuid) {
+        byte[] record = new byte[20];
+        record[0] = 17;
+        record[1] = 0x07;
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for(int i = 0; i < 8; i++) {
+            record[2 + i] = (byte) (lsb >>> (8 * i));
+            record[10 + i] = (byte) (msb >>> (8 * i));
+        }
+        return record;
+    }
+
+    /**
+     * 应用中常见的解析方式：每个结构拷贝一份数据，UUID和名称都创建对象
+     * */
+    private static int copyingParse(byte[] record) {
+        List<byte[]> structures = new ArrayList<>();
+        List<UUID> uuids = new ArrayList<>();
+        String name = null;
+        int offset = 0;
+        while(offset < record.length) {
+            int length = record[offset] & 0xFF;
+            if(length == 0 || offset + 1 + length > record.length) {
+                break;
+            }
+            int type = record[offset + 1] & 0xFF;
+            byte[] data = new byte[length - 1];
+            System.arraycopy(record, offset + 2, data, 0, data.length);
+            structures.add(data);
+            if(type == 0x03) {
+                for(int i = 0; i + 2 <= data.length; i += 2) {
+                    int shortUuid = (data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8);
+                    uuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", shortUuid)));
+                }
+            } else if(type == 0x09) {
+                name = new String(data);
+            }
+            offset += 1 + length;
+        }
+        return structures.size() + uuids.size() + (name != null ? 1 : 0);
+    }
+
+    @Test
+    public void parsesStructures() throws Exception {
+        AdvertisementParser parser = new AdvertisementParser().parse(RECORD);
+
+        assertEquals(5, parser.structureCount());
+        assertEquals(AdvertisementParser.TYPE_FLAGS, parser.type(0));
+        assertEquals("BLE-01", parser.getLocalName());
+        assertTrue(parser.localNameEquals("BLE-01".getBytes("UTF-8")));
+        assertFalse(parser.localNameEquals("BLE-02".getBytes("UTF-8")));
+        assertEquals(-12, parser.getTxPowerLevel());
+
+        assertEquals(2, parser.serviceUuidCount());
+        assertEquals(BATTERY, parser.getServiceUuid(0));
+        assertEquals(HEART_RATE, parser.getServiceUuid(1));
+        assertTrue(parser.hasServiceUuid(HEART_RATE));
+        assertFalse(parser.hasServiceUuid(CUSTOM));
+
+        int index = parser.indexOfManufacturer(0x004C);
+        assertTrue(index >= 0);
+        assertEquals(0x004C, parser.manufacturerId(index));
+        assertEquals(5, parser.dataLength(index) - 2);
+        assertEquals(0x01, parser.data()[parser.dataOffset(index) + 2]);
+        assertEquals(-1, parser.indexOfManufacturer(0x0006));
+    }
+
+    @Test
+    public void parsesFullUuid() throws Exception {
+        AdvertisementParser parser = new AdvertisementParser().parse(buildFullUuidRecord(CUSTOM));
+
+        assertEquals(1, parser.serviceUuidCount());
+        assertEquals(CUSTOM, parser.getServiceUuid(0));
+        assertTrue(parser.hasServiceUuid(CUSTOM));
+        assertFalse(parser.hasServiceUuid(HEART_RATE));
+        assertEquals(AdvertisementParser.TX_POWER_UNKNOWN, parser.getTxPowerLevel());
+        assertNull(parser.getLocalName());
+    }
+
+    @Test
+    public void stopsAtTruncatedStructure() throws Exception {
+        AdvertisementParser parser = new AdvertisementParser();
+        parser.parse(new byte[]{0x02, 0x01, 0x06, 0x05, 0x03, 0x0D});
+        assertEquals(1, parser.structureCount());
+        assertFalse(parser.hasServiceUuid(HEART_RATE));
+
+        parser.parse(null);
+        assertEquals(0, parser.structureCount());
+    }
+
+    @Test
+    public void benchmarkAgainstCopyingParse() throws Exception {
+        AdvertisementParser parser = new AdvertisementParser();
+        int rounds = 200000;
+        long checksum = 0;
+
+        //预热
+        for(int i = 0; i < rounds; i++) {
+            checksum += copyingParse(RECORD);
+            checksum += parser.parse(RECORD).hasServiceUuid(HEART_RATE) ? 1 : 0;
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < rounds; i++) {
+            checksum += copyingParse(RECORD);
+        }
+        long copyingTime = (System.nanoTime() - start) / rounds;
+
+        long before = allocatedBytes();
+        long overhead = allocatedBytes() - before;
+        before = allocatedBytes();
+        start = System.nanoTime();
+        for(int i = 0; i < rounds; i++) {
+            parser.parse(RECORD);
+            checksum += parser.hasServiceUuid(HEART_RATE) ? 1 : 0;
+            checksum += parser.getTxPowerLevel();
+            checksum += parser.indexOfManufacturer(0x004C);
+        }
+        long parserTime = (System.nanoTime() - start) / rounds;
+        long allocated = allocatedBytes() - before - overhead;
+
+        System.out.println("parse " + rounds + " records: copying = " + copyingTime + "ns/record, parser = "
+                + parserTime + "ns/record (" + (parserTime > 0 ? 1000000000L / parserTime : 0) + " records/s), allocated = "
+                + allocated + " bytes");
+
+        assertTrue(checksum != 0);
+        assertTrue(parserTime < copyingTime);
+        assertTrue(allocated < 256);
+    }
+}
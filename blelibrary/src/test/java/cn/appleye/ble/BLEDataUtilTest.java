@@ -0,0 +1,156 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分包和拼包测试
+ */
+public class BLEDataUtilTest {
+
+    private static String buildMessage(int length) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    private static String decodeAll(byte[][] packets) throws Exception {
+        byte[] result = null;
+        for(byte[] packet : packets) {
+            result = BLEDataUtil.decode(packet, result);
+        }
+        return new String(result, "UTF-8");
+    }
+
+    @Test
+    public void encodeUsesNegotiatedPacketSize() throws Exception {
+        String message = buildMessage(4000);
+        byte[][] legacy = BLEDataUtil.encode(message);
+        byte[][] large = BLEDataUtil.encode(message, BLEDataUtil.packetSizeForMtu(247));
+
+        assertEquals(223, legacy.length);
+        assertEquals(17, large.length);
+        assertEquals(244, large[0].length);
+        assertTrue(legacy.length > large.length * 10);
+        assertEquals(message, decodeAll(large));
+    }
+
+    @Test
+    public void smallPacketSizeFallsBackToLegacyFrames() throws Exception {
+        String message = buildMessage(50);
+        byte[][] packets = BLEDataUtil.encode(message, 10);
+
+        assertEquals(BLEDataUtil.DEFAULT_PACKET_SIZE, packets[0].length);
+        assertEquals(message, decodeAll(packets));
+    }
+
+    private static byte[] assemble(FrameAssembler assembler, byte[][] packets) {
+        for(byte[] packet : packets) {
+            if(assembler.onFrame(packet)) {
+                return assembler.takeMessage().toByteArray();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void lengthPrefixedKeepsBinaryPayload() {
+        byte[] payload = new byte[1000];
+        for(int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i % 3 == 0 ? 0 : i);
+        }
+        payload[payload.length - 1] = 0;
+
+        byte[][] packets = BLEDataUtil.encode(payload, BLEDataUtil.DEFAULT_PACKET_SIZE, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        assertTrue(BLEDataUtil.isLengthPrefixed(packets[0]));
+        assertArrayEquals(payload, assemble(new FrameAssembler(), packets));
+    }
+
+    @Test
+    public void lengthPrefixedHandlesEmptyAndSingleFrame() {
+        FrameAssembler assembler = new FrameAssembler();
+        byte[][] empty = BLEDataUtil.encode(new byte[0], 244, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        assertEquals(1, empty.length);
+        assertArrayEquals(new byte[0], assemble(assembler, empty));
+
+        byte[] small = {0, 0, 0};
+        assertArrayEquals(small, assemble(assembler, BLEDataUtil.encode(small, 244, BLEDataUtil.FORMAT_LENGTH_PREFIXED)));
+    }
+
+    @Test
+    public void lengthPrefixedDropsMessageWithMissingFrame() {
+        byte[] payload = new byte[100];
+        byte[][] packets = BLEDataUtil.encode(payload, BLEDataUtil.DEFAULT_PACKET_SIZE, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        FrameAssembler assembler = new FrameAssembler();
+        for(int i = 0; i < packets.length; i++) {
+            if(i != 2) {
+                assertFalse(assembler.onFrame(packets[i]));
+            }
+        }
+
+        assertArrayEquals(payload, assemble(assembler, packets));
+    }
+
+    @Test
+    public void lengthPrefixedReordersStripedFrames() {
+        byte[] payload = new byte[1000];
+        for(int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 7 + 1);
+        }
+        byte[][] packets = BLEDataUtil.encode(payload, BLEDataUtil.DEFAULT_PACKET_SIZE, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+
+        //三个特征值轮流发送，同一个特征值的包按顺序到达，第一个特征值(包括首包)比其它的晚到
+        int[] lag = {12, 0, 4};
+        Integer[] order = new Integer[packets.length];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final int[] key = new int[packets.length];
+        for(int i = 0; i < key.length; i++) {
+            key[i] = i + lag[i % lag.length];
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return key[a] - key[b];
+            }
+        });
+        assertNotEquals(0, (int) order[0]);
+
+        FrameAssembler assembler = new FrameAssembler();
+        byte[] result = null;
+        for(int i = 0; i < order.length; i++) {
+            if(assembler.onFrame(packets[order[i]].clone())) {
+                assertEquals(order.length - 1, i);
+                result = assembler.takeMessage().toByteArray();
+            }
+        }
+        assertArrayEquals(payload, result);
+
+        //之后按顺序到达的消息不受影响，重复的包丢弃整个消息
+        assertArrayEquals(payload, assemble(assembler, packets));
+        assertFalse(assembler.onFrame(packets[0]));
+        assertFalse(assembler.onFrame(packets[1]));
+        assertFalse(assembler.onFrame(packets[1]));
+        for(int i = 2; i < packets.length; i++) {
+            assertFalse(assembler.onFrame(packets[i]));
+        }
+    }
+
+    @Test
+    public void assemblerAcceptsBothFormats() throws Exception {
+        FrameAssembler assembler = new FrameAssembler();
+        String message = buildMessage(300);
+        byte[] legacy = assemble(assembler, BLEDataUtil.encode(message));
+        byte[] framed = assemble(assembler, BLEDataUtil.encode(message, 100, BLEDataUtil.FORMAT_LENGTH_PREFIXED));
+
+        assertEquals(message, new String(legacy, "UTF-8"));
+        assertEquals(message, new String(framed, "UTF-8"));
+    }
+}
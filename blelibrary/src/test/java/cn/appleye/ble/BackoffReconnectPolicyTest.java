@@ -0,0 +1,63 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 指数退避重连策略测试
+ */
+public class BackoffReconnectPolicyTest {
+    private static final int STATUS_REMOTE_DISCONNECTED = 19;
+
+    @Test
+    public void delayGrowsToLimitThenStops() throws Exception {
+        BackoffReconnectPolicy policy = new BackoffReconnectPolicy(1000, 5000, 5, new Random(1));
+        policy.setJitter(0);
+
+        assertEquals(1000, policy.getRetryDelay(1, STATUS_REMOTE_DISCONNECTED));
+        assertEquals(2000, policy.getRetryDelay(2, STATUS_REMOTE_DISCONNECTED));
+        assertEquals(4000, policy.getRetryDelay(3, STATUS_REMOTE_DISCONNECTED));
+        assertEquals(5000, policy.getRetryDelay(4, STATUS_REMOTE_DISCONNECTED));
+        assertEquals(5000, policy.getRetryDelay(5, STATUS_REMOTE_DISCONNECTED));
+        assertEquals(ReconnectPolicy.STOP, policy.getRetryDelay(6, STATUS_REMOTE_DISCONNECTED));
+
+        //默认和之前一样重连4次
+        policy = new BackoffReconnectPolicy();
+        assertTrue(policy.getRetryDelay(BackoffReconnectPolicy.DEFAULT_MAX_ATTEMPTS, STATUS_REMOTE_DISCONNECTED) >= 0);
+        assertEquals(ReconnectPolicy.STOP, policy.getRetryDelay(5, STATUS_REMOTE_DISCONNECTED));
+    }
+
+    @Test
+    public void transientStatusRetriesImmediatelyOnce() throws Exception {
+        BackoffReconnectPolicy policy = new BackoffReconnectPolicy(1000, 5000, 5, new Random(1));
+        policy.setJitter(0);
+
+        assertEquals(0, policy.getRetryDelay(1, BackoffReconnectPolicy.STATUS_GATT_ERROR));
+        assertEquals(0, policy.getRetryDelay(1, BackoffReconnectPolicy.STATUS_CONNECTION_TIMEOUT));
+        assertEquals(2000, policy.getRetryDelay(2, BackoffReconnectPolicy.STATUS_GATT_ERROR));
+
+        policy.setFastRetry(false);
+        assertEquals(1000, policy.getRetryDelay(1, BackoffReconnectPolicy.STATUS_GATT_ERROR));
+    }
+
+    @Test
+    public void jitterSpreadsDevicesApart() throws Exception {
+        BackoffReconnectPolicy policy = new BackoffReconnectPolicy(1000, 30000, 0, new Random(7));
+
+        Set<Long> delays = new HashSet<>();
+        for(int device = 0; device < 20; device++) {
+            long delay = policy.getRetryDelay(3, STATUS_REMOTE_DISCONNECTED);
+            assertTrue(delay >= 2000 && delay <= 4000);
+            delays.add(delay);
+        }
+        assertTrue(delays.size() > 10);
+
+        //不限次数
+        assertEquals(30000, policy.getRetryDelay(100, STATUS_REMOTE_DISCONNECTED), 15000);
+    }
+}
@@ -0,0 +1,218 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static cn.appleye.ble.TestUtils.buildData;
+import static org.junit.Assert.*;
+
+/**
+ * 逻辑通道：按通道拼包，以及大量数据和控制消息在同一条链路上轮转发送
+ */
+public class ChannelSenderTest {
+    private static final long CONNECTION_INTERVAL = 30;
+
+    private static final int PACKET_SIZE = 100;
+
+    /**
+     * 模拟的设备，按通道记录收到的消息
+     * */
+    private static class Device implements SimulatedGatt.Peer {
+        final SimulatedScheduler scheduler;
+        final FrameAssembler assembler = new FrameAssembler();
+        final Map<Integer, byte[]> messages = new HashMap<>();
+        final Map<Integer, Long> times = new HashMap<>();
+        final List<byte[]> received = new ArrayList<>();
+
+        Device(SimulatedScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onPacket(byte[] packet) {
+            if(assembler.onFrame(packet)) {
+                int channel = assembler.messageChannel();
+                byte[] message = assembler.takeMessage().toByteArray();
+                messages.put(channel, message);
+                received.add(message);
+                times.put(channel, scheduler.uptimeMillis());
+            }
+        }
+    }
+
+    private static class Link {
+        final SimulatedScheduler scheduler = new SimulatedScheduler();
+        final SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        final PacketSender sender = new PacketSender(scheduler, gatt);
+        final Device device = new Device(scheduler);
+        final ChannelSender channels;
+
+        Link() {
+            this(BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        }
+
+        Link(final int format) {
+            gatt.setController(4, 8);
+            gatt.attach(sender);
+            gatt.setPeer(device);
+            channels = new ChannelSender(scheduler, sender, new ChannelSender.Encoder() {
+                @Override
+                public FrameEncoder encode(SendFuture future) {
+                    byte[] data = (byte[]) future.mData;
+                    future.mData = null;
+                    return FrameEncoder.obtain(data, format, PACKET_SIZE, future.mChannel);
+                }
+            });
+        }
+
+        SendFuture send(final int channel, final byte[] data, final boolean streaming, long delay) {
+            final SendFuture[] future = new SendFuture[1];
+            future[0] = new SendFuture(data, streaming, 0, SendQueue.PRIORITY_NORMAL, null, channel,
+                    CallbackExecutors.direct(), new PacketSender.SendCallback() {
+                        @Override
+                        public void onSendComplete(int result) {
+                            scheduler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    channels.sendNext();
+                                }
+                            });
+                        }
+                    });
+            scheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    assertTrue(channels.offer(future[0], false));
+                    channels.sendNext();
+                }
+            }, delay);
+            return future[0];
+        }
+    }
+
+    @Test
+    public void reassemblesInterleavedChannels() throws Exception {
+        byte[] bulk = buildData(1000, 1);
+        byte[] control = buildData(150, 2);
+        byte[] plain = buildData(120, 3);
+        FrameEncoder bulkFrames = FrameEncoder.obtain(bulk, BLEDataUtil.FORMAT_LENGTH_PREFIXED, 20, 1);
+        FrameEncoder controlFrames = FrameEncoder.obtain(control, BLEDataUtil.FORMAT_LENGTH_PREFIXED, 20, 9);
+        FrameEncoder plainFrames = FrameEncoder.obtain(plain, BLEDataUtil.FORMAT_SELECTIVE_REPEAT, 20);
+        assertEquals(1, BLEDataUtil.frameChannel(bulkFrames.frame(0)));
+        assertEquals(0, BLEDataUtil.frameChannel(plainFrames.frame(0)));
+
+        FrameAssembler assembler = new FrameAssembler();
+        Map<Integer, byte[]> messages = new HashMap<>();
+        FrameEncoder[] sources = {bulkFrames, controlFrames, plainFrames};
+        int[] next = new int[sources.length];
+        boolean remaining = true;
+        while(remaining) {//轮流取每个消息的下一个包
+            remaining = false;
+            for(int i = 0; i < sources.length; i++) {
+                if(next[i] < sources[i].frameCount()) {
+                    remaining = true;
+                    if(assembler.onFrame(sources[i].frame(next[i]++).clone())) {
+                        int channel = assembler.messageChannel();
+                        messages.put(channel, assembler.takeMessage().toByteArray());
+                    }
+                }
+            }
+        }
+
+        assertArrayEquals(bulk, messages.get(1));
+        assertArrayEquals(control, messages.get(9));
+        assertArrayEquals(plain, messages.get(0));
+        //选择重传的状态包不带通道号
+        assertTrue(BLEDataUtil.isStatusFrame(assembler.takeStatus()));
+    }
+
+    @Test
+    public void controlMessageIsNotBlockedByBulkTransfer() throws Exception {
+        byte[] bulk = buildData(20000, 1);
+        byte[] control = buildData(60, 2);
+
+        //只有一个通道，控制消息要等大量数据发送完
+        Link single = new Link();
+        SendFuture singleBulk = single.send(0, bulk, true, 0);
+        SendFuture singleControl = single.send(0, control, false, 100);
+        assertTrue(single.scheduler.runUntilIdle(60000));
+        assertTrue(singleBulk.isSuccess());
+        assertTrue(singleControl.isSuccess());
+        assertArrayEquals(control, single.device.messages.get(0));
+        long blockedLatency = single.device.times.get(0) - 100;
+
+        Link link = new Link();
+        SendFuture bulkFuture = link.send(1, bulk, true, 0);
+        SendFuture controlFuture = link.send(0, control, false, 100);
+        assertTrue(link.scheduler.runUntilIdle(60000));
+        assertTrue(bulkFuture.isSuccess());
+        assertTrue(controlFuture.isSuccess());
+        assertArrayEquals(bulk, link.device.messages.get(1));
+        assertArrayEquals(control, link.device.messages.get(0));
+        long latency = link.device.times.get(0) - 100;
+        long bulkTime = link.device.times.get(1);
+
+        System.out.println("control latency behind " + bulk.length + " bytes: one channel = " + blockedLatency
+                + "ms, two channels = " + latency + "ms, bulk = " + bulkTime + "ms (one channel "
+                + single.device.times.get(0) + "ms)");
+
+        assertTrue(latency * 5 < blockedLatency);
+        assertTrue(link.device.times.get(0) < bulkTime);
+    }
+
+    @Test
+    public void cancelsBetweenSegments() throws Exception {
+        final Link link = new Link();
+        link.send(2, buildData(100, 0), false, 0);//先用到第二个通道，之后的消息分段发送
+        final SendFuture bulk = link.send(1, buildData(20000, 1), true, 0);
+        link.scheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                bulk.cancel();
+                link.channels.cancel(bulk);
+            }
+        }, 300);
+        assertTrue(link.scheduler.runUntilIdle(60000));
+
+        assertEquals(SendFuture.RESULT_CANCELLED, bulk.getResult());
+        assertNull(link.device.messages.get(1));
+        assertTrue(link.gatt.getWriteCount() < 100);
+    }
+
+    @Test
+    public void legacyMessagesAreNotSegmented() throws Exception {
+        Link link = new Link(BLEDataUtil.FORMAT_LEGACY);
+        byte[] first = buildData(5000, 1);
+        byte[] second = buildData(3000, 2);
+        byte[] small = buildData(50, 3);
+        //旧格式的包不带通道号和序号，用到多个通道之后也要整个消息连续发送，否则对端会拼错
+        SendFuture smallFuture = link.send(2, small, false, 0);
+        SendFuture firstFuture = link.send(1, first, true, 0);
+        SendFuture secondFuture = link.send(0, second, true, 0);
+        assertTrue(link.scheduler.runUntilIdle(60000));
+
+        assertTrue(smallFuture.isSuccess());
+        assertTrue(firstFuture.isSuccess());
+        assertTrue(secondFuture.isSuccess());
+        //通道之间按消息轮转，顺序不固定，但每个消息都完整
+        assertEquals(3, link.device.received.size());
+        assertTrue(contains(link.device.received, small));
+        assertTrue(contains(link.device.received, first));
+        assertTrue(contains(link.device.received, second));
+        assertEquals(0, link.device.assembler.getDroppedCount());
+    }
+
+    private static boolean contains(List<byte[]> messages, byte[] data) {
+        for(byte[] message : messages) {
+            if(Arrays.equals(message, data)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,172 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * 压缩环节：编码ID、跳过短消息和不可压缩的消息，以及不同级别和字典的压缩率与耗时
+ */
+public class CompressionTest {
+    private static final byte[] DICTIONARY = utf8("{\"cmd\":\"status\",\"seq\":,\"battery\":,\"temperature\":"
+            + ",\"humidity\":,\"state\":\"idle\",\"state\":\"running\",\"error\":null,\"timestamp\":"
+            + ",\"level\":\"info\",\"tag\":\"sensor\",\"msg\":\"sample\",\"values\":[");
+
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**设备状态，短消息*/
+    private static byte[] statusMessage(int seq) {
+        return utf8("{\"cmd\":\"status\",\"seq\":" + seq + ",\"battery\":" + (80 + seq % 20)
+                + ",\"temperature\":" + (21 + seq % 5) + ".5,\"humidity\":" + (40 + seq % 30)
+                + ",\"state\":\"running\",\"error\":null,\"timestamp\":" + (1491800000L + seq) + "}");
+    }
+
+    /**日志批量上传，长消息*/
+    private static byte[] logMessage(int lines) {
+        StringBuilder builder = new StringBuilder("[");
+        for(int i = 0; i < lines; i++) {
+            if(i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"level\":\"info\",\"tag\":\"sensor\",\"msg\":\"sample ").append(i)
+                    .append("\",\"values\":[").append(i * 7 % 100).append(',').append(i * 13 % 100)
+                    .append("],\"timestamp\":").append(1491800000L + i).append('}');
+        }
+        return utf8(builder.append(']').toString());
+    }
+
+    private static byte[] decode(PayloadCodec codec, byte[] encoded) throws IOException {
+        ReassemblyBuffer buffer = new ReassemblyBuffer();
+        buffer.append(encoded, 0, encoded.length);
+        CompressionStage.decode(codec, buffer);
+        return buffer.toByteArray();
+    }
+
+    @Test
+    public void roundTripsWithCodecId() throws Exception {
+        DeflateCodec codec = new DeflateCodec(Deflater.BEST_SPEED, DICTIONARY);
+        byte[] data = logMessage(20);
+
+        byte[] encoded = CompressionStage.encode(codec, data, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        assertEquals(DeflateCodec.ID, encoded[0]);
+        assertTrue(encoded.length < data.length / 3);
+        assertArrayEquals(data, decode(codec, encoded));
+
+        //旧帧格式只加编码ID
+        encoded = CompressionStage.encode(codec, data, BLEDataUtil.FORMAT_LEGACY);
+        assertEquals(CompressionStage.ID_RAW, encoded[0]);
+        assertArrayEquals(data, decode(codec, encoded));
+
+        //不压缩时原样返回
+        assertSame(data, CompressionStage.encode(null, data, BLEDataUtil.FORMAT_LENGTH_PREFIXED));
+    }
+
+    @Test
+    public void skipsSmallAndIncompressible() throws Exception {
+        DeflateCodec codec = new DeflateCodec();
+        byte[] small = utf8("{\"cmd\":\"ping\"}");
+        byte[] encoded = CompressionStage.encode(codec, small, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        assertEquals(CompressionStage.ID_RAW, encoded[0]);
+        assertEquals(small.length + 1, encoded.length);
+
+        byte[] random = new byte[1024];
+        new Random(1).nextBytes(random);
+        encoded = CompressionStage.encode(codec, random, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        assertEquals(CompressionStage.ID_RAW, encoded[0]);
+        assertArrayEquals(random, decode(codec, encoded));
+    }
+
+    @Test
+    public void rejectsCorruptData() throws Exception {
+        DeflateCodec codec = new DeflateCodec(Deflater.DEFAULT_COMPRESSION, DICTIONARY);
+        byte[] encoded = CompressionStage.encode(codec, logMessage(10), BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+
+        byte[] truncated = new byte[encoded.length / 2];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        try {
+            decode(codec, truncated);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        encoded[0] = 9;
+        try {
+            decode(codec, encoded);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        //解压后超过长度限制
+        DeflateCodec limited = new DeflateCodec(Deflater.DEFAULT_COMPRESSION, null, 1024);
+        encoded = CompressionStage.encode(limited, new byte[64 * 1024], BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        try {
+            decode(limited, encoded);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void benchmarkRatioAndCost() throws Exception {
+        int[] levels = {Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION};
+        byte[][] payloads = {statusMessage(42), logMessage(4), logMessage(40)};
+        String[] names = {"status", "log x4", "log x40"};
+        int rounds = 2000;
+        double smallPlain = 0;
+        double smallDictionary = 0;
+
+        for(int p = 0; p < payloads.length; p++) {
+            byte[] data = payloads[p];
+            for(int level : levels) {
+                for(int d = 0; d < 2; d++) {
+                    DeflateCodec codec = new DeflateCodec(level, d == 0 ? null : DICTIONARY);
+                    byte[] encoded = null;
+                    //预热
+                    for(int i = 0; i < rounds; i++) {
+                        encoded = CompressionStage.encode(codec, data, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+                        decode(codec, encoded);
+                    }
+
+                    long start = System.nanoTime();
+                    for(int i = 0; i < rounds; i++) {
+                        encoded = CompressionStage.encode(codec, data, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+                    }
+                    long compressTime = (System.nanoTime() - start) / rounds;
+                    start = System.nanoTime();
+                    for(int i = 0; i < rounds; i++) {
+                        decode(codec, encoded);
+                    }
+                    long decompressTime = (System.nanoTime() - start) / rounds;
+
+                    assertArrayEquals(data, decode(codec, encoded));
+                    double ratio = (double) encoded.length / data.length;
+                    if(p == 0 && level == Deflater.BEST_SPEED) {
+                        if(d == 0) {
+                            smallPlain = ratio;
+                        } else {
+                            smallDictionary = ratio;
+                        }
+                    }
+                    System.out.println(names[p] + " " + data.length + " bytes, level " + level
+                            + (d == 0 ? "" : " + dictionary") + ": " + encoded.length + " bytes ("
+                            + (int) (ratio * 100) + "%), compress = " + compressTime / 1000.0
+                            + "us, decompress = " + decompressTime / 1000.0 + "us");
+                }
+            }
+        }
+
+        //短消息主要靠字典
+        assertTrue(smallDictionary < smallPlain);
+        assertTrue(smallDictionary < 0.6);
+    }
+}
@@ -0,0 +1,111 @@
+package cn.appleye.ble;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 连接状态机：按GATT回调的顺序驱动，断开和各种失败都要回到连接中重试
+ */
+public class ConnectionStateMachineTest {
+    private static final int GATT_ERROR = 133;
+
+    private static ConnectionStateMachine connecting() {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        machine.set(BLEConnection.STATE_CONNECTING);
+        return machine;
+    }
+
+    private static ConnectionStateMachine ready() {
+        ConnectionStateMachine machine = connecting();
+        assertEquals(ConnectionStateMachine.ACTION_DISCOVER,
+                machine.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED));
+        assertEquals(BLEConnection.STATE_DISCOVERING, machine.getState());
+        assertEquals(ConnectionStateMachine.ACTION_SUBSCRIBE, machine.onServicesDiscovered(BluetoothGatt.GATT_SUCCESS));
+        assertEquals(BLEConnection.STATE_SUBSCRIBING, machine.getState());
+        assertEquals(ConnectionStateMachine.ACTION_READY, machine.onSubscribed(true));
+        assertEquals(BLEConnection.STATE_READY, machine.getState());
+        return machine;
+    }
+
+    @Test
+    public void cleanDisconnectRetries() {
+        ConnectionStateMachine machine = ready();
+
+        //status为0的断开也要重连，不能停在就绪状态
+        assertEquals(ConnectionStateMachine.ACTION_RETRY,
+                machine.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_DISCONNECTED));
+        assertEquals(BLEConnection.STATE_CONNECTING, machine.getState());
+
+        //重连成功之后可以再次就绪
+        assertEquals(ConnectionStateMachine.ACTION_DISCOVER,
+                machine.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED));
+    }
+
+    @Test
+    public void connectErrorRetries() {
+        ConnectionStateMachine machine = connecting();
+        assertEquals(ConnectionStateMachine.ACTION_RETRY,
+                machine.onConnectionStateChange(GATT_ERROR, BluetoothGatt.STATE_DISCONNECTED));
+        assertEquals(BLEConnection.STATE_CONNECTING, machine.getState());
+
+        machine = ready();
+        assertEquals(ConnectionStateMachine.ACTION_RETRY,
+                machine.onConnectionStateChange(GATT_ERROR, BluetoothGatt.STATE_DISCONNECTED));
+        assertEquals(BLEConnection.STATE_CONNECTING, machine.getState());
+    }
+
+    @Test
+    public void discoveryFailureRetries() {
+        ConnectionStateMachine machine = connecting();
+        machine.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+        assertEquals(ConnectionStateMachine.ACTION_RETRY, machine.onServicesDiscovered(BluetoothGatt.GATT_FAILURE));
+        assertEquals(BLEConnection.STATE_CONNECTING, machine.getState());
+
+        //已经在重连，重复的失败回调不再重试
+        assertEquals(ConnectionStateMachine.ACTION_NONE, machine.onServicesDiscovered(BluetoothGatt.GATT_FAILURE));
+        assertEquals(ConnectionStateMachine.ACTION_NONE, machine.onServicesDiscovered(BluetoothGatt.GATT_SUCCESS));
+        assertEquals(BLEConnection.STATE_CONNECTING, machine.getState());
+
+        //服务变化之后重新发现失败
+        machine = ready();
+        assertEquals(ConnectionStateMachine.ACTION_RETRY, machine.onServicesDiscovered(BluetoothGatt.GATT_FAILURE));
+        assertEquals(BLEConnection.STATE_CONNECTING, machine.getState());
+    }
+
+    @Test
+    public void subscriptionFailureRetries() {
+        ConnectionStateMachine machine = connecting();
+        machine.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+        machine.onServicesDiscovered(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(ConnectionStateMachine.ACTION_RETRY, machine.onSubscribed(false));
+        assertEquals(BLEConnection.STATE_CONNECTING, machine.getState());
+        assertEquals(ConnectionStateMachine.ACTION_NONE, machine.onSubscribed(true));
+        assertEquals(BLEConnection.STATE_CONNECTING, machine.getState());
+    }
+
+    @Test
+    public void closedConnectionIsNotRetried() {
+        ConnectionStateMachine machine = ready();
+        machine.set(BLEConnection.STATE_CLOSING);
+        assertTrue(machine.isClosed());
+
+        assertEquals(ConnectionStateMachine.ACTION_NONE,
+                machine.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_DISCONNECTED));
+        assertEquals(ConnectionStateMachine.ACTION_NONE,
+                machine.onConnectionStateChange(GATT_ERROR, BluetoothGatt.STATE_DISCONNECTED));
+        assertEquals(ConnectionStateMachine.ACTION_NONE, machine.onServicesDiscovered(BluetoothGatt.GATT_FAILURE));
+        assertEquals(ConnectionStateMachine.ACTION_NONE, machine.onSubscribed(false));
+        assertEquals(BLEConnection.STATE_CLOSING, machine.getState());
+
+        //disconnect之后才连上的gatt要关闭
+        assertEquals(ConnectionStateMachine.ACTION_CLOSE,
+                machine.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED));
+        machine.set(BLEConnection.STATE_DISCONNECTED);
+        assertEquals(ConnectionStateMachine.ACTION_CLOSE,
+                machine.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED));
+        assertEquals(BLEConnection.STATE_DISCONNECTED, machine.getState());
+    }
+}
@@ -0,0 +1,199 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import static cn.appleye.ble.TestUtils.allocatedBytes;
+import static cn.appleye.ble.TestUtils.buildData;
+import static org.junit.Assert.*;
+
+/**
+ * 拼包器的期限、最大长度和未完成消息的淘汰
+ */
+public class FrameAssemblerTest {
+
+    private static byte[][] encode(byte[] data, int format) {
+        return BLEDataUtil.encode(data, BLEDataUtil.DEFAULT_PACKET_SIZE, format);
+    }
+
+    private static String buildText(int length) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void legacyContinueWithoutStartIsNotMerged() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        FrameAssembler assembler = new FrameAssembler(scheduler);
+        byte[][] first = BLEDataUtil.encode(buildText(60));
+        byte[][] second = BLEDataUtil.encode("0123456789abcdefghijklmnopqrstuvwxyz0123456789");
+
+        //开始包丢失，继续包和结尾包都不能拼成消息
+        for(int i = 1; i < second.length; i++) {
+            assertFalse(assembler.onFrame(second[i]));
+        }
+        assertEquals(1, assembler.getDroppedCount());
+
+        //结尾包丢失，超过期限之后，下一个消息的开始包也丢失，不会拼到之前的数据后面
+        for(int i = 0; i < first.length - 1; i++) {
+            assertFalse(assembler.onFrame(first[i]));
+        }
+        scheduler.advance(FrameAssembler.DEFAULT_REASSEMBLY_TIMEOUT);
+        for(int i = 1; i < second.length; i++) {
+            assertFalse(assembler.onFrame(second[i]));
+        }
+        assertEquals(1, assembler.getPartialCount());
+
+        //之后的消息不受影响，只有一个包的消息也能收到
+        assertTrue(assembler.onFrame(BLEDataUtil.encode("ok")[0]));
+        assertEquals("ok", new String(assembler.takeMessage().toByteArray(), "UTF-8"));
+        assertEquals(buildText(60), new String(assemble(assembler, first), "UTF-8"));
+    }
+
+    private static byte[] assemble(FrameAssembler assembler, byte[][] frames) {
+        for(byte[] frame : frames) {
+            if(assembler.onFrame(frame)) {
+                return assembler.takeMessage().toByteArray();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void partialMessageExpires() {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        FrameAssembler assembler = new FrameAssembler(scheduler);
+        assembler.setReassemblyTimeout(1000);
+        byte[] data = buildData(200, 1);
+        byte[][] frames = encode(data, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+
+        //包之间的间隔小于期限，不会过期
+        for(int i = 0; i < frames.length - 1; i++) {
+            assertFalse(assembler.onFrame(frames[i]));
+            scheduler.advance(800);
+        }
+        assertTrue(assembler.onFrame(frames[frames.length - 1]));
+        assertArrayEquals(data, assembler.takeMessage().toByteArray());
+
+        //收到一半之后超过期限，剩下的包丢弃
+        assertFalse(assembler.onFrame(frames[0]));
+        assertFalse(assembler.onFrame(frames[1]));
+        scheduler.advance(1000);
+        for(int i = 2; i < frames.length; i++) {
+            assertFalse(assembler.onFrame(frames[i]));
+        }
+        assertEquals(1, assembler.getPartialCount());
+
+        byte[][] selective = encode(data, BLEDataUtil.FORMAT_SELECTIVE_REPEAT);
+        for(int i = 0; i < selective.length; i++) {
+            if(assembler.onFrame(selective[i])) {
+                assertArrayEquals(data, assembler.takeMessage().toByteArray());
+            }
+        }
+        assertEquals(1, assembler.getPartialCount());
+    }
+
+    @Test
+    public void rejectsOversizedMessages() {
+        FrameAssembler assembler = new FrameAssembler();
+        assembler.setMaxMessageSize(100);
+        byte[] large = buildData(500, 2);
+        byte[] small = buildData(100, 3);
+
+        for(byte[] frame : encode(large, BLEDataUtil.FORMAT_LENGTH_PREFIXED)) {
+            assertFalse(assembler.onFrame(frame));
+        }
+        for(byte[] frame : encode(large, BLEDataUtil.FORMAT_SELECTIVE_REPEAT)) {
+            assertFalse(assembler.onFrame(frame));
+        }
+        for(byte[] frame : BLEDataUtil.encode(buildText(500))) {
+            assertFalse(assembler.onFrame(frame));
+        }
+        assertTrue(assembler.getDroppedCount() >= 3);
+
+        byte[][] frames = encode(small, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        for(int i = 0; i < frames.length - 1; i++) {
+            assertFalse(assembler.onFrame(frames[i]));
+        }
+        assertTrue(assembler.onFrame(frames[frames.length - 1]));
+        assertArrayEquals(small, assembler.takeMessage().toByteArray());
+    }
+
+    @Test
+    public void declaredLengthDoesNotPinMemory() {
+        FrameAssembler assembler = new FrameAssembler();
+        byte[] data = buildData(FrameAssembler.DEFAULT_MAX_MESSAGE_SIZE, 6);
+        FrameEncoder encoder = FrameEncoder.obtain(data, BLEDataUtil.FORMAT_LENGTH_PREFIXED, BLEDataUtil.DEFAULT_PACKET_SIZE);
+        byte[] first = encoder.frame(0).clone();
+        byte[] second = encoder.frame(1).clone();
+        assembler.onFrame(buildData(1, 0));//预先取出缓冲区
+
+        //首包声明了1MB，但只收到了一个包，不能按声明的长度分配
+        long before = allocatedBytes();
+        long overhead = allocatedBytes() - before;
+        before = allocatedBytes();
+        assertFalse(assembler.onFrame(first));
+        assertFalse(assembler.onFrame(second));
+        long allocated = allocatedBytes() - before - overhead;
+        assertTrue(allocated < ReassemblyBuffer.MAX_RETAINED_CAPACITY * 2);
+
+        //收完之后数据正确
+        for(int i = 2; i < encoder.frameCount() - 1; i++) {
+            assertFalse(assembler.onFrame(encoder.frame(i)));
+        }
+        assertTrue(assembler.onFrame(encoder.frame(encoder.frameCount() - 1)));
+        assertArrayEquals(data, assembler.takeMessage().toByteArray());
+        encoder.release();
+    }
+
+    @Test
+    public void dropsTruncatedFrames() {
+        FrameAssembler assembler = new FrameAssembler();
+        byte[] data = buildData(100, 5);
+        byte[][] frames = encode(data, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+
+        assertFalse(assembler.onFrame(new byte[]{(byte) 0x80}));
+        assertFalse(assembler.onFrame(new byte[]{(byte) 0x80, 0}));
+        assertFalse(assembler.onFrame(new byte[]{(byte) 0x84, 1}));
+        assertEquals(3, assembler.getDroppedCount());
+
+        //不完整的包打断正在拼接的消息
+        assertFalse(assembler.onFrame(frames[0]));
+        assertFalse(assembler.onFrame(new byte[]{(byte) 0x80}));
+        for(int i = 1; i < frames.length; i++) {
+            assertFalse(assembler.onFrame(frames[i]));
+        }
+        assertEquals(4, assembler.getDroppedCount());
+        assertArrayEquals(data, assemble(assembler, frames));
+    }
+
+    @Test
+    public void evictsOldestPartialMessages() {
+        FrameAssembler assembler = new FrameAssembler();
+        byte[] data = buildData(100, 4);
+        int channels = FrameAssembler.MAX_PARTIAL_MESSAGES + 2;
+        FrameEncoder[] encoders = new FrameEncoder[channels];
+        for(int channel = 1; channel <= channels; channel++) {
+            encoders[channel - 1] = FrameEncoder.obtain(data, BLEDataUtil.FORMAT_LENGTH_PREFIXED,
+                    BLEDataUtil.DEFAULT_PACKET_SIZE, channel);
+            assertFalse(assembler.onFrame(encoders[channel - 1].frame(0).clone()));
+        }
+        assertEquals(2, assembler.getPartialCount());
+
+        //最早的两个通道已经被淘汰，其它通道可以收完
+        int completed = 0;
+        for(FrameEncoder encoder : encoders) {
+            for(int i = 1; i < encoder.frameCount(); i++) {
+                if(assembler.onFrame(encoder.frame(i).clone())) {
+                    assertTrue(assembler.messageChannel() > 2);
+                    assertArrayEquals(data, assembler.takeMessage().toByteArray());
+                    completed++;
+                }
+            }
+        }
+        assertEquals(FrameAssembler.MAX_PARTIAL_MESSAGES, completed);
+        assertEquals(2, assembler.getPartialCount());
+    }
+}
@@ -0,0 +1,91 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static cn.appleye.ble.TestUtils.allocatedBytes;
+import static cn.appleye.ble.TestUtils.buildData;
+import static org.junit.Assert.*;
+
+/**
+ * 分包游标测试，包括稳定发送时的内存分配统计
+ */
+public class FrameEncoderTest {
+
+    @Test
+    public void framesMatchEncode() {
+        int[] lengths = {0, 1, 18, 19, 100, 1000};
+        int[] packetSizes = {BLEDataUtil.DEFAULT_PACKET_SIZE, 20, 244};
+        int[] formats = {BLEDataUtil.FORMAT_LEGACY, BLEDataUtil.FORMAT_LENGTH_PREFIXED};
+        for(int length : lengths) {
+            byte[] data = buildData(length, 0);
+            for(int packetSize : packetSizes) {
+                for(int format : formats) {
+                    byte[][] expected = BLEDataUtil.encode(data, packetSize, format);
+                    FrameEncoder encoder = FrameEncoder.obtain(data, format, packetSize);
+                    assertEquals(expected.length, encoder.frameCount());
+                    //倒序访问，验证可以随机访问
+                    for(int i = expected.length - 1; i >= 0; i--) {
+                        assertTrue(Arrays.equals(expected[i], encoder.frame(i)));
+                    }
+                    encoder.release();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void legacyFramesArePaddedLikeBefore() throws Exception {
+        byte[] data = "hello".getBytes("UTF-8");
+        FrameEncoder encoder = FrameEncoder.obtain(data, BLEDataUtil.FORMAT_LEGACY, BLEDataUtil.DEFAULT_PACKET_SIZE);
+        byte[] frame = encoder.frame(0);
+
+        assertEquals(BLEDataUtil.DEFAULT_PACKET_SIZE, frame.length);
+        assertEquals(0, frame[frame.length - 1]);
+        assertTrue(BLEDataUtil.isEnd(frame));
+    }
+
+    @Test
+    public void steadyStateSendAllocatesNothingPerPacket() {
+        //调度器不运行，写入超时任务只投递一次
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        final long[] checksum = new long[1];
+        PacketSender sender = new PacketSender(scheduler, new PacketSender.PacketWriter() {
+            @Override
+            public boolean writePacket(byte[] packet, boolean withResponse) {
+                checksum[0] += packet[packet.length - 1];
+                return true;
+            }
+        });
+
+        byte[] data = buildData(64 * 1024, 0);
+        int[] formats = {BLEDataUtil.FORMAT_LEGACY, BLEDataUtil.FORMAT_LENGTH_PREFIXED};
+        for(int format : formats) {
+            //预热，让缓存池和JIT进入稳定状态
+            for(int round = 0; round < 20; round++) {
+                sender.send(FrameEncoder.obtain(data, format, 244), false, null);
+                while(sender.isBusy()) {
+                    sender.onPacketWritten(true);
+                }
+            }
+
+            FrameEncoder encoder = FrameEncoder.obtain(data, format, BLEDataUtil.DEFAULT_PACKET_SIZE);
+            int packets = encoder.frameCount();
+            sender.send(encoder, false, null);
+            //扣除统计本身分配的内存
+            long before = allocatedBytes();
+            long overhead = allocatedBytes() - before;
+            before = allocatedBytes();
+            while(sender.isBusy()) {
+                sender.onPacketWritten(true);
+            }
+            long allocated = allocatedBytes() - before - overhead;
+            System.out.println("format = " + format + ", packets = " + packets + ", allocated = " + allocated + " bytes");
+
+            assertTrue(packets > 3000);
+            assertTrue(allocated < 256);
+        }
+        assertTrue(checksum[0] != 1);
+    }
+}
@@ -0,0 +1,363 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在模拟的GATT上验证回调驱动的分包发送
+ */
+public class PacketSenderTest {
+    /**旧的发送流程每个包至少延时400毫秒*/
+    private static final long LEGACY_DELAY_PER_PACKET = 400;
+
+    /**模拟的连接间隔*/
+    private static final long CONNECTION_INTERVAL = 30;
+
+    private static String buildMessage(int length) {
+        StringBuilder builder = new StringBuilder();
+        while(builder.length() < length) {
+            builder.append("{\"key\":\"value-").append(builder.length()).append("\"}");
+        }
+        return builder.substring(0, length);
+    }
+
+    private static String reassemble(List<byte[]> packets) throws Exception {
+        byte[] result = null;
+        for(byte[] packet : packets) {
+            result = BLEDataUtil.decode(packet, result);
+        }
+        return new String(result, "UTF-8");
+    }
+
+    private static class Result implements PacketSender.SendCallback {
+        final SimulatedScheduler scheduler;
+        int count;
+        boolean success;
+        int result = -1;
+        long time;
+
+        Result(SimulatedScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onSendComplete(int result) {
+            this.count++;
+            this.success = result == PacketSender.RESULT_SUCCESS;
+            this.result = result;
+            this.time = scheduler.uptimeMillis();
+        }
+    }
+
+    @Test
+    public void sendsAllPacketsInOrder() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+
+        String message = buildMessage(1000);
+        Result result = new Result(scheduler);
+        sender.send(BLEDataUtil.encode(message), result);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        assertEquals(1, result.count);
+        assertTrue(result.success);
+        assertEquals(message, reassemble(gatt.getReceived()));
+    }
+
+    @Test
+    public void throughputIsPacedByWriteCallbacks() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+
+        String message = buildMessage(4096);
+        byte[][] packets = BLEDataUtil.encode(message);
+        Result result = new Result(scheduler);
+        sender.send(packets, result);
+        assertTrue(scheduler.runUntilIdle(600000));
+
+        long elapsed = result.time;
+        long legacyElapsed = packets.length * LEGACY_DELAY_PER_PACKET;
+        double throughput = message.length() * 1000.0 / elapsed;
+        double legacyThroughput = message.length() * 1000.0 / legacyElapsed;
+        System.out.println("packets = " + packets.length + ", elapsed = " + elapsed + "ms ("
+                + (int) throughput + " B/s), legacy = " + legacyElapsed + "ms (" + (int) legacyThroughput + " B/s)");
+
+        assertEquals(packets.length * CONNECTION_INTERVAL, elapsed);
+        assertTrue(throughput > legacyThroughput * 10);
+    }
+
+    @Test
+    public void failedPacketIsResentAlone() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+        gatt.failAt(5);
+
+        String message = buildMessage(500);
+        byte[][] packets = BLEDataUtil.encode(message);
+        Result result = new Result(scheduler);
+        sender.send(packets, result);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        assertTrue(result.success);
+        assertEquals(packets.length + 1, gatt.getWriteCount());
+        assertEquals(message, reassemble(gatt.getReceived()));
+    }
+
+    @Test
+    public void lostCallbackFallsBackToTimeout() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        sender.setWriteTimeout(500);
+        gatt.attach(sender);
+        gatt.loseCallbackAt(0);
+
+        String message = buildMessage(100);
+        Result result = new Result(scheduler);
+        sender.send(BLEDataUtil.encode(message), result);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        assertTrue(result.success);
+        assertEquals(message, reassemble(gatt.getReceived()));
+    }
+
+    @Test
+    public void streamingUsesWriteWithoutResponseAndAcknowledgedTrailer() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        gatt.setController(4, 8);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+
+        String message = buildMessage(4096);
+        byte[][] packets = BLEDataUtil.encode(message);
+        Result result = new Result(scheduler);
+        sender.send(packets, true, result);
+        assertTrue(scheduler.runUntilIdle(600000));
+
+        long elapsed = result.time;
+        System.out.println("streaming packets = " + packets.length + ", elapsed = " + elapsed + "ms ("
+                + (int) (message.length() * 1000.0 / elapsed) + " B/s)");
+
+        assertTrue(result.success);
+        assertEquals(packets.length - 1, gatt.getNoResponseCount());
+        assertEquals(message, reassemble(gatt.getReceived()));
+        assertTrue(elapsed * 3 < packets.length * CONNECTION_INTERVAL);
+    }
+
+    @Test
+    public void streamingRestartsMessageWhenTrailerFails() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        gatt.setController(4, 8);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+
+        String message = buildMessage(200);
+        byte[][] packets = BLEDataUtil.encode(message);
+        gatt.failAt(packets.length - 1);
+        Result result = new Result(scheduler);
+        sender.send(packets, true, result);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        assertTrue(result.success);
+        assertEquals(packets.length * 2, gatt.getWriteCount());
+        assertEquals(message, reassemble(gatt.getReceived()));
+    }
+
+    @Test
+    public void queuedMessagesAreSentOneAfterAnother() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        sender.setWindow(4);
+        gatt.attach(sender);
+
+        Result result = new Result(scheduler);
+        sender.send(BLEDataUtil.encode(buildMessage(100)), result);
+        sender.send(BLEDataUtil.encode(buildMessage(200)), result);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        assertEquals(2, result.count);
+        assertTrue(result.success);
+        assertEquals(Arrays.toString(BLEDataUtil.encode(buildMessage(100))[0]),
+                Arrays.toString(gatt.getReceived().get(0)));
+    }
+
+    @Test
+    public void queuedMessageExpiresAtDeadline() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+
+        byte[][] first = BLEDataUtil.encode(buildMessage(1000));
+        Result slow = new Result(scheduler);
+        Result expired = new Result(scheduler);
+        sender.send(new FrameSourceArray(first), false, 0, slow);
+        sender.send(new FrameSourceArray(BLEDataUtil.encode(buildMessage(100))), false, 200, expired);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        //期限到达时立即回调，不等前一个消息发送完
+        assertEquals(PacketSender.RESULT_TIMEOUT, expired.result);
+        assertEquals(200, expired.time);
+        assertTrue(slow.success);
+        assertEquals(first.length, gatt.getWriteCount());
+    }
+
+    @Test
+    public void sendingMessageStopsAtDeadline() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+
+        Result result = new Result(scheduler);
+        sender.send(new FrameSourceArray(BLEDataUtil.encode(buildMessage(1000))), false, 100, result);
+        Result next = new Result(scheduler);
+        sender.send(BLEDataUtil.encode(buildMessage(100)), next);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        assertEquals(PacketSender.RESULT_TIMEOUT, result.result);
+        //已经写入的包返回之后结束
+        assertEquals(4 * CONNECTION_INTERVAL, result.time);
+        assertTrue(next.success);
+    }
+
+    @Test
+    public void cancelRemovesQueuedAndStopsCurrent() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+
+        Result current = new Result(scheduler);
+        Result queued = new Result(scheduler);
+        sender.send(BLEDataUtil.encode(buildMessage(1000)), current);
+        sender.send(BLEDataUtil.encode(buildMessage(100)), queued);
+
+        assertTrue(sender.cancel(queued));
+        assertEquals(PacketSender.RESULT_CANCELLED, queued.result);
+        assertTrue(sender.cancel(current));
+        assertEquals(0, current.count);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        assertEquals(PacketSender.RESULT_CANCELLED, current.result);
+        assertEquals(1, gatt.getWriteCount());
+        assertFalse(sender.cancel(current));
+        assertFalse(sender.isBusy());
+    }
+
+    @Test
+    public void clearFailsPendingMessages() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+
+        Result current = new Result(scheduler);
+        Result queued = new Result(scheduler);
+        sender.send(BLEDataUtil.encode(buildMessage(1000)), current);
+        sender.send(BLEDataUtil.encode(buildMessage(100)), queued);
+        sender.clear();
+
+        assertEquals(PacketSender.RESULT_FAILED, current.result);
+        assertEquals(PacketSender.RESULT_FAILED, queued.result);
+        assertFalse(sender.isBusy());
+    }
+
+    @Test
+    public void stripesFramedPacketsAcrossCharacteristics() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        final SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        final int characteristics = 3;
+        final List<Integer> stripes = new ArrayList<>();
+        final int[] turn = new int[1];
+        //和BLEConnection选择特征值的方式相同，记录每个写出的包用的特征值
+        PacketSender sender = new PacketSender(scheduler, new PacketSender.PacketWriter() {
+            @Override
+            public boolean writePacket(byte[] packet, boolean withResponse) {
+                int index = BLEDataUtil.stripeIndex(packet, turn[0], characteristics);
+                if(index >= 0) {
+                    turn[0] = index + 1;
+                }
+                stripes.add(index);
+                return gatt.writePacket(packet, withResponse);
+            }
+        });
+        gatt.attach(sender);
+
+        byte[] payload = buildMessage(500).getBytes("UTF-8");
+        byte[][] framed = BLEDataUtil.encode(payload, BLEDataUtil.DEFAULT_PACKET_SIZE, BLEDataUtil.FORMAT_LENGTH_PREFIXED);
+        String text = buildMessage(100);
+        byte[][] legacy = BLEDataUtil.encode(text);
+        sender.send(framed, new Result(scheduler));
+        sender.send(legacy, new Result(scheduler));
+        sender.send(framed, new Result(scheduler));
+        assertTrue(scheduler.runUntilIdle(60000));
+        assertEquals(framed.length * 2 + legacy.length, stripes.size());
+
+        //带帧头的包按顺序轮流使用各个特征值，每个特征值上的序号递增
+        int[] lastSequence = {-1, -1, -1};
+        for(int i = 0; i < framed.length; i++) {
+            int index = stripes.get(i);
+            assertEquals(i % characteristics, index);
+            int sequence = BLEDataUtil.frameSequence(gatt.getReceived().get(i));
+            assertTrue(sequence > lastSequence[index]);
+            lastSequence[index] = sequence;
+        }
+        //旧格式的包只用主特征值，不占用轮转次数
+        for(int i = 0; i < legacy.length; i++) {
+            assertEquals(-1, (int) stripes.get(framed.length + i));
+        }
+        assertEquals(framed.length % characteristics, (int) stripes.get(framed.length + legacy.length));
+
+        FrameAssembler assembler = new FrameAssembler();
+        List<byte[]> messages = new ArrayList<>();
+        for(byte[] packet : gatt.getReceived()) {
+            if(assembler.onFrame(packet)) {
+                messages.add(assembler.takeMessage().toByteArray());
+            }
+        }
+        assertEquals(3, messages.size());
+        assertArrayEquals(payload, messages.get(0));
+        assertEquals(text, new String(messages.get(1), "UTF-8"));
+        assertArrayEquals(payload, messages.get(2));
+    }
+
+    /**
+     * 已经分好的包，测试带期限的发送接口
+     * */
+    private static class FrameSourceArray implements FrameSource {
+        private final byte[][] mPackets;
+
+        FrameSourceArray(byte[][] packets) {
+            mPackets = packets;
+        }
+
+        @Override
+        public int frameCount() {
+            return mPackets.length;
+        }
+
+        @Override
+        public byte[] frame(int index) {
+            return mPackets[index];
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 拼包缓冲区测试，以及与旧的拼包方式的性能对比
+ */
+public class ReassemblyBufferTest {
+    /**对比时使用的包大小，即MTU为247时的包大小*/
+    private static final int BENCHMARK_PACKET_SIZE = 244;
+
+    private static byte[][] buildPackets(int length, int packetSize) throws Exception {
+        char[] chars = new char[length];
+        Random random = new Random(length);
+        for(int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return BLEDataUtil.encode(new String(chars), packetSize);
+    }
+
+    private static byte[] legacyDecode(byte[][] packets) {
+        byte[] result = null;
+        for(byte[] packet : packets) {
+            result = BLEDataUtil.decode(packet, result);
+        }
+        return result;
+    }
+
+    private static int bufferDecode(byte[][] packets, ReassemblyBuffer buffer) {
+        for(byte[] packet : packets) {
+            if(BLEDataUtil.decode(packet, buffer)) {
+                break;
+            }
+        }
+        return buffer.length();
+    }
+
+    @Test
+    public void matchesLegacyDecode() throws Exception {
+        byte[][] packets = buildPackets(5000, BLEDataUtil.DEFAULT_PACKET_SIZE);
+        ReassemblyBuffer buffer = new ReassemblyBuffer(16);
+        bufferDecode(packets, buffer);
+
+        assertArrayEquals(legacyDecode(packets), buffer.toByteArray());
+        assertEquals(5000, buffer.view().remaining());
+    }
+
+    @Test
+    public void startPacketResetsBuffer() throws Exception {
+        ReassemblyBuffer buffer = new ReassemblyBuffer();
+        byte[][] first = buildPackets(100, BLEDataUtil.DEFAULT_PACKET_SIZE);
+        byte[][] second = buildPackets(60, BLEDataUtil.DEFAULT_PACKET_SIZE);
+        BLEDataUtil.decode(first[0], buffer);
+        BLEDataUtil.decode(first[1], buffer);
+        bufferDecode(second, buffer);
+
+        assertArrayEquals(legacyDecode(second), buffer.toByteArray());
+    }
+
+    @Test
+    public void recycledBufferIsReused() {
+        ReassemblyBuffer buffer = ReassemblyBuffer.obtain();
+        buffer.append(new byte[]{1, 2, 3}, 0, 3);
+        buffer.recycle();
+
+        ReassemblyBuffer reused = ReassemblyBuffer.obtain();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.length());
+        reused.recycle();
+    }
+
+    @Test
+    public void benchmarkAgainstLegacyDecode() throws Exception {
+        int[] sizes = {1024, 64 * 1024, 1024 * 1024};
+        ReassemblyBuffer buffer = new ReassemblyBuffer();
+        for(int size : sizes) {
+            byte[][] packets = buildPackets(size, BENCHMARK_PACKET_SIZE);
+            int rounds = Math.max(1, (256 * 1024) / size);
+
+            //预热
+            legacyDecode(packets);
+            bufferDecode(packets, buffer);
+
+            long start = System.nanoTime();
+            byte[] legacy = null;
+            for(int i = 0; i < rounds; i++) {
+                legacy = legacyDecode(packets);
+            }
+            long legacyTime = (System.nanoTime() - start) / rounds;
+
+            start = System.nanoTime();
+            for(int i = 0; i < rounds; i++) {
+                buffer.reset();
+                bufferDecode(packets, buffer);
+            }
+            long bufferTime = (System.nanoTime() - start) / rounds;
+
+            System.out.println("reassemble " + size + " bytes in " + packets.length + " packets: legacy = "
+                    + legacyTime / 1000 + "us, buffer = " + bufferTime / 1000 + "us");
+
+            assertTrue(Arrays.equals(legacy, buffer.toByteArray()));
+            if(size >= 64 * 1024) {
+                assertTrue(bufferTime < legacyTime);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 扫描结果合并测试
+ */
+public class ScanAggregatorTest {
+    private static class Recorder implements ScanAggregator.BatchCallback {
+        final List<List<String>> batches = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+        final SimulatedScheduler scheduler;
+
+        Recorder(SimulatedScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onDevicesFound(List<ScannedDevice> devices) {
+            List<String> addresses = new ArrayList<>();
+            for(ScannedDevice device : devices) {
+                addresses.add(device.getAddress() + "/" + device.getCount());
+            }
+            batches.add(addresses);
+            times.add(scheduler.uptimeMillis());
+        }
+    }
+
+    @Test
+    public void deduplicatesAndBatches() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        Recorder recorder = new Recorder(scheduler);
+        ScanAggregator aggregator = new ScanAggregator(scheduler, 500, recorder);
+        aggregator.start();
+
+        for(int i = 0; i < 100; i++) {
+            aggregator.onScanResult("A", null, -60, new byte[]{1});
+            aggregator.onScanResult("B", null, -70, new byte[]{2});
+        }
+        aggregator.onScanResult("A", null, -60, new byte[]{3});
+
+        assertTrue(recorder.batches.isEmpty());
+        scheduler.runUntilIdle(10000);
+
+        assertEquals(1, recorder.batches.size());
+        assertEquals(500L, (long) recorder.times.get(0));
+        assertEquals(2, recorder.batches.get(0).size());
+        assertTrue(recorder.batches.get(0).contains("A/101"));
+        assertTrue(recorder.batches.get(0).contains("B/100"));
+
+        //只回调有更新的设备
+        aggregator.onScanResult("B", null, -70, new byte[]{2});
+        scheduler.runUntilIdle(10000);
+        assertEquals(2, recorder.batches.size());
+        assertEquals("[B/101]", recorder.batches.get(1).toString());
+    }
+
+    @Test
+    public void smoothsRssiAndKeepsLatestRecord() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        final ScannedDevice[] result = new ScannedDevice[1];
+        ScanAggregator aggregator = new ScanAggregator(scheduler, 100, new ScanAggregator.BatchCallback() {
+            @Override
+            public void onDevicesFound(List<ScannedDevice> devices) {
+                result[0] = devices.get(0);
+            }
+        });
+        aggregator.setSmoothing(0.5f);
+        aggregator.start();
+
+        aggregator.onScanResult("A", null, -80, new byte[]{1});
+        aggregator.onScanResult("A", null, -40, new byte[]{2});
+        aggregator.onScanResult("A", null, -40, new byte[]{3});
+        scheduler.runUntilIdle(1000);
+
+        assertEquals(-50, result[0].getRssi());
+        assertEquals(-40, result[0].getLastRssi());
+        assertEquals(3, result[0].getScanRecord()[0]);
+    }
+
+    @Test
+    public void stopFlushesPendingResults() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        Recorder recorder = new Recorder(scheduler);
+        ScanAggregator aggregator = new ScanAggregator(scheduler, 500, recorder);
+        aggregator.start();
+
+        aggregator.onScanResult("A", null, -60, null);
+        aggregator.stop();
+        assertEquals(1, recorder.batches.size());
+
+        //停止之后不再合并
+        aggregator.onScanResult("A", null, -60, null);
+        scheduler.runUntilIdle(10000);
+        assertEquals(1, recorder.batches.size());
+    }
+}
@@ -0,0 +1,223 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static cn.appleye.ble.TestUtils.buildData;
+import static org.junit.Assert.*;
+
+/**
+ * 选择重传格式：接收端的状态包、乱序拼包，以及在模拟的GATT上与整个消息重发的对比
+ */
+public class SelectiveRepeatTest {
+    private static final long CONNECTION_INTERVAL = 30;
+
+    private static final int PACKET_SIZE = 100;
+
+    /**
+     * 模拟的设备：拼包，并在一个连接间隔之后通过通知回复状态包
+     * */
+    private static class Device implements SimulatedGatt.Peer {
+        final SimulatedScheduler scheduler;
+        final PacketSender sender;
+        final FrameAssembler assembler = new FrameAssembler();
+        byte[] message;
+        int statusCount;
+
+        Device(SimulatedScheduler scheduler, PacketSender sender) {
+            this.scheduler = scheduler;
+            this.sender = sender;
+        }
+
+        @Override
+        public void onPacket(byte[] packet) {
+            if(assembler.onFrame(packet)) {
+                message = assembler.takeMessage().toByteArray();
+            }
+            final byte[] status = assembler.takeStatus();
+            if(status != null) {
+                statusCount++;
+                scheduler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        sender.onReceiverStatus(status);
+                    }
+                }, CONNECTION_INTERVAL);
+            }
+        }
+    }
+
+    private static class Result implements PacketSender.SendCallback {
+        int result = -1;
+
+        @Override
+        public void onSendComplete(int result) {
+            this.result = result;
+        }
+    }
+
+    @Test
+    public void reassemblesOutOfOrderAndReportsMissing() throws Exception {
+        byte[] data = buildData(500, 7);
+        FrameEncoder encoder = FrameEncoder.obtain(data, BLEDataUtil.FORMAT_SELECTIVE_REPEAT, 20);
+        encoder.setMessageId(7);
+        int count = encoder.frameCount();
+        assertEquals(36, count);
+
+        FrameAssembler assembler = new FrameAssembler();
+        //倒序发送，漏掉序号1和5，最后一个包先到，不带轮询标志的包不回复状态
+        for(int i = count - 2; i >= 0; i--) {
+            if(i != 1 && i != 5) {
+                assertFalse(assembler.onFrame(encoder.frame(i).clone()));
+                assertNull(assembler.takeStatus());
+            }
+        }
+        assertFalse(assembler.onFrame(encoder.frame(count - 1).clone()));
+
+        byte[] status = assembler.takeStatus();
+        assertTrue(BLEDataUtil.isStatusFrame(status));
+        assertEquals(7, BLEDataUtil.selectiveMessageId(status));
+        assertEquals(1, BLEDataUtil.selectiveSequence(status));
+        for(int i = 0; i < count; i++) {
+            assertEquals(i != 1 && i != 5, BLEDataUtil.statusReceived(status, i));
+        }
+
+        assertFalse(assembler.onFrame(encoder.frame(5).clone()));
+        assertTrue(assembler.onFrame(encoder.frame(1).clone()));
+        assertArrayEquals(data, assembler.takeMessage().toByteArray());
+
+        //重发的轮询包只回复全部收到
+        assertFalse(assembler.onFrame(encoder.frame(count - 1).clone()));
+        status = assembler.takeStatus();
+        assertEquals(count, BLEDataUtil.selectiveSequence(status));
+        encoder.release();
+    }
+
+    @Test
+    public void retransmitsOnlyLostFrames() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        gatt.setController(4, 8);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+        Device device = new Device(scheduler, sender);
+        gatt.setPeer(device);
+
+        byte[] data = buildData(8000, 7);
+        FrameEncoder encoder = FrameEncoder.obtain(data, BLEDataUtil.FORMAT_SELECTIVE_REPEAT, PACKET_SIZE);
+        encoder.setMessageId(1);
+        int count = encoder.frameCount();
+        gatt.dropAt(3);
+        gatt.dropAt(40);
+        gatt.dropAt(count - 1);//轮询包丢失，等待超时之后重发
+
+        Result result = new Result();
+        sender.sendSelective(encoder, 1, true, 0, result);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        assertEquals(PacketSender.RESULT_SUCCESS, result.result);
+        assertArrayEquals(data, device.message);
+        //第一轮 + 重发的轮询包 + 两个缺失的包和轮询包
+        assertEquals(count + 1 + 3, gatt.getWriteCount());
+        assertEquals(2, device.statusCount);
+    }
+
+    @Test
+    public void rejectsMessagesBeyondSequenceRange() throws Exception {
+        int payload = 20 - BLEDataUtil.SELECTIVE_HEADER_SIZE;
+        byte[] data = new byte[BLEDataUtil.MAX_SELECTIVE_FRAMES * payload];
+
+        //正好0xFFFF个包，最后一个包的序号和总包数还能放下
+        FrameEncoder encoder = FrameEncoder.obtain(data, BLEDataUtil.FORMAT_SELECTIVE_REPEAT, 20);
+        assertEquals(BLEDataUtil.MAX_SELECTIVE_FRAMES, encoder.frameCount());
+        byte[] last = encoder.frame(encoder.frameCount() - 1);
+        assertEquals(BLEDataUtil.MAX_SELECTIVE_FRAMES - 1, BLEDataUtil.selectiveSequence(last));
+        assertEquals(BLEDataUtil.MAX_SELECTIVE_FRAMES, BLEDataUtil.selectiveFrameCount(last));
+
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+        Result accepted = new Result();
+        sender.sendSelective(encoder, 1, true, 0, accepted);
+        assertEquals(-1, accepted.result);
+        assertTrue(gatt.getWriteCount() > 0);
+
+        //多一个字节就需要0x10000个包，直接失败，不写出任何包
+        scheduler = new SimulatedScheduler();
+        gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+        encoder = FrameEncoder.obtain(new byte[data.length + 1], BLEDataUtil.FORMAT_SELECTIVE_REPEAT, 20);
+        assertEquals(BLEDataUtil.MAX_SELECTIVE_FRAMES + 1, encoder.frameCount());
+        Result rejected = new Result();
+        sender.sendSelective(encoder, 2, true, 0, rejected);
+        assertEquals(PacketSender.RESULT_FAILED, rejected.result);
+        assertTrue(scheduler.runUntilIdle(1000));
+        assertEquals(0, gatt.getWriteCount());
+    }
+
+    @Test
+    public void writesFewerPacketsThanMessageRestart() throws Exception {
+        byte[] data = buildData(8000, 7);
+        int failAt = 60;
+
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        gatt.setController(4, 8);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+        gatt.failAt(failAt);
+        Result restart = new Result();
+        FrameEncoder encoder = FrameEncoder.obtain(data, BLEDataUtil.FORMAT_LENGTH_PREFIXED, PACKET_SIZE);
+        sender.send(encoder, true, 0, restart);
+        assertTrue(scheduler.runUntilIdle(60000));
+        int restartWrites = gatt.getWriteCount();
+        long restartTime = scheduler.uptimeMillis();
+
+        scheduler = new SimulatedScheduler();
+        gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        gatt.setController(4, 8);
+        sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+        gatt.failAt(failAt);
+        Device device = new Device(scheduler, sender);
+        gatt.setPeer(device);
+        Result selective = new Result();
+        encoder = FrameEncoder.obtain(data, BLEDataUtil.FORMAT_SELECTIVE_REPEAT, PACKET_SIZE);
+        encoder.setMessageId(2);
+        int count = encoder.frameCount();
+        sender.sendSelective(encoder, 2, true, 0, selective);
+        assertTrue(scheduler.runUntilIdle(60000));
+        int selectiveWrites = gatt.getWriteCount();
+        long selectiveTime = scheduler.uptimeMillis();
+
+        System.out.println("lost packet " + failAt + ": restart = " + restartWrites + " writes " + restartTime
+                + "ms, selective repeat = " + selectiveWrites + " writes " + selectiveTime + "ms");
+
+        assertEquals(PacketSender.RESULT_SUCCESS, restart.result);
+        assertEquals(PacketSender.RESULT_SUCCESS, selective.result);
+        assertArrayEquals(data, device.message);
+        assertEquals(count + 2, selectiveWrites);
+        assertTrue(selectiveWrites < restartWrites);
+    }
+
+    @Test
+    public void sendsControlBetweenDataPackets() throws Exception {
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        SimulatedGatt gatt = new SimulatedGatt(scheduler, CONNECTION_INTERVAL);
+        PacketSender sender = new PacketSender(scheduler, gatt);
+        gatt.attach(sender);
+
+        byte[] status = {(byte) 0xA8, 3, 0, 2};
+        Result result = new Result();
+        sender.send(new byte[][]{{1}, {2}, {3}}, result);
+        sender.sendControl(status);
+        assertTrue(scheduler.runUntilIdle(60000));
+
+        assertEquals(PacketSender.RESULT_SUCCESS, result.result);
+        assertEquals(4, gatt.getReceived().size());
+        assertTrue(Arrays.equals(status, gatt.getReceived().get(1)));
+    }
+}
@@ -0,0 +1,73 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 发送结果的回调、取消和等待
+ */
+public class SendFutureTest {
+    private static class Recorder implements SendFuture.SendListener {
+        final List<Integer> results = new ArrayList<>();
+
+        @Override
+        public void onSendComplete(SendFuture future, int result) {
+            results.add(result);
+        }
+    }
+
+    @Test
+    public void resultIsDeliveredOnce() throws Exception {
+        final int[] shared = new int[1];
+        SendFuture future = new SendFuture("data", false, 0, SendQueue.PRIORITY_NORMAL, null, CallbackExecutors.direct(), new PacketSender.SendCallback() {
+            @Override
+            public void onSendComplete(int result) {
+                shared[0]++;
+            }
+        });
+        Recorder recorder = new Recorder();
+        future.setListener(recorder);
+        assertFalse(future.isDone());
+        assertEquals(SendFuture.RESULT_PENDING, future.await(10));
+
+        future.mSendCallback.onSendComplete(PacketSender.RESULT_SUCCESS);
+        future.mSendCallback.onSendComplete(PacketSender.RESULT_FAILED);
+
+        assertTrue(future.isSuccess());
+        assertEquals(SendFuture.RESULT_SUCCESS, future.await(0));
+        assertEquals(1, recorder.results.size());
+        assertEquals(2, shared[0]);
+        assertNull(future.mData);
+
+        //结果之后注册的监听立即回调
+        Recorder late = new Recorder();
+        future.setListener(late);
+        assertEquals(1, late.results.size());
+        assertFalse(future.cancel());
+    }
+
+    @Test
+    public void cancelIsForwardedOnce() throws Exception {
+        final List<SendFuture> cancelled = new ArrayList<>();
+        SendFuture future = new SendFuture(new byte[]{1}, false, 0, SendQueue.PRIORITY_NORMAL, null, CallbackExecutors.direct(), null);
+        future.setCanceller(new SendFuture.Canceller() {
+            @Override
+            public void cancel(SendFuture future) {
+                cancelled.add(future);
+            }
+        });
+
+        assertTrue(future.cancel());
+        assertFalse(future.cancel());
+        assertTrue(future.isCancelRequested());
+        assertEquals(1, cancelled.size());
+        assertFalse(future.isDone());
+
+        future.mSendCallback.onSendComplete(PacketSender.RESULT_CANCELLED);
+        assertEquals(SendFuture.RESULT_CANCELLED, future.getResult());
+    }
+}
@@ -0,0 +1,143 @@
+package cn.appleye.ble;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 发送队列的优先级、溢出策略和合并
+ */
+public class SendQueueTest {
+    private static SendFuture message(String data, int priority, Object key) {
+        return message(data, priority, key, 0);
+    }
+
+    private static SendFuture message(String data, int priority, Object key, long deadline) {
+        return new SendFuture(data, false, deadline, priority, key, CallbackExecutors.direct(), null);
+    }
+
+    @Test
+    public void pollsByPriorityThenInOrder() throws Exception {
+        SendQueue queue = new SendQueue(new SimulatedScheduler());
+        SendFuture low = message("low", SendQueue.PRIORITY_LOW, null);
+        SendFuture first = message("first", SendQueue.PRIORITY_NORMAL, null);
+        SendFuture second = message("second", SendQueue.PRIORITY_NORMAL, null);
+        SendFuture command = message("command", SendQueue.PRIORITY_HIGH, null);
+        assertTrue(queue.offer(low, false));
+        assertTrue(queue.offer(first, false));
+        assertTrue(queue.offer(second, false));
+        assertTrue(queue.offer(command, false));
+
+        assertSame(command, queue.poll());
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void coalescingReplacesInPlace() throws Exception {
+        SendQueue queue = new SendQueue(new SimulatedScheduler());
+        queue.setCapacity(2);
+        SendFuture state1 = message("state-1", SendQueue.PRIORITY_NORMAL, "state");
+        SendFuture other = message("other", SendQueue.PRIORITY_NORMAL, null);
+        SendFuture state2 = message("state-2", SendQueue.PRIORITY_NORMAL, "state");
+        queue.offer(state1, false);
+        queue.offer(other, false);
+
+        //队列已满，合并不占用新的位置
+        assertTrue(queue.offer(state2, false));
+        assertEquals(SendFuture.RESULT_DROPPED, state1.getResult());
+        assertEquals(2, queue.size());
+        assertSame(state2, queue.poll());
+        assertSame(other, queue.poll());
+
+        //已经出队的消息不再合并
+        SendFuture state3 = message("state-3", SendQueue.PRIORITY_NORMAL, "state");
+        assertTrue(queue.offer(state3, false));
+        assertFalse(state2.isDone());
+    }
+
+    @Test
+    public void overflowPolicies() throws Exception {
+        SendQueue queue = new SendQueue(new SimulatedScheduler());
+        queue.setCapacity(2);
+        SendFuture high = message("high", SendQueue.PRIORITY_HIGH, null);
+        SendFuture normal = message("normal", SendQueue.PRIORITY_NORMAL, null);
+        queue.offer(high, false);
+        queue.offer(normal, false);
+
+        SendFuture rejected = message("rejected", SendQueue.PRIORITY_NORMAL, null);
+        assertFalse(queue.offer(rejected, false));
+        assertEquals(SendFuture.RESULT_DROPPED, rejected.getResult());
+
+        //丢弃优先级不高于新消息的最早的消息
+        queue.setOverflowPolicy(SendQueue.OVERFLOW_DROP_OLDEST);
+        SendFuture newer = message("newer", SendQueue.PRIORITY_NORMAL, null);
+        assertTrue(queue.offer(newer, false));
+        assertEquals(SendFuture.RESULT_DROPPED, normal.getResult());
+
+        //高优先级的消息不会被低优先级的消息挤掉
+        queue.offer(message("high-2", SendQueue.PRIORITY_HIGH, null), false);
+        SendFuture low = message("low", SendQueue.PRIORITY_LOW, null);
+        assertFalse(queue.offer(low, false));
+        assertEquals(SendFuture.RESULT_DROPPED, low.getResult());
+        assertFalse(high.isDone());
+    }
+
+    @Test
+    public void blockWaitsForSpace() throws Exception {
+        final SendQueue queue = new SendQueue(new SimulatedScheduler());
+        queue.setCapacity(1);
+        queue.setOverflowPolicy(SendQueue.OVERFLOW_BLOCK);
+        final SendFuture first = message("first", SendQueue.PRIORITY_NORMAL, null);
+        queue.offer(first, true);
+
+        //不允许阻塞时按拒绝处理
+        SendFuture rejected = message("rejected", SendQueue.PRIORITY_NORMAL, null);
+        assertFalse(queue.offer(rejected, false));
+        assertEquals(SendFuture.RESULT_DROPPED, rejected.getResult());
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                assertSame(first, queue.poll());
+            }
+        });
+        consumer.start();
+
+        long start = System.currentTimeMillis();
+        SendFuture second = message("second", SendQueue.PRIORITY_NORMAL, null);
+        assertTrue(queue.offer(second, true));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        consumer.join();
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void expiresByDeadline() throws Exception {
+        SimulatedScheduler clock = new SimulatedScheduler();
+        SendQueue queue = new SendQueue(clock);
+        SendFuture early = message("early", SendQueue.PRIORITY_LOW, null, 100);
+        SendFuture late = message("late", SendQueue.PRIORITY_NORMAL, null, 300);
+        SendFuture forever = message("forever", SendQueue.PRIORITY_NORMAL, null);
+        queue.offer(forever, false);
+        queue.offer(late, false);
+        queue.offer(early, false);
+
+        assertEquals(100, queue.earliestDeadline());
+        assertNull(queue.expire(99));
+        List<SendFuture> expired = queue.expire(100);
+        assertEquals(1, expired.size());
+        assertSame(early, expired.get(0));
+        assertEquals(300, queue.earliestDeadline());
+        assertEquals(2, queue.size());
+    }
+}
@@ -0,0 +1,184 @@
+package cn.appleye.ble;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 模拟的GATT：按连接间隔划分连接事件，有应答写入独占一个连接事件，
+ * 无应答写入放入控制器缓冲区，每个连接事件最多发出若干个包。
+ * 与Android一致，上一个写入回调之前不接受新的写入，结果通过调度器回调给发送器
+ */
+public class SimulatedGatt implements PacketSender.PacketWriter {
+    private final SimulatedScheduler mScheduler;
+
+    /**连接间隔，单位毫秒*/
+    private final long mConnectionInterval;
+
+    /**每个连接事件最多发出的包数*/
+    private int mPacketsPerEvent = 1;
+
+    /**控制器缓冲区大小*/
+    private int mControllerBuffers = 1;
+
+    private PacketSender mSender;
+
+    /**对端收到的包*/
+    private final List<byte[]> mReceived = new ArrayList<>();
+
+    /**缓冲区中还未发出的包的发送时间*/
+    private final LinkedList<Long> mPending = new LinkedList<>();
+
+    /**第几次写入时返回失败，从0开始，-1表示不注入*/
+    private int mFailAt = -1;
+
+    /**第几次写入时丢失回调，-1表示不注入*/
+    private int mLoseCallbackAt = -1;
+
+    /**写入成功但对端没有收到的写入序号，模拟空中丢包*/
+    private final HashSet<Integer> mDropAt = new HashSet<>();
+
+    /**对端，收到包时回调*/
+    private Peer mPeer;
+
+    /**是否有写入还未回调*/
+    private boolean mBusy;
+
+    private int mWriteCount;
+
+    private int mNoResponseCount;
+
+    /**当前分配的连接事件时间*/
+    private long mEventTime = -1;
+
+    /**当前连接事件已经使用的包数*/
+    private int mEventUsed;
+
+    public SimulatedGatt(SimulatedScheduler scheduler, long connectionInterval) {
+        mScheduler = scheduler;
+        mConnectionInterval = connectionInterval;
+    }
+
+    public void attach(PacketSender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * 设置控制器能力
+     * @param packetsPerEvent 每个连接事件最多发出的包数
+     * @param buffers 控制器缓冲区大小
+     * */
+    public void setController(int packetsPerEvent, int buffers) {
+        mPacketsPerEvent = packetsPerEvent;
+        mControllerBuffers = buffers;
+    }
+
+    public void failAt(int writeIndex) {
+        mFailAt = writeIndex;
+    }
+
+    public void loseCallbackAt(int writeIndex) {
+        mLoseCallbackAt = writeIndex;
+    }
+
+    /**
+     * 第writeIndex次写入回调成功，但对端收不到
+     * */
+    public void dropAt(int writeIndex) {
+        mDropAt.add(writeIndex);
+    }
+
+    public void setPeer(Peer peer) {
+        mPeer = peer;
+    }
+
+    public List<byte[]> getReceived() {
+        return mReceived;
+    }
+
+    public int getWriteCount() {
+        return mWriteCount;
+    }
+
+    public int getNoResponseCount() {
+        return mNoResponseCount;
+    }
+
+    @Override
+    public boolean writePacket(final byte[] packet, boolean withResponse) {
+        if(mBusy) {
+            return false;
+        }
+
+        final int index = mWriteCount++;
+        final long now = mScheduler.uptimeMillis();
+        final long txTime = allocateSlot(now, withResponse);
+        final byte[] copy = packet.clone();
+        final boolean success = index != mFailAt;
+        mBusy = true;
+
+        //对端在连接事件中收到数据
+        if(success && !mDropAt.contains(index)) {
+            mScheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    mReceived.add(copy);
+                    if(mPeer != null) {
+                        mPeer.onPacket(copy);
+                    }
+                }
+            }, txTime - now);
+        }
+
+        long callbackTime;
+        if(withResponse) {
+            callbackTime = txTime;
+        } else {
+            //无应答写入进入控制器缓冲区就回调，缓冲区满时要等最早的包发出
+            mNoResponseCount++;
+            while(!mPending.isEmpty() && mPending.peek() <= now) {
+                mPending.poll();
+            }
+            mPending.add(txTime);
+            callbackTime = mPending.size() <= mControllerBuffers
+                    ? now + 1 : mPending.get(mPending.size() - mControllerBuffers - 1);
+        }
+
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mBusy = false;
+                if(index != mLoseCallbackAt) {
+                    mSender.onPacketWritten(success);
+                }
+            }
+        }, callbackTime - now);
+        return true;
+    }
+
+    /**
+     * 分配发送的连接事件，有应答写入独占一个连接事件
+     * */
+    private long allocateSlot(long now, boolean fullEvent) {
+        if(mEventTime <= now) {
+            mEventTime = (now / mConnectionInterval + 1) * mConnectionInterval;
+            mEventUsed = 0;
+        }
+
+        if(mEventUsed >= mPacketsPerEvent || (fullEvent && mEventUsed > 0)) {
+            mEventTime += mConnectionInterval;
+            mEventUsed = 0;
+        }
+
+        mEventUsed = fullEvent ? mPacketsPerEvent : mEventUsed + 1;
+        return mEventTime;
+    }
+
+    /**
+     * 模拟的对端设备
+     * */
+    public interface Peer {
+        void onPacket(byte[] packet);
+    }
+}
@@ -0,0 +1,96 @@
+package cn.appleye.ble;
+
+import java.util.PriorityQueue;
+
+/**
+ * 虚拟时钟调度器，任务按时间顺序在当前线程执行，用于在JVM上模拟发送线程
+ */
+public class SimulatedScheduler implements TaskScheduler {
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+
+    private long mNow;
+
+    private long mSequence;
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mTasks.add(new Task(task, mNow + Math.max(0, delayMillis), mSequence++));
+    }
+
+    @Override
+    public void remove(Runnable task) {
+        while(mTasks.remove(new Task(task, 0, 0))) {
+            //移除所有相同的任务
+        }
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return mNow;
+    }
+
+    /**
+     * 时钟前进millis毫秒，执行这段时间内到期的任务
+     * */
+    public void advance(long millis) {
+        final long target = mNow + millis;
+        runUntilIdle(millis);
+        mNow = Math.max(mNow, target);
+    }
+
+    /**
+     * 执行所有任务，直到队列为空或者超过时间上限
+     * @return 是否所有任务都已执行
+     * */
+    public boolean runUntilIdle(long maxMillis) {
+        long limit = mNow + maxMillis;
+        while(!mTasks.isEmpty()) {
+            Task task = mTasks.peek();
+            if(task.time > limit) {
+                mNow = limit;
+                return false;
+            }
+
+            mTasks.poll();
+            mNow = Math.max(mNow, task.time);
+            task.runnable.run();
+        }
+
+        return true;
+    }
+
+    private static class Task implements Comparable<Task> {
+        final Runnable runnable;
+        final long time;
+        final long sequence;
+
+        Task(Runnable runnable, long time, long sequence) {
+            this.runnable = runnable;
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if(time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Task && ((Task) o).runnable == runnable;
+        }
+
+        @Override
+        public int hashCode() {
+            return runnable.hashCode();
+        }
+    }
+}
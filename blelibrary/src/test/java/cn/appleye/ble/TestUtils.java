@@ -0,0 +1,31 @@
+package cn.appleye.ble;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * 测试公用的数据构造和内存统计
+ */
+public class TestUtils {
+
+    private TestUtils() {
+    }
+
+    /**
+     * 按位置和种子填充的测试数据，不同的种子得到不同的内容
+     * */
+    public static byte[] buildData(int length, int seed) {
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    /**
+     * 当前线程已分配的字节数，只有HotSpot支持
+     * */
+    public static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}